@@ -0,0 +1,1036 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.MEGA;
+import ch.fhnw.filecopier.CopyJob;
+import ch.fhnw.filecopier.CurrentlyProcessedFile;
+import ch.fhnw.filecopier.DirectoryInfo;
+import ch.fhnw.filecopier.FileCopier;
+import ch.fhnw.filecopier.Source;
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * A FileCopier for installing a batch of storage devices. It copies the same
+ * files as the FileCopier (same sources, patterns, destinations and digest
+ * cache) but takes care of the page cache:
+ * <ul>
+ * <li>Destination files are flushed and dropped from the page cache while
+ * they are written. Otherwise the destination pages would evict the source
+ * files from the page cache and the next storage device of the batch would
+ * have to read them again from the source storage device.</li>
+ * <li>The next source file is read ahead in the background while the current
+ * file is written to the destination.</li>
+ * <li>The fraction of the source bytes that was already in the page cache is
+ * recorded (the source cache hit ratio).</li>
+ * <li>Large files are written with direct I/O (see {@link DirectIO}), so the
+ * copy progress shows what really reached the storage device.</li>
+ * <li>Files that need not be hashed are copied within the kernel (see
+ * {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)}).</li>
+ * <li>When checking copies the source digest is computed while copying and
+ * the destination is read back with direct I/O, so the check verifies the
+ * storage device and not the page cache. The read-back throughput is
+ * recorded as a cheap read benchmark of the destination storage device.</li>
+ * <li>In the {@link VerificationMode#SAMPLED} mode only a random sample of
+ * blocks of the squashfs images is compared.</li>
+ * </ul>
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class BatchFileCopier extends FileCopier {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(BatchFileCopier.class.getName());
+    private static final int BUFFER_SIZE = MEGA;
+    // small files are not worth the extra processes for page cache handling
+    private static final long PAGE_CACHE_THRESHOLD = MEGA;
+    // the size of the blocks compared when sampling
+    private static final int SAMPLE_BLOCK_SIZE = MEGA;
+    // the progress granularity when copying in the kernel
+    private static final long KERNEL_COPY_CHUNK = 8 * MEGA;
+    // smaller files are written through the page cache
+    private static final long DIRECT_IO_THRESHOLD = 16 * MEGA;
+    // the amount of dirty data we allow per destination file
+    private static final long DROP_INTERVAL = 64 * MEGA;
+    // the largest chunk of a source file we map into memory for read ahead
+    private static final long READ_AHEAD_CHUNK = 256 * MEGA;
+    // the minimal time between two byte counter updates
+    private static final long PROGRESS_INTERVAL = 250;
+
+    private final PropertyChangeSupport propertyChangeSupport
+            = new PropertyChangeSupport(this);
+    private final DigestCache digestCache;
+    private final SourceCacheStatistics sourceCacheStatistics;
+    private State state = State.START;
+    private long byteCount;
+    private long copiedBytes;
+    private long oldCopiedBytes;
+    private long lastProgressTime;
+    private CurrentlyProcessedFile currentlyProcessedFile;
+    private long readBackBytes;
+    private long readBackNanos;
+    private long fileFlushNanos;
+    private long verificationSeed;
+    private Map<String, byte[]> referenceDigests;
+    private DigestAlgorithm digestAlgorithm;
+
+    /**
+     * creates a new BatchFileCopier
+     *
+     * @param digestCache a global digest cache for speeding up repeated file
+     * checks
+     */
+    public BatchFileCopier(DigestCache digestCache) {
+        this(digestCache, new SourceCacheStatistics());
+    }
+
+    /**
+     * creates a new BatchFileCopier
+     *
+     * @param digestCache a global digest cache for speeding up repeated file
+     * checks
+     * @param sourceCacheStatistics the page cache statistics of the source
+     * files (may be shared by several BatchFileCopiers)
+     */
+    public BatchFileCopier(DigestCache digestCache,
+            SourceCacheStatistics sourceCacheStatistics) {
+        this.digestCache = digestCache;
+        this.sourceCacheStatistics = sourceCacheStatistics;
+    }
+
+    /**
+     * creates a new BatchFileCopier without a digest cache
+     */
+    public BatchFileCopier() {
+        this(null);
+    }
+
+    /**
+     * sets trusted MD5 sums of some source files (e.g. from md5sum.txt of the
+     * system source), these files are checked without reading the source
+     * again
+     *
+     * @param referenceDigests a map of source file paths to their MD5 sums or
+     * null, if all digests must be computed
+     */
+    public void setReferenceDigests(Map<String, byte[]> referenceDigests) {
+        this.referenceDigests = referenceDigests;
+    }
+
+    @Override
+    public void addPropertyChangeListener(String propertyName,
+            PropertyChangeListener listener) {
+        propertyChangeSupport.addPropertyChangeListener(propertyName, listener);
+    }
+
+    @Override
+    public void removePropertyChangeListener(String propertyName,
+            PropertyChangeListener listener) {
+        propertyChangeSupport.removePropertyChangeListener(
+                propertyName, listener);
+    }
+
+    @Override
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    @Override
+    public CurrentlyProcessedFile getCurrentlyProcessedFile() {
+        return currentlyProcessedFile;
+    }
+
+    @Override
+    public void reset() {
+        setState(State.START);
+    }
+
+    /**
+     * returns the fraction of the source bytes that were already in the page
+     * cache when they were copied (by all BatchFileCopiers sharing the same
+     * statistics)
+     *
+     * @return the fraction of the source bytes that were already in the page
+     * cache when they were copied or -1, if this information is not available
+     */
+    public double getSourceCacheHitRatio() {
+        return sourceCacheStatistics.getHitRatio();
+    }
+
+    /**
+     * returns the time spent for flushing every single destination file of
+     * the last copy operation (see {@link DurabilityMode#PER_FILE})
+     *
+     * @return the time spent for flushing destination files (in ms)
+     */
+    public long getFileFlushTime() {
+        return fileFlushNanos / 1_000_000;
+    }
+
+    /**
+     * returns the throughput when reading back the destination files of the
+     * last copy operation (a cheap read benchmark of the destination storage
+     * device)
+     *
+     * @return the throughput (in bytes per second) when reading back the
+     * destination files of the last copy operation or -1, if no files were
+     * read back
+     */
+    public long getReadBackThroughput() {
+        if (readBackNanos == 0) {
+            return -1;
+        }
+        return readBackBytes * 1_000_000_000L / readBackNanos;
+    }
+
+    @Override
+    public void copy(CopyJob... copyJobs)
+            throws IOException, NoSuchAlgorithmException {
+        copy(false, copyJobs);
+    }
+
+    @Override
+    public void copy(boolean check, CopyJob... copyJobs)
+            throws IOException, NoSuchAlgorithmException {
+
+        byteCount = 0;
+        copiedBytes = 0;
+        oldCopiedBytes = 0;
+        readBackBytes = 0;
+        readBackNanos = 0;
+        fileFlushNanos = 0;
+        verificationSeed = (DLCopy.verificationSeed == null)
+                ? new Random().nextLong() : DLCopy.verificationSeed;
+        digestAlgorithm = DLCopy.digestAlgorithm;
+        setState(State.CHECKING_SOURCE);
+
+        // expand all source definitions
+        int fileCount = 0;
+        for (CopyJob copyJob : copyJobs) {
+            if (copyJob == null) {
+                continue;
+            }
+            List<DirectoryInfo> directoryInfos = new ArrayList<>();
+            for (Source source : copyJob.getSources()) {
+                File baseDirectory = source.getBaseDirectory();
+                String basePath = baseDirectory.getPath();
+                int baseLength = basePath.endsWith(File.separator)
+                        ? basePath.length() : basePath.length() + 1;
+                DirectoryInfo directoryInfo = expand(baseLength, baseDirectory,
+                        source.getPattern(), source.isRecursive());
+                if (directoryInfo != null) {
+                    directoryInfos.add(directoryInfo);
+                    byteCount += directoryInfo.getByteCount();
+                    fileCount += directoryInfo.getFiles().size();
+                }
+            }
+            copyJob.setDirectoryInfos(directoryInfos);
+        }
+        if (fileCount == 0) {
+            LOGGER.info("there are no files to copy");
+            return;
+        }
+        checkDestinations(copyJobs);
+
+        List<File> sourceFiles = new ArrayList<>();
+        for (CopyJob copyJob : copyJobs) {
+            if (copyJob != null) {
+                for (DirectoryInfo directoryInfo
+                        : copyJob.getDirectoryInfos()) {
+                    for (File file : directoryInfo.getFiles()) {
+                        if (file.isFile()) {
+                            sourceFiles.add(file);
+                        }
+                    }
+                }
+            }
+        }
+        if (DLCopy.pageCacheManagement) {
+            sampleSourceCache(sourceFiles);
+        }
+
+        setState(State.COPYING);
+        ExecutorService readAheadExecutor
+                = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "read ahead");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            int sourceFileIndex = 0;
+            for (CopyJob copyJob : copyJobs) {
+                if (copyJob == null) {
+                    continue;
+                }
+                String[] destinations = copyJob.getDestinations();
+                for (DirectoryInfo directoryInfo
+                        : copyJob.getDirectoryInfos()) {
+                    File baseDirectory = directoryInfo.getBaseDirectory();
+                    for (File file : directoryInfo.getFiles()) {
+                        File[] destinationFiles = getDestinationFiles(
+                                baseDirectory, file, destinations);
+                        if (file.isDirectory()) {
+                            createDirectories(file, destinationFiles);
+                            continue;
+                        }
+                        sourceFileIndex++;
+                        if (DLCopy.pageCacheManagement
+                                && sourceFileIndex < sourceFiles.size()) {
+                            File nextFile = sourceFiles.get(sourceFileIndex);
+                            readAheadExecutor.execute(
+                                    () -> readAhead(nextFile));
+                        }
+                        copyFile(check, file, destinationFiles);
+                    }
+                }
+            }
+        } finally {
+            readAheadExecutor.shutdownNow();
+        }
+
+        fireByteCounter();
+        setState(State.END);
+    }
+
+    private void setState(State newState) {
+        State oldState = state;
+        state = newState;
+        propertyChangeSupport.firePropertyChange(
+                STATE_PROPERTY, oldState, newState);
+    }
+
+    private void fireByteCounter() {
+        if (oldCopiedBytes != copiedBytes) {
+            propertyChangeSupport.firePropertyChange(BYTE_COUNTER_PROPERTY,
+                    oldCopiedBytes, copiedBytes);
+            oldCopiedBytes = copiedBytes;
+        }
+        lastProgressTime = System.currentTimeMillis();
+    }
+
+    private void addCopiedBytes(long bytes) {
+        copiedBytes += bytes;
+        if (System.currentTimeMillis() - lastProgressTime
+                >= PROGRESS_INTERVAL) {
+            fireByteCounter();
+        }
+    }
+
+    private DirectoryInfo expand(int baseLength, File currentDirectory,
+            Pattern pattern, boolean recursive) {
+
+        propertyChangeSupport.firePropertyChange(
+                FILE_PROPERTY, null, currentDirectory);
+
+        if (!currentDirectory.exists()) {
+            LOGGER.log(Level.WARNING, "{0} does not exist", currentDirectory);
+            return null;
+        }
+        if (!currentDirectory.isDirectory()) {
+            LOGGER.log(Level.WARNING, "{0} is no directory", currentDirectory);
+            return null;
+        }
+        if (!currentDirectory.canRead()) {
+            LOGGER.log(Level.WARNING, "can not read {0}", currentDirectory);
+            return null;
+        }
+        if (pattern == null) {
+            throw new IllegalArgumentException("pattern must not be null");
+        }
+
+        long directoryByteCount = 0;
+        List<File> files = new ArrayList<>();
+        File[] subFiles = currentDirectory.listFiles();
+        if (subFiles == null) {
+            LOGGER.log(Level.WARNING, "can not list {0}", currentDirectory);
+            return null;
+        }
+        for (File subFile : subFiles) {
+            String relativePath = subFile.getPath().substring(baseLength);
+            if (pattern.matcher(relativePath).matches()) {
+                if (subFile.isDirectory()) {
+                    if (recursive) {
+                        files.add(subFile);
+                    }
+                } else {
+                    files.add(subFile);
+                    directoryByteCount += subFile.length();
+                }
+            }
+            if (subFile.isDirectory() && recursive) {
+                DirectoryInfo subInfo = expand(
+                        baseLength, subFile, pattern, recursive);
+                if (subInfo != null) {
+                    files.addAll(subInfo.getFiles());
+                    directoryByteCount += subInfo.getByteCount();
+                }
+            }
+        }
+        return new DirectoryInfo(currentDirectory, files, directoryByteCount);
+    }
+
+    private void checkDestinations(CopyJob... copyJobs) throws IOException {
+        for (CopyJob copyJob : copyJobs) {
+            if (copyJob == null) {
+                continue;
+            }
+            List<DirectoryInfo> directoryInfos = copyJob.getDirectoryInfos();
+            int jobFileCount = 0;
+            for (DirectoryInfo directoryInfo : directoryInfos) {
+                jobFileCount += directoryInfo.getFiles().size();
+            }
+            if (jobFileCount == 0) {
+                continue;
+            }
+            for (String destination : copyJob.getDestinations()) {
+                File destinationFile = new File(destination);
+                if (!destinationFile.isFile()) {
+                    continue;
+                }
+                if (jobFileCount == 1) {
+                    File sourceFile = directoryInfos.get(0).getFiles().get(0);
+                    if (sourceFile.isDirectory()) {
+                        throw new IOException("can not overwrite file \""
+                                + destinationFile + "\" with directory \""
+                                + sourceFile + "\"");
+                    }
+                } else {
+                    StringBuilder stringBuilder = new StringBuilder(
+                            "can not copy several files to another file\n"
+                            + " sources:");
+                    for (DirectoryInfo directoryInfo : directoryInfos) {
+                        for (File file : directoryInfo.getFiles()) {
+                            stringBuilder.append("  ");
+                            stringBuilder.append(file.getPath());
+                        }
+                    }
+                    stringBuilder.append(" destination: ");
+                    stringBuilder.append(destinationFile.getPath());
+                    throw new IOException(stringBuilder.toString());
+                }
+            }
+        }
+    }
+
+    private File[] getDestinationFiles(File baseDirectory, File sourceFile,
+            String[] destinations) {
+        File[] destinationFiles = new File[destinations.length];
+        for (int i = 0; i < destinations.length; i++) {
+            File destination = new File(destinations[i]);
+            if (destination.isDirectory()) {
+                String relativePath = sourceFile.getPath().substring(
+                        baseDirectory.getPath().length());
+                destinationFiles[i] = new File(destination, relativePath);
+            } else {
+                destinationFiles[i] = destination;
+            }
+        }
+        return destinationFiles;
+    }
+
+    private void createDirectories(File sourceDirectory,
+            File... destinationDirectories) throws IOException {
+        for (File destinationDirectory : destinationDirectories) {
+            if (destinationDirectory.exists()) {
+                if (destinationDirectory.isDirectory()) {
+                    LOGGER.log(Level.INFO, "Directory \"{0}\" already exists",
+                            destinationDirectory);
+                } else {
+                    throw new IOException("can not overwrite file \""
+                            + destinationDirectory + "\" with directory \""
+                            + sourceDirectory + "\"");
+                }
+            } else {
+                LOGGER.log(Level.INFO, "Creating directory \"{0}\"",
+                        destinationDirectory);
+                if (!destinationDirectory.mkdirs()) {
+                    throw new IOException("Could not create directory \""
+                            + destinationDirectory + "\"");
+                }
+            }
+        }
+    }
+
+    private void copyFile(boolean check, File source, File... destinations)
+            throws IOException, NoSuchAlgorithmException {
+
+        currentlyProcessedFile
+                = new CurrentlyProcessedFile(source.getAbsolutePath());
+        LOGGER.log(Level.INFO, "Copying file {0} to {1}",
+                new Object[]{source, Arrays.toString(destinations)});
+
+        for (File destination : destinations) {
+            if (!destination.exists()) {
+                destination.getParentFile().mkdirs();
+            }
+        }
+
+        long sourceLength = source.length();
+        if (sourceLength == 0) {
+            for (File destination : destinations) {
+                new FileOutputStream(destination).close();
+            }
+            return;
+        }
+
+        // sampled files are compared block by block, no digest needed
+        boolean sampled = check && isSampled(source);
+        DigestAlgorithm algorithm = digestAlgorithm;
+        String cacheKey = getCacheKey(algorithm, source);
+        byte[] sourceDigest = null;
+        MessageDigest messageDigest = null;
+        if (check && !sampled) {
+            if (referenceDigests != null) {
+                sourceDigest = referenceDigests.get(source.getPath());
+                if (sourceDigest != null) {
+                    LOGGER.log(Level.FINE,
+                            "taking {0} from reference digests", source);
+                    // the reference digests are MD5 sums
+                    algorithm = DigestAlgorithm.MD5;
+                }
+            }
+            if ((sourceDigest == null) && (digestCache != null)) {
+                sourceDigest = digestCache.get(cacheKey);
+                if (sourceDigest != null) {
+                    LOGGER.log(Level.FINE,
+                            "taking {0} from digest cache", source);
+                }
+            }
+            if (sourceDigest == null) {
+                messageDigest = algorithm.createMessageDigest();
+            }
+        }
+
+        boolean directIO = DLCopy.directIO && DirectIO.isSupported()
+                && (sourceLength >= DIRECT_IO_THRESHOLD)
+                && transferDirect(source, destinations, messageDigest);
+        // direct writes leave nothing behind in the page cache
+        boolean managePageCache = DLCopy.pageCacheManagement && !directIO
+                && (sourceLength >= PAGE_CACHE_THRESHOLD);
+        if (!directIO) {
+            transfer(source, destinations, messageDigest, managePageCache);
+        }
+
+        if (sampled) {
+            for (File destination : destinations) {
+                checkSamples(source, destination, directIO);
+            }
+        } else if (check) {
+            if (messageDigest != null) {
+                sourceDigest = messageDigest.digest();
+                if (digestCache != null) {
+                    LOGGER.log(Level.FINE,
+                            "adding {0} to digest cache", source);
+                    digestCache.put(cacheKey, sourceDigest);
+                }
+            }
+            for (File destination : destinations) {
+                checkCopy(algorithm, sourceDigest, destination, directIO);
+            }
+        } else if (managePageCache) {
+            for (File destination : destinations) {
+                PageCache.flushAndDrop(destination);
+            }
+        }
+    }
+
+    private void transfer(File source, File[] destinations,
+            MessageDigest messageDigest, boolean managePageCache)
+            throws IOException {
+
+        FileChannel[] destinationChannels
+                = new FileChannel[destinations.length];
+        try (FileChannel sourceChannel = FileChannel.open(
+                source.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < destinations.length; i++) {
+                destinationChannels[i] = FileChannel.open(
+                        destinations[i].toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            }
+
+            long unflushedBytes = 0;
+            // Without hashing the data need not pass through user space.
+            if (DLCopy.kernelCopy && (messageDigest == null)
+                    && (destinationChannels.length == 1)) {
+                long position = transferInKernel(sourceChannel,
+                        destinationChannels[0], destinations[0],
+                        managePageCache);
+                // continue in user space if the kernel copy stopped early
+                sourceChannel.position(position);
+                destinationChannels[0].position(position);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (sourceChannel.read(buffer) != -1) {
+                buffer.flip();
+                int bytes = buffer.remaining();
+                if (messageDigest != null) {
+                    messageDigest.update(buffer.duplicate());
+                }
+                for (FileChannel destinationChannel : destinationChannels) {
+                    ByteBuffer destinationBuffer = buffer.duplicate();
+                    while (destinationBuffer.hasRemaining()) {
+                        destinationChannel.write(destinationBuffer);
+                    }
+                }
+                buffer.clear();
+                addCopiedBytes(bytes);
+
+                unflushedBytes += bytes;
+                if (managePageCache && (unflushedBytes >= DROP_INTERVAL)) {
+                    for (File destination : destinations) {
+                        PageCache.flushAndDrop(destination);
+                    }
+                    unflushedBytes = 0;
+                }
+            }
+            if (DLCopy.durabilityMode == DurabilityMode.PER_FILE) {
+                long start = System.nanoTime();
+                for (FileChannel destinationChannel : destinationChannels) {
+                    destinationChannel.force(true);
+                }
+                fileFlushNanos += System.nanoTime() - start;
+            }
+        } finally {
+            for (FileChannel destinationChannel : destinationChannels) {
+                if (destinationChannel != null) {
+                    destinationChannel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * copies a file within the kernel (sendfile() or copy_file_range(),
+     * depending on the Java version)
+     *
+     * @return the number of copied bytes (may be less than the file size if
+     * the kernel copy is not supported)
+     */
+    private long transferInKernel(FileChannel sourceChannel,
+            FileChannel destinationChannel, File destination,
+            boolean managePageCache) {
+
+        long position = 0;
+        try {
+            long size = sourceChannel.size();
+            long unflushedBytes = 0;
+            while (position < size) {
+                long transferred = sourceChannel.transferTo(position,
+                        Math.min(KERNEL_COPY_CHUNK, size - position),
+                        destinationChannel);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                addCopiedBytes(transferred);
+
+                unflushedBytes += transferred;
+                if (managePageCache && (unflushedBytes >= DROP_INTERVAL)) {
+                    PageCache.flushAndDrop(destination);
+                    unflushedBytes = 0;
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.INFO, "copying {0} in the kernel failed, "
+                    + "falling back to user space: {1}",
+                    new Object[]{destination, ex.toString()});
+        }
+        return position;
+    }
+
+    /**
+     * copies a file with direct writes that are queued to the destination
+     *
+     * @return <code>true</code>, if the file was copied, <code>false</code> if
+     * the destination does not support direct I/O (nothing was copied)
+     */
+    private boolean transferDirect(File source, File[] destinations,
+            MessageDigest messageDigest) throws IOException {
+
+        // All our copy jobs have a single destination. Several destinations
+        // would have to share the buffers of the aligned buffer pool.
+        if (destinations.length != 1) {
+            return false;
+        }
+        Path destinationPath = destinations[0].toPath();
+        QueuedBlockWriter writer;
+        try {
+            writer = new QueuedBlockWriter(destinationPath, true,
+                    DLCopy.writeQueueDepth, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException ex) {
+            LOGGER.log(Level.INFO, "no direct I/O for {0}: {1}",
+                    new Object[]{destinationPath, ex.toString()});
+            return false;
+        }
+
+        try (QueuedBlockWriter destinationWriter = writer;
+                FileChannel sourceChannel = FileChannel.open(
+                        source.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            long reportedBytes = 0;
+            boolean endOfFile = false;
+            while (!endOfFile) {
+                // direct writes must consist of whole blocks, therefore we
+                // only write full buffers (except at the end)
+                ByteBuffer buffer = destinationWriter.acquireBuffer();
+                while (buffer.hasRemaining()) {
+                    if (sourceChannel.read(buffer) == -1) {
+                        endOfFile = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                int bytes = buffer.remaining();
+                if (bytes == 0) {
+                    DirectIO.releaseBuffer(buffer);
+                    break;
+                }
+                if (messageDigest != null) {
+                    messageDigest.update(buffer.duplicate());
+                }
+                destinationWriter.submit(buffer, position);
+                position += bytes;
+
+                // only count what really reached the storage device
+                long completedBytes = destinationWriter.getCompletedBytes();
+                addCopiedBytes(completedBytes - reportedBytes);
+                reportedBytes = completedBytes;
+            }
+
+            // waits for all writes and removes the padding of the last block
+            destinationWriter.truncate(position);
+            addCopiedBytes(destinationWriter.getCompletedBytes()
+                    - reportedBytes);
+            if (DLCopy.durabilityMode == DurabilityMode.PER_FILE) {
+                // the data is already on the storage device but the
+                // metadata (e.g. the truncated size) is not
+                long start = System.nanoTime();
+                destinationWriter.force();
+                fileFlushNanos += System.nanoTime() - start;
+            }
+        }
+        return true;
+    }
+
+    private void checkCopy(DigestAlgorithm algorithm, byte[] sourceDigest,
+            File destination, boolean writtenDirectly)
+            throws IOException, NoSuchAlgorithmException {
+
+        currentlyProcessedFile.setChecking();
+
+        if (!writtenDirectly) {
+            // writes the dirty pages to the storage device and removes the
+            // file from the page cache
+            PageCache.flushAndDrop(destination);
+        }
+
+        LOGGER.log(Level.FINE, "getting checksum of {0}", destination);
+        MessageDigest messageDigest = algorithm.createMessageDigest();
+        long start = System.nanoTime();
+        boolean readDirectly
+                = DLCopy.directIO && readDirect(destination, messageDigest);
+        if (!readDirectly) {
+            try (FileChannel channel = FileChannel.open(
+                    destination.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    messageDigest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        readBackNanos += System.nanoTime() - start;
+        readBackBytes += destination.length();
+        // don't let the verification evict the source files
+        if (!readDirectly && DLCopy.pageCacheManagement) {
+            PageCache.flushAndDrop(destination);
+        }
+
+        byte[] destinationDigest = messageDigest.digest();
+        if (Arrays.equals(sourceDigest, destinationDigest)) {
+            LOGGER.log(Level.FINE, "{0} has correct checksum {1}",
+                    new Object[]{destination, getHexString(destinationDigest)});
+        } else {
+            throw new IOException(destination + " was not correctly copied "
+                    + "(expected checksum: " + getHexString(sourceDigest)
+                    + ", actual checksum: "
+                    + getHexString(destinationDigest) + ")");
+        }
+    }
+
+    /**
+     * reads a file with direct I/O, bypassing the page cache
+     *
+     * @return <code>true</code>, if the file was read, <code>false</code> if
+     * the file can't be opened with direct I/O
+     */
+    private boolean readDirect(File file, MessageDigest messageDigest)
+            throws IOException {
+
+        if (!DirectIO.isSupported()) {
+            return false;
+        }
+        FileChannel channel;
+        try {
+            channel = DirectIO.openForReading(file.toPath());
+        } catch (IOException ex) {
+            // e.g. tmpfs does not support direct I/O
+            LOGGER.log(Level.FINE, "can''t read {0} with direct I/O: {1}",
+                    new Object[]{file, ex.toString()});
+            return false;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = acquireDirectBuffer();
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        try {
+            // Only the last read returns less than a full buffer, so all
+            // reads start at block aligned positions. We must not read again
+            // after the last (unaligned) read.
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new IOException(file + " was truncated while "
+                            + "reading it");
+                }
+                position += read;
+                buffer.flip();
+                messageDigest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            DirectIO.releaseBuffer(buffer);
+            channel.close();
+        }
+        return true;
+    }
+
+    /**
+     * returns the key of a file in the digest cache (the algorithm is part of
+     * the key, so that the cache can be shared by batches with different
+     * algorithms)
+     */
+    private static String getCacheKey(DigestAlgorithm algorithm, File file) {
+        return algorithm.getName() + ':' + file.getPath();
+    }
+
+    private static boolean isSampled(File file) {
+        // boot-critical files (kernels, initrd, EFI, syslinux) and all other
+        // small files are always checked completely
+        return (DLCopy.verificationMode == VerificationMode.SAMPLED)
+                && file.getName().endsWith(".squashfs")
+                && (file.length() >= DIRECT_IO_THRESHOLD);
+    }
+
+    /**
+     * compares the first and last block and a random sample of the other
+     * blocks of a copied file with the source file
+     */
+    private void checkSamples(File source, File destination,
+            boolean writtenDirectly) throws IOException {
+
+        currentlyProcessedFile.setChecking();
+
+        if (!writtenDirectly) {
+            // writes the dirty pages to the storage device and removes the
+            // file from the page cache
+            PageCache.flushAndDrop(destination);
+        }
+
+        long size = source.length();
+        SortedSet<Long> blocks = getSampledBlocks(
+                (size + SAMPLE_BLOCK_SIZE - 1) / SAMPLE_BLOCK_SIZE);
+        LOGGER.log(Level.INFO, "checking {0} sampled blocks of {1} "
+                + "(seed {2})", new Object[]{
+                    blocks.size(), destination, String.valueOf(verificationSeed)
+                });
+
+        long start = System.nanoTime();
+        FileChannel destinationChannel = null;
+        if (DLCopy.directIO && DirectIO.isSupported()) {
+            try {
+                destinationChannel
+                        = DirectIO.openForReading(destination.toPath());
+            } catch (IOException ex) {
+                // e.g. tmpfs does not support direct I/O
+                LOGGER.log(Level.FINE, "can''t read {0} with direct I/O: {1}",
+                        new Object[]{destination, ex.toString()});
+            }
+        }
+        boolean readDirectly = destinationChannel != null;
+        if (!readDirectly) {
+            destinationChannel = FileChannel.open(
+                    destination.toPath(), StandardOpenOption.READ);
+        }
+        ByteBuffer destinationBuffer = null;
+        try (FileChannel sourceChannel = FileChannel.open(
+                source.toPath(), StandardOpenOption.READ)) {
+            destinationBuffer = acquireDirectBuffer();
+            ByteBuffer sourceBuffer
+                    = ByteBuffer.allocateDirect(SAMPLE_BLOCK_SIZE);
+            for (long block : blocks) {
+                long position = block * SAMPLE_BLOCK_SIZE;
+                readBlock(sourceChannel, sourceBuffer, position, size);
+                readBlock(destinationChannel, destinationBuffer, position,
+                        size);
+                readBackBytes += destinationBuffer.remaining();
+                if (!sourceBuffer.equals(destinationBuffer)) {
+                    throw new IOException(destination + " was not correctly "
+                            + "copied (block " + block + " differs, "
+                            + "verification seed: " + verificationSeed + ")");
+                }
+            }
+        } finally {
+            if (destinationBuffer != null) {
+                DirectIO.releaseBuffer(destinationBuffer);
+            }
+            destinationChannel.close();
+        }
+        readBackNanos += System.nanoTime() - start;
+
+        // don't let the verification evict the source files
+        if (!readDirectly && DLCopy.pageCacheManagement) {
+            PageCache.flushAndDrop(destination);
+        }
+    }
+
+    /**
+     * returns the first and last block and a random sample of the other
+     * blocks (the sample only depends on the number of blocks and the
+     * verification seed)
+     */
+    private SortedSet<Long> getSampledBlocks(long blockCount) {
+        SortedSet<Long> blocks = new TreeSet<>();
+        blocks.add(0L);
+        blocks.add(blockCount - 1);
+        int samples = Math.max(0, DLCopy.verificationSamples);
+        if (blockCount - 2 <= samples) {
+            for (long block = 1; block < blockCount - 1; block++) {
+                blocks.add(block);
+            }
+            return blocks;
+        }
+        Random random = new Random(verificationSeed);
+        while (blocks.size() < samples + 2) {
+            blocks.add(1 + Math.floorMod(random.nextLong(), blockCount - 2));
+        }
+        return blocks;
+    }
+
+    /**
+     * reads a block of a file (only the last block of the file is shorter
+     * than SAMPLE_BLOCK_SIZE, so direct reads stay block aligned)
+     */
+    private static void readBlock(FileChannel channel, ByteBuffer buffer,
+            long position, long size) throws IOException {
+        buffer.clear();
+        buffer.limit(SAMPLE_BLOCK_SIZE);
+        while (buffer.hasRemaining()
+                && (position + buffer.position() < size)) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                break;
+            }
+        }
+        buffer.flip();
+    }
+
+    private static ByteBuffer acquireDirectBuffer() throws IOException {
+        try {
+            return DirectIO.acquireBuffer();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "interrupted while waiting for a buffer");
+        }
+    }
+
+    private void sampleSourceCache(List<File> sourceFiles) {
+        List<File> largeFiles = new ArrayList<>();
+        long largeFileBytes = 0;
+        for (File sourceFile : sourceFiles) {
+            long length = sourceFile.length();
+            if (length >= PAGE_CACHE_THRESHOLD) {
+                largeFiles.add(sourceFile);
+                largeFileBytes += length;
+            }
+        }
+        if (largeFiles.isEmpty()) {
+            return;
+        }
+        long residentBytes = PageCache.getResidentBytes(largeFiles);
+        if (residentBytes < 0) {
+            return;
+        }
+        // fincore counts whole pages
+        residentBytes = Math.min(residentBytes, largeFileBytes);
+        LOGGER.log(Level.INFO, "{0} of {1} source bytes are in the page cache",
+                new Object[]{residentBytes, largeFileBytes});
+        sourceCacheStatistics.add(largeFileBytes, residentBytes);
+    }
+
+    private static void readAhead(File file) {
+        long length = file.length();
+        if (length < PAGE_CACHE_THRESHOLD) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(
+                file.toPath(), StandardOpenOption.READ)) {
+            for (long position = 0; position < length;
+                    position += READ_AHEAD_CHUNK) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                long size = Math.min(READ_AHEAD_CHUNK, length - position);
+                channel.map(FileChannel.MapMode.READ_ONLY, position, size)
+                        .load();
+            }
+        } catch (IOException ex) {
+            // read ahead is just an optimization
+            LOGGER.log(Level.FINE, "could not read ahead " + file, ex);
+        }
+    }
+
+    private static String getHexString(byte[] bytes) {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (byte b : bytes) {
+            stringBuilder.append(String.format("%02x", b));
+        }
+        return stringBuilder.toString();
+    }
+}
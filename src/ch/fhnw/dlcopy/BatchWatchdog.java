@@ -0,0 +1,265 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.MEGA;
+import ch.fhnw.util.StorageDevice;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the throughput of all storage devices of a batch while their files
+ * are copied. A single storage device that writes at a few hundred KiB/s or
+ * hangs completely would otherwise hold up the whole batch.
+ * <p>
+ * Every {@link #PERIOD} seconds the bytes read from and written to every
+ * storage device in the {@link InstallStage#COPY} stage are sampled. A
+ * storage device is a straggler when its throughput is below
+ * {@link DLCopy#stragglerRatio} of the median throughput of the batch (the
+ * storage devices copying right now plus the ones that already finished
+ * copying) and also below {@link DLCopy#minimumWriteSpeed}. The absolute
+ * floor keeps healthy but slower storage devices (e.g. USB 2.0 flash drives
+ * in a batch of USB 3 flash drives) alive. A storage device that stays a
+ * straggler for {@link #STRAGGLER_PERIODS} periods or has no I/O at all for
+ * {@link #HUNG_PERIODS} periods is aborted: its thread is interrupted (which
+ * closes its channels) and it is marked as failed, so that the rest of the
+ * batch goes on.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class BatchWatchdog implements AutoCloseable {
+
+    /**
+     * the sampling period (in seconds)
+     */
+    public static final int PERIOD = 10;
+
+    /**
+     * the number of periods a storage device must be a straggler before it
+     * is aborted
+     */
+    public static final int STRAGGLER_PERIODS = 6;
+
+    /**
+     * the number of periods without any I/O before a storage device is
+     * aborted
+     */
+    public static final int HUNG_PERIODS = 12;
+
+    private static final Logger LOGGER
+            = Logger.getLogger(BatchWatchdog.class.getName());
+
+    private final Map<String, DeviceState> devices = new ConcurrentHashMap<>();
+    // the average copy throughputs of all storage devices that finished
+    // copying
+    private final List<Double> finishedThroughputs
+            = Collections.synchronizedList(new ArrayList<>());
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * creates and starts a new BatchWatchdog
+     */
+    public BatchWatchdog() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "batch watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(
+                this::check, PERIOD, PERIOD, TimeUnit.SECONDS);
+    }
+
+    /**
+     * starts watching a storage device (must be called by the thread that
+     * installs the storage device)
+     *
+     * @param storageDevice the storage device
+     */
+    public void deviceStarted(StorageDevice storageDevice) {
+        devices.put(storageDevice.getDevice(),
+                new DeviceState(storageDevice.getDevice()));
+    }
+
+    /**
+     * stops watching a storage device (must be called by the thread that
+     * installs the storage device)
+     *
+     * @param storageDevice the storage device
+     * @return the reason why the storage device was aborted or null, if the
+     * storage device was not aborted
+     */
+    public String deviceFinished(StorageDevice storageDevice) {
+        DeviceState state = devices.remove(storageDevice.getDevice());
+        if (state == null) {
+            return null;
+        }
+        synchronized (state) {
+            state.copying = false;
+            if (state.abortReason != null) {
+                // the interrupt was meant for this storage device only
+                Thread.interrupted();
+            }
+            return state.abortReason;
+        }
+    }
+
+    /**
+     * notifies the watchdog that a storage device entered a stage
+     *
+     * @param storageDevice the storage device
+     * @param stage the stage
+     */
+    public void stageStarted(StorageDevice storageDevice, InstallStage stage) {
+        DeviceState state = devices.get(storageDevice.getDevice());
+        if ((state != null) && (stage == InstallStage.COPY)) {
+            synchronized (state) {
+                state.copyStart = System.nanoTime();
+                state.copyStartBytes = getIOBytes(state.device);
+                state.lastBytes = state.copyStartBytes;
+                state.slowPeriods = 0;
+                state.idlePeriods = 0;
+                state.copying = true;
+            }
+        }
+    }
+
+    /**
+     * notifies the watchdog that a storage device left a stage
+     *
+     * @param storageDevice the storage device
+     * @param stage the stage
+     */
+    public void stageFinished(StorageDevice storageDevice, InstallStage stage) {
+        DeviceState state = devices.get(storageDevice.getDevice());
+        if ((state != null) && (stage == InstallStage.COPY)) {
+            synchronized (state) {
+                if (state.copying && (state.abortReason == null)) {
+                    double seconds
+                            = (System.nanoTime() - state.copyStart) / 1e9;
+                    long bytes
+                            = getIOBytes(state.device) - state.copyStartBytes;
+                    if (seconds > 0) {
+                        finishedThroughputs.add(bytes / seconds / MEGA);
+                    }
+                }
+                state.copying = false;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void check() {
+        try {
+            List<DeviceState> copyingDevices = new ArrayList<>();
+            List<Double> throughputs;
+            synchronized (finishedThroughputs) {
+                throughputs = new ArrayList<>(finishedThroughputs);
+            }
+            for (DeviceState state : devices.values()) {
+                synchronized (state) {
+                    if (state.copying) {
+                        long bytes = getIOBytes(state.device);
+                        state.throughput = (double) (bytes - state.lastBytes)
+                                / PERIOD / MEGA;
+                        state.lastBytes = bytes;
+                        copyingDevices.add(state);
+                        throughputs.add(state.throughput);
+                    }
+                }
+            }
+            if (copyingDevices.isEmpty()) {
+                return;
+            }
+            double median = getMedian(throughputs);
+
+            for (DeviceState state : copyingDevices) {
+                synchronized (state) {
+                    if (!state.copying || (state.abortReason != null)) {
+                        continue;
+                    }
+                    if (state.throughput == 0) {
+                        state.idlePeriods++;
+                    } else {
+                        state.idlePeriods = 0;
+                    }
+                    // a single storage device has nothing to compare with
+                    if ((throughputs.size() > 1) && (DLCopy.stragglerRatio > 0)
+                            && (state.throughput
+                            < DLCopy.stragglerRatio * median)
+                            && (state.throughput < DLCopy.minimumWriteSpeed)) {
+                        state.slowPeriods++;
+                        LOGGER.log(Level.WARNING, "straggler /dev/{0}: "
+                                + "{1} MiB/s (median: {2} MiB/s)",
+                                new Object[]{state.device,
+                                    String.format("%.1f", state.throughput),
+                                    String.format("%.1f", median)});
+                    } else {
+                        state.slowPeriods = 0;
+                    }
+
+                    if (state.idlePeriods >= HUNG_PERIODS) {
+                        abort(state, "no I/O on /dev/" + state.device
+                                + " for " + HUNG_PERIODS * PERIOD
+                                + " seconds");
+                    } else if (state.slowPeriods >= STRAGGLER_PERIODS) {
+                        abort(state, String.format("/dev/%s is too slow "
+                                + "(%.1f MiB/s, median of batch: %.1f MiB/s)",
+                                state.device, state.throughput, median));
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            // an exception would cancel all further checks
+            LOGGER.log(Level.WARNING, "", ex);
+        }
+    }
+
+    private static void abort(DeviceState state, String reason) {
+        LOGGER.log(Level.WARNING, "aborting: {0}", reason);
+        state.abortReason = reason;
+        state.thread.interrupt();
+    }
+
+    private static double getMedian(List<Double> values) {
+        Collections.sort(values);
+        int size = values.size();
+        if (size % 2 == 1) {
+            return values.get(size / 2);
+        }
+        return (values.get(size / 2 - 1) + values.get(size / 2)) / 2;
+    }
+
+    private static long getIOBytes(String device) {
+        long[] bytes = DLCopy.getIOBytes(device);
+        return bytes[0] + bytes[1];
+    }
+
+    private static class DeviceState {
+
+        private final String device;
+        private final Thread thread;
+        private boolean copying;
+        private long copyStart;
+        private long copyStartBytes;
+        private long lastBytes;
+        private double throughput;
+        private int slowPeriods;
+        private int idlePeriods;
+        private String abortReason;
+
+        DeviceState(String device) {
+            this.device = device;
+            thread = Thread.currentThread();
+        }
+    }
+}
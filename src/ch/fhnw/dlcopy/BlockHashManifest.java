@@ -0,0 +1,502 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.MEGA;
+import ch.fhnw.filecopier.Source;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * A manifest with the digests of all blocks of a set of files (e.g. the EFI
+ * and system files of a system source), grouped in sections. The block
+ * digests of every file are combined in a hash tree (merkle tree) and the
+ * roots of all files are combined into the root of the manifest.
+ * <p>
+ * Verifying a copy against the manifest needs no access to the source files.
+ * The copied files are read in block ranges by several threads and a
+ * mismatch is reported together with the affected blocks. The manifest is
+ * stored on the system partition of installed storage devices (see
+ * {@link #FILE_NAME}), so that later health checks can verify a storage
+ * device without the source. The EFI files are converted after copying
+ * (isolinux to syslinux, data partition mode), therefore only the system
+ * section is suitable for later health checks.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class BlockHashManifest {
+
+    /**
+     * the name of the manifest file on the system partition
+     */
+    public static final String FILE_NAME = "blockhashes.txt";
+
+    /**
+     * the name of the section with the EFI files
+     */
+    public static final String EFI_SECTION = "efi";
+
+    /**
+     * the name of the section with the system files
+     */
+    public static final String SYSTEM_SECTION = "system";
+
+    /**
+     * the size of the hashed blocks
+     */
+    public static final int BLOCK_SIZE = MEGA;
+
+    private static final Logger LOGGER
+            = Logger.getLogger(BlockHashManifest.class.getName());
+    // the number of blocks that a verification thread reads in one go
+    private static final int RANGE_BLOCKS = 64;
+    // the number of reported mismatches in an exception message
+    private static final int MAX_REPORTED_MISMATCHES = 10;
+
+    private final Map<String, Map<String, FileEntry>> sections
+            = new TreeMap<>();
+    private DigestAlgorithm algorithm = DLCopy.digestAlgorithm;
+
+    /**
+     * adds a section with the block digests of all files of a source
+     *
+     * @param name the name of the section
+     * @param source the source of the files
+     * @throws IOException if reading a file fails
+     * @throws NoSuchAlgorithmException if the digest algorithm is not
+     * available
+     */
+    public void addSection(String name, Source source)
+            throws IOException, NoSuchAlgorithmException {
+
+        Map<String, FileEntry> entries = new TreeMap<>();
+        File baseDirectory = source.getBaseDirectory();
+        String basePath = baseDirectory.getPath();
+        int baseLength = basePath.endsWith(File.separator)
+                ? basePath.length() : basePath.length() + 1;
+        List<File> files = new ArrayList<>();
+        listFiles(baseLength, baseDirectory, source.getPattern(),
+                source.isRecursive(), files);
+
+        MessageDigest messageDigest = algorithm.createMessageDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        for (File file : files) {
+            List<byte[]> blockDigests = new ArrayList<>();
+            long length;
+            try (FileChannel channel = FileChannel.open(
+                    file.toPath(), StandardOpenOption.READ)) {
+                length = channel.size();
+                for (long position = 0; position < length;
+                        position += BLOCK_SIZE) {
+                    readBlock(channel, buffer, position, length);
+                    messageDigest.update(buffer);
+                    blockDigests.add(messageDigest.digest());
+                }
+            }
+            String relativePath = file.getPath().substring(baseLength);
+            entries.put(relativePath, new FileEntry(length, blockDigests));
+        }
+        sections.put(name, entries);
+        LOGGER.log(Level.INFO, "added {0} files of {1} to section \"{2}\"",
+                new Object[]{entries.size(), baseDirectory, name});
+    }
+
+    /**
+     * checks if the manifest contains a section
+     *
+     * @param name the name of the section
+     * @return <code>true</code>, if the manifest contains the section,
+     * <code>false</code> otherwise
+     */
+    public boolean hasSection(String name) {
+        return sections.containsKey(name);
+    }
+
+    /**
+     * returns the root of the hash tree of all files in all sections
+     *
+     * @return the root of the hash tree of all files in all sections
+     * @throws NoSuchAlgorithmException if the digest algorithm is not
+     * available
+     */
+    public byte[] getRoot() throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = algorithm.createMessageDigest();
+        List<byte[]> leaves = new ArrayList<>();
+        for (Map.Entry<String, Map<String, FileEntry>> section
+                : sections.entrySet()) {
+            for (Map.Entry<String, FileEntry> entry
+                    : section.getValue().entrySet()) {
+                FileEntry fileEntry = entry.getValue();
+                byte[] fileRoot = getTreeRoot(
+                        fileEntry.blockDigests, messageDigest);
+                messageDigest.update((section.getKey() + '/' + entry.getKey()
+                        + ' ' + fileEntry.length)
+                        .getBytes(StandardCharsets.UTF_8));
+                messageDigest.update(fileRoot);
+                leaves.add(messageDigest.digest());
+            }
+        }
+        return getTreeRoot(leaves, messageDigest);
+    }
+
+    /**
+     * verifies the files of a directory against a section of the manifest
+     *
+     * @param name the name of the section
+     * @param directory the directory with the copied files
+     * @param threads the number of threads that read the files
+     * @throws IOException if a file is missing, has the wrong size or
+     * contains blocks that differ from the manifest
+     */
+    public void verify(String name, File directory, int threads)
+            throws IOException {
+
+        Map<String, FileEntry> entries = sections.get(name);
+        if (entries == null) {
+            throw new IOException("the manifest has no section \"" + name
+                    + "\"");
+        }
+
+        List<String> mismatches = new ArrayList<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(
+                Math.max(1, threads), runnable -> {
+                    Thread thread = new Thread(runnable, "verify " + name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            // (the results are collected in the order of files and blocks)
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (Map.Entry<String, FileEntry> entry : entries.entrySet()) {
+                File file = new File(directory, entry.getKey());
+                FileEntry fileEntry = entry.getValue();
+                if (!file.isFile()) {
+                    futures.add(CompletableFuture.completedFuture(
+                            Collections.singletonList(file + " is missing")));
+                    continue;
+                }
+                if (file.length() != fileEntry.length) {
+                    futures.add(CompletableFuture.completedFuture(
+                            Collections.singletonList(file + " has size "
+                                    + file.length() + " instead of "
+                                    + fileEntry.length)));
+                    continue;
+                }
+                int blockCount = fileEntry.blockDigests.size();
+                for (int start = 0; start < blockCount;
+                        start += RANGE_BLOCKS) {
+                    int firstBlock = start;
+                    int lastBlock
+                            = Math.min(blockCount, start + RANGE_BLOCKS) - 1;
+                    futures.add(executorService.submit(() -> verifyBlocks(
+                            file, fileEntry, firstBlock, lastBlock)));
+                }
+            }
+            for (Future<List<String>> future : futures) {
+                mismatches.addAll(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "interrupted while verifying " + directory);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("verifying " + directory + " failed", cause);
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        if (!mismatches.isEmpty()) {
+            for (String mismatch : mismatches) {
+                LOGGER.log(Level.WARNING, mismatch);
+            }
+            StringBuilder stringBuilder = new StringBuilder(
+                    directory + " differs from the manifest:");
+            for (String mismatch : mismatches.subList(0,
+                    Math.min(MAX_REPORTED_MISMATCHES, mismatches.size()))) {
+                stringBuilder.append('\n');
+                stringBuilder.append(mismatch);
+            }
+            throw new IOException(stringBuilder.toString());
+        }
+        LOGGER.log(Level.INFO, "{0} matches the manifest section \"{1}\"",
+                new Object[]{directory, name});
+    }
+
+    /**
+     * saves the manifest to a file
+     *
+     * @param file the file
+     * @throws IOException if writing the file fails
+     * @throws NoSuchAlgorithmException if the digest algorithm is not
+     * available
+     */
+    public void save(File file) throws IOException, NoSuchAlgorithmException {
+        try (BufferedWriter writer = Files.newBufferedWriter(
+                file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("algorithm " + algorithm.getName() + '\n');
+            writer.write("blockSize " + BLOCK_SIZE + '\n');
+            writer.write("root " + getHexString(getRoot()) + '\n');
+            for (Map.Entry<String, Map<String, FileEntry>> section
+                    : sections.entrySet()) {
+                writer.write("section " + section.getKey() + '\n');
+                for (Map.Entry<String, FileEntry> entry
+                        : section.getValue().entrySet()) {
+                    FileEntry fileEntry = entry.getValue();
+                    writer.write("file " + fileEntry.length + ' '
+                            + entry.getKey() + '\n');
+                    for (byte[] blockDigest : fileEntry.blockDigests) {
+                        writer.write(getHexString(blockDigest));
+                        writer.write('\n');
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * loads a manifest from a file
+     *
+     * @param file the file
+     * @return the loaded manifest
+     * @throws IOException if reading the file fails or the file is no valid
+     * manifest
+     */
+    public static BlockHashManifest load(File file) throws IOException {
+        BlockHashManifest manifest = new BlockHashManifest();
+        Map<String, FileEntry> entries = null;
+        List<byte[]> blockDigests = null;
+        try (BufferedReader reader = Files.newBufferedReader(
+                file.toPath(), StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null;
+                    line = reader.readLine()) {
+                String[] tokens = line.split(" ", 3);
+                switch (tokens[0]) {
+                    case "algorithm":
+                        try {
+                            manifest.algorithm
+                                    = DigestAlgorithm.forName(tokens[1]);
+                        } catch (NoSuchAlgorithmException ex) {
+                            throw new IOException("unsupported algorithm "
+                                    + tokens[1] + " in " + file, ex);
+                        }
+                        break;
+                    case "blockSize":
+                        if (Integer.parseInt(tokens[1]) != BLOCK_SIZE) {
+                            throw new IOException("unsupported block size "
+                                    + tokens[1] + " in " + file);
+                        }
+                        break;
+                    case "root":
+                        break;
+                    case "section":
+                        entries = new TreeMap<>();
+                        manifest.sections.put(tokens[1], entries);
+                        break;
+                    case "file":
+                        if (entries == null) {
+                            throw new IOException("file outside of a section "
+                                    + "in " + file);
+                        }
+                        blockDigests = new ArrayList<>();
+                        entries.put(tokens[2], new FileEntry(
+                                Long.parseLong(tokens[1]), blockDigests));
+                        break;
+                    default:
+                        if (blockDigests == null) {
+                            throw new IOException("invalid line \"" + line
+                                    + "\" in " + file);
+                        }
+                        blockDigests.add(getBytes(line));
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            throw new IOException(file + " is no valid manifest", ex);
+        }
+        return manifest;
+    }
+
+    private static void listFiles(int baseLength, File directory,
+            Pattern pattern, boolean recursive, List<File> files) {
+        File[] subFiles = directory.listFiles();
+        if (subFiles == null) {
+            LOGGER.log(Level.WARNING, "can not list {0}", directory);
+            return;
+        }
+        for (File subFile : subFiles) {
+            String relativePath = subFile.getPath().substring(baseLength);
+            if (!pattern.matcher(relativePath).matches()) {
+                continue;
+            }
+            if (subFile.isDirectory()) {
+                if (recursive) {
+                    listFiles(baseLength, subFile, pattern, true, files);
+                }
+            } else if (subFile.isFile()) {
+                files.add(subFile);
+            }
+        }
+    }
+
+    private List<String> verifyBlocks(File file, FileEntry fileEntry,
+            int firstBlock, int lastBlock)
+            throws IOException, NoSuchAlgorithmException {
+
+        MessageDigest messageDigest = algorithm.createMessageDigest();
+        FileChannel channel = null;
+        ByteBuffer buffer;
+        if (DLCopy.directIO && DirectIO.isSupported()) {
+            try {
+                // the storage device and not the page cache must be checked
+                channel = DirectIO.openForReading(file.toPath());
+            } catch (IOException ex) {
+                // e.g. tmpfs does not support direct I/O
+                LOGGER.log(Level.FINE, "can''t read {0} with direct I/O: {1}",
+                        new Object[]{file, ex.toString()});
+            }
+        }
+        boolean readDirectly = channel != null;
+        if (!readDirectly) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        } else {
+            try {
+                buffer = DirectIO.acquireBuffer();
+            } catch (InterruptedException ex) {
+                channel.close();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "interrupted while waiting for a buffer");
+            }
+        }
+
+        List<String> mismatches = new ArrayList<>();
+        int firstMismatch = -1;
+        try {
+            for (int block = firstBlock; block <= lastBlock; block++) {
+                readBlock(channel, buffer, (long) block * BLOCK_SIZE,
+                        fileEntry.length);
+                messageDigest.update(buffer);
+                boolean matches = MessageDigest.isEqual(
+                        fileEntry.blockDigests.get(block),
+                        messageDigest.digest());
+                if (!matches && (firstMismatch == -1)) {
+                    firstMismatch = block;
+                } else if (matches && (firstMismatch != -1)) {
+                    mismatches.add(getMismatch(file, firstMismatch,
+                            block - 1));
+                    firstMismatch = -1;
+                }
+            }
+            if (firstMismatch != -1) {
+                mismatches.add(getMismatch(file, firstMismatch, lastBlock));
+            }
+        } finally {
+            if (readDirectly) {
+                DirectIO.releaseBuffer(buffer);
+            }
+            channel.close();
+        }
+        return mismatches;
+    }
+
+    private static String getMismatch(File file, int firstBlock,
+            int lastBlock) {
+        return file + ": blocks " + firstBlock + "-" + lastBlock + " differ";
+    }
+
+    /**
+     * reads a block of a file (only the last block of a file is shorter than
+     * BLOCK_SIZE, so direct reads stay block aligned)
+     */
+    private static void readBlock(FileChannel channel, ByteBuffer buffer,
+            long position, long size) throws IOException {
+        buffer.clear();
+        buffer.limit(BLOCK_SIZE);
+        while (buffer.hasRemaining()
+                && (position + buffer.position() < size)) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                break;
+            }
+        }
+        buffer.flip();
+    }
+
+    private static byte[] getTreeRoot(List<byte[]> leaves,
+            MessageDigest messageDigest) {
+        if (leaves.isEmpty()) {
+            return messageDigest.digest();
+        }
+        List<byte[]> level = leaves;
+        while (level.size() > 1) {
+            List<byte[]> nextLevel = new ArrayList<>();
+            for (int i = 0, size = level.size(); i < size; i += 2) {
+                if (i + 1 < size) {
+                    messageDigest.update(level.get(i));
+                    messageDigest.update(level.get(i + 1));
+                    nextLevel.add(messageDigest.digest());
+                } else {
+                    // an odd node moves up unchanged
+                    nextLevel.add(level.get(i));
+                }
+            }
+            level = nextLevel;
+        }
+        return level.get(0);
+    }
+
+    private static String getHexString(byte[] bytes) {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (byte b : bytes) {
+            stringBuilder.append(String.format("%02x", b));
+        }
+        return stringBuilder.toString();
+    }
+
+    private static byte[] getBytes(String hexString) throws IOException {
+        if (hexString.length() % 2 != 0) {
+            throw new IOException("invalid digest \"" + hexString + "\"");
+        }
+        byte[] bytes = new byte[hexString.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(
+                    hexString.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static class FileEntry {
+
+        private final long length;
+        private final List<byte[]> blockDigests;
+
+        public FileEntry(long length, List<byte[]> blockDigests) {
+            this.length = length;
+            this.blockDigests = blockDigests;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.MEGA;
+import ch.fhnw.util.StorageDevice;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fast check for counterfeit storage devices that report more capacity
+ * than they really have. Such storage devices silently wrap writes beyond
+ * their real capacity to the beginning (or just drop them) and only fail when
+ * the installation already copied for minutes.
+ * <p>
+ * The check writes small signed blocks at sampled offsets across the whole
+ * reported size, reads them back with direct I/O (so that they really come
+ * from the storage device and not from the page cache) and checks their
+ * signatures. A block with the signature of another offset was wrapped, a
+ * block without a valid signature was lost. The samples are dense near the
+ * end of the storage device, where the missing capacity of counterfeit
+ * storage devices is.
+ * <p>
+ * <b>Warning:</b> The check overwrites the sampled blocks of the storage
+ * device, it must only be used on storage devices that are partitioned and
+ * formatted afterwards.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public final class CapacityCheck {
+
+    /**
+     * the result of a capacity check
+     */
+    public static final class Result {
+
+        private final int samples;
+        private final int wrappedBlocks;
+        private final int lostBlocks;
+        private final long firstBadOffset;
+
+        private Result(int samples, int wrappedBlocks, int lostBlocks,
+                long firstBadOffset) {
+            this.samples = samples;
+            this.wrappedBlocks = wrappedBlocks;
+            this.lostBlocks = lostBlocks;
+            this.firstBadOffset = firstBadOffset;
+        }
+
+        /**
+         * checks if the storage device has less capacity than it reports
+         *
+         * @return <code>true</code>, if the storage device has less capacity
+         * than it reports, <code>false</code> otherwise
+         */
+        public boolean isFake() {
+            return (wrappedBlocks + lostBlocks) > 0;
+        }
+
+        /**
+         * returns the number of blocks that were written to another offset
+         *
+         * @return the number of blocks that were written to another offset
+         */
+        public int getWrappedBlocks() {
+            return wrappedBlocks;
+        }
+
+        /**
+         * returns the number of blocks that could not be read back
+         *
+         * @return the number of blocks that could not be read back
+         */
+        public int getLostBlocks() {
+            return lostBlocks;
+        }
+
+        /**
+         * returns the offset of the first bad block (an upper bound of the
+         * real capacity of the storage device)
+         *
+         * @return the offset of the first bad block or -1, if there are no bad
+         * blocks
+         */
+        public long getFirstBadOffset() {
+            return firstBadOffset;
+        }
+
+        @Override
+        public String toString() {
+            if (!isFake()) {
+                return samples + " sampled blocks are OK";
+            }
+            return wrappedBlocks + " wrapped and " + lostBlocks
+                    + " lost blocks of " + samples
+                    + " sampled blocks, first bad block at "
+                    + firstBadOffset / MEGA + " MiB";
+        }
+    }
+
+    private static final Logger LOGGER
+            = Logger.getLogger(CapacityCheck.class.getName());
+    private static final int BLOCK_SIZE = 4096;
+    // the first MiB contains the partition table and the boot loader
+    private static final long OFFSET = MEGA;
+    // the number of blocks sampled uniformly across the storage device
+    private static final int UNIFORM_SAMPLES = 96;
+    // the number of blocks sampled in the last part of the storage device
+    private static final int END_SAMPLES = 64;
+    private static final int END_PART = 64;
+    private static final long MAGIC = 0x444c436f70794361L;
+    // for filling the blocks with pseudo random data
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private CapacityCheck() {
+    }
+
+    /**
+     * checks if a storage device has the capacity it reports
+     *
+     * @param storageDevice the storage device
+     * @return the result of the check
+     * @throws IOException if the storage device can't be opened (e.g. because
+     * direct I/O is not supported)
+     * @throws InterruptedException if the check was interrupted
+     */
+    public static Result check(StorageDevice storageDevice)
+            throws IOException, InterruptedException {
+
+        Path path = Paths.get("/dev/" + storageDevice.getDevice());
+        long size = storageDevice.getSize();
+        long seed = new Random().nextLong();
+        List<Long> offsets = getOffsets(size, seed);
+
+        ByteBuffer buffer = DirectIO.acquireBuffer();
+        try {
+            // counterfeit storage devices often fail when writing beyond
+            // their real capacity, these blocks are lost
+            Set<Long> failedWrites = new HashSet<>();
+            try (FileChannel channel = DirectIO.openForWriting(path)) {
+                for (long offset : offsets) {
+                    sign(buffer, offset, seed);
+                    try {
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer, offset + buffer.position());
+                        }
+                    } catch (ClosedByInterruptException ex) {
+                        throw new InterruptedException(
+                                "capacity check of " + path + " interrupted");
+                    } catch (IOException ex) {
+                        LOGGER.log(Level.FINE, "", ex);
+                        failedWrites.add(offset);
+                    }
+                }
+                try {
+                    channel.force(true);
+                } catch (ClosedByInterruptException ex) {
+                    throw new InterruptedException(
+                            "capacity check of " + path + " interrupted");
+                } catch (IOException ex) {
+                    // the blocks are checked when reading them back below
+                    LOGGER.log(Level.FINE, "", ex);
+                }
+            }
+
+            int wrappedBlocks = 0;
+            int lostBlocks = 0;
+            long firstBadOffset = -1;
+            try (FileChannel channel = DirectIO.openForReading(path)) {
+                for (long offset : offsets) {
+                    boolean wrapped = false;
+                    boolean lost = false;
+                    if (failedWrites.contains(offset)) {
+                        lost = true;
+                    } else {
+                        try {
+                            long signedOffset
+                                    = read(channel, buffer, offset, seed);
+                            if (signedOffset == -1) {
+                                lost = true;
+                            } else if (signedOffset != offset) {
+                                wrapped = true;
+                            }
+                        } catch (ClosedByInterruptException ex) {
+                            throw new InterruptedException("capacity check "
+                                    + "of " + path + " interrupted");
+                        } catch (IOException ex) {
+                            // counterfeit storage devices often fail when
+                            // reading beyond their real capacity
+                            LOGGER.log(Level.FINE, "", ex);
+                            lost = true;
+                        }
+                    }
+                    if (wrapped) {
+                        wrappedBlocks++;
+                    } else if (lost) {
+                        lostBlocks++;
+                    }
+                    if ((wrapped || lost) && (firstBadOffset == -1)) {
+                        firstBadOffset = offset;
+                    }
+                }
+            }
+
+            Result result = new Result(offsets.size(),
+                    wrappedBlocks, lostBlocks, firstBadOffset);
+            LOGGER.log(result.isFake() ? Level.WARNING : Level.INFO,
+                    "capacity check of {0}: {1}", new Object[]{path, result});
+            return result;
+
+        } finally {
+            DirectIO.releaseBuffer(buffer);
+        }
+    }
+
+    private static List<Long> getOffsets(long size, long seed) {
+        long blocks = (size - OFFSET) / BLOCK_SIZE;
+        Random random = new Random(seed);
+        // sorted and without duplicates
+        TreeSet<Long> offsets = new TreeSet<>();
+
+        // one random block in every stratum of the storage device
+        for (int i = 0; i < UNIFORM_SAMPLES; i++) {
+            long stratumStart = blocks * i / UNIFORM_SAMPLES;
+            long stratumEnd = blocks * (i + 1) / UNIFORM_SAMPLES;
+            offsets.add(getOffset(stratumStart
+                    + (long) (random.nextDouble()
+                    * (stratumEnd - stratumStart))));
+        }
+
+        // random blocks in the last part of the storage device
+        long endStart = blocks - blocks / END_PART;
+        for (int i = 0; i < END_SAMPLES; i++) {
+            offsets.add(getOffset(endStart
+                    + (long) (random.nextDouble() * (blocks - endStart))));
+        }
+
+        // the last block and blocks at exponentially growing distances to
+        // the end of the storage device
+        for (long distance = 1; distance <= blocks; distance *= 2) {
+            offsets.add(getOffset(blocks - distance));
+        }
+
+        return new ArrayList<>(offsets);
+    }
+
+    private static long getOffset(long block) {
+        return OFFSET + block * BLOCK_SIZE;
+    }
+
+    private static void sign(ByteBuffer buffer, long offset, long seed) {
+        // the block starts with its signature, the rest is filled with
+        // pseudo random data derived from the signature (some controllers
+        // compress or deduplicate)
+        buffer.clear();
+        buffer.limit(BLOCK_SIZE);
+        buffer.putLong(MAGIC);
+        buffer.putLong(seed);
+        buffer.putLong(offset);
+        for (long value = seed ^ offset; buffer.hasRemaining(); value++) {
+            buffer.putLong(value * MULTIPLIER);
+        }
+        buffer.flip();
+    }
+
+    // returns the offset of the signature in the block or -1, if the block
+    // has no valid signature
+    private static long read(FileChannel channel, ByteBuffer buffer,
+            long offset, long seed) throws IOException {
+        buffer.clear();
+        buffer.limit(BLOCK_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("unexpected end of device");
+            }
+        }
+        buffer.flip();
+        if ((buffer.getLong() != MAGIC) || (buffer.getLong() != seed)) {
+            return -1;
+        }
+        long signedOffset = buffer.getLong();
+        for (long value = seed ^ signedOffset; buffer.hasRemaining();
+                value++) {
+            if (buffer.getLong() != value * MULTIPLIER) {
+                return -1;
+            }
+        }
+        return signedOffset;
+    }
+}
@@ -0,0 +1,116 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.MEGA;
+import ch.fhnw.util.StorageDevice;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A short benchmark that checks if a storage device handles concurrent writes
+ * to two partitions faster than the same writes one after the other. Many
+ * cheap USB flash drives get much slower when written at two places at the
+ * same time. The results are cached per storage device model, so that only
+ * the first storage device of a batch is benchmarked.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class ConcurrentWriteBenchmark {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(ConcurrentWriteBenchmark.class.getName());
+    private static final int SAMPLE_SIZE = 8 * MEGA;
+    private static final Map<String, Boolean> RESULTS
+            = new ConcurrentHashMap<>();
+
+    private ConcurrentWriteBenchmark() {
+    }
+
+    /**
+     * checks if concurrent writes to two partitions of a storage device are
+     * faster than sequential writes
+     * <p>
+     * <b>Warning:</b> This overwrites the beginning of both partitions!
+     *
+     * @param storageDevice the storage device
+     * @param firstPartition the device file of the first partition (e.g.
+     * "/dev/sdb2")
+     * @param secondPartition the device file of the second partition (e.g.
+     * "/dev/sdb3")
+     * @return <code>true</code>, if concurrent writes are faster,
+     * <code>false</code> otherwise (or if the benchmark failed)
+     */
+    public static boolean isConcurrentWritingFaster(
+            StorageDevice storageDevice, String firstPartition,
+            String secondPartition) {
+        String key = storageDevice.getVendor() + ' '
+                + storageDevice.getModel() + ' ' + storageDevice.getSize();
+        return RESULTS.computeIfAbsent(key,
+                k -> measure(firstPartition, secondPartition));
+    }
+
+    private static boolean measure(String firstPartition,
+            String secondPartition) {
+
+        byte[] data = new byte[SAMPLE_SIZE];
+        // random data, some controllers compress or deduplicate
+        new Random().nextBytes(data);
+
+        try {
+            // sequential writes
+            long start = System.nanoTime();
+            write(firstPartition, 0, data);
+            write(secondPartition, 0, data);
+            long sequentialTime = System.nanoTime() - start;
+
+            // concurrent writes (at other offsets so that nothing is merged
+            // with the previous writes)
+            start = System.nanoTime();
+            FutureTask<Void> secondWrite = new FutureTask<>(() -> {
+                write(secondPartition, SAMPLE_SIZE, data);
+                return null;
+            });
+            new Thread(secondWrite).start();
+            write(firstPartition, SAMPLE_SIZE, data);
+            secondWrite.get();
+            long concurrentTime = System.nanoTime() - start;
+
+            boolean concurrentIsFaster = concurrentTime < sequentialTime;
+            LOGGER.log(Level.INFO, "writing 2 x {0} Byte to {1} and {2}: "
+                    + "sequential = {3} ms, concurrent = {4} ms",
+                    new Object[]{SAMPLE_SIZE, firstPartition, secondPartition,
+                        sequentialTime / 1_000_000, concurrentTime / 1_000_000});
+            return concurrentIsFaster;
+
+        } catch (IOException | ExecutionException ex) {
+            LOGGER.log(Level.WARNING, "concurrent write benchmark failed", ex);
+            return false;
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "concurrent write benchmark interrupted",
+                    ex);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void write(String device, long position, byte[] data)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                Paths.get(device), StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+            channel.force(true);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.MEGA;
+import ch.fhnw.util.StorageDevice;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adapts the number of storage devices that copy files concurrently to the
+ * aggregate write throughput of a batch. The best number depends on the hub,
+ * the controllers and the source and can't be configured once for all
+ * stations.
+ * <p>
+ * Every {@link #PERIOD} seconds the bytes written to all copying storage
+ * devices are sampled. The controller works AIMD-style: As long as more
+ * storage devices wait for the {@link InstallStage#COPY} stage and the
+ * aggregate throughput grows with every additional storage device, the limit
+ * is increased by one. When the aggregate throughput drops below the one of
+ * the next lower limit, the limit is decreased multiplicatively. All
+ * decisions are logged, so that the hardware of a station can be tuned.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class CopyConcurrencyController implements AutoCloseable {
+
+    /**
+     * the sampling period (in seconds)
+     */
+    public static final int PERIOD = 15;
+
+    private static final Logger LOGGER
+            = Logger.getLogger(CopyConcurrencyController.class.getName());
+    // a throughput difference below this margin is considered noise
+    private static final double MARGIN = 0.05;
+    private static final double DECREASE_FACTOR = 0.75;
+    // the number of periods after which a measured throughput is outdated
+    // (the storage devices in a batch change all the time)
+    private static final int MEMORY = 12;
+
+    private final AdjustableSemaphore semaphore;
+    private final int maximum;
+    private final Map<String, AtomicLong> lastWrittenBytes
+            = new ConcurrentHashMap<>();
+    // the bytes written by storage devices that finished copying during the
+    // current period
+    private final AtomicLong finishedBytes = new AtomicLong();
+    // the smoothed aggregate throughputs (by limit)
+    private final Map<Integer, Measurement> measurements = new TreeMap<>();
+    private ScheduledExecutorService scheduler;
+    private int limit;
+    private int period;
+    private boolean settling;
+
+    /**
+     * creates a new CopyConcurrencyController
+     *
+     * @param initialLimit the initial number of storage devices that may copy
+     * concurrently
+     * @param maximum the maximum number of storage devices that may copy
+     * concurrently
+     */
+    public CopyConcurrencyController(int initialLimit, int maximum) {
+        this.maximum = maximum;
+        limit = Math.max(1, Math.min(initialLimit, maximum));
+        semaphore = new AdjustableSemaphore(limit);
+    }
+
+    /**
+     * returns the semaphore that limits the number of storage devices in the
+     * {@link InstallStage#COPY} stage
+     *
+     * @return the semaphore that limits the number of storage devices in the
+     * {@link InstallStage#COPY} stage
+     */
+    public Semaphore getSemaphore() {
+        return semaphore;
+    }
+
+    /**
+     * starts measuring and adapting
+     */
+    public synchronized void start() {
+        LOGGER.log(Level.INFO, "adaptive copy concurrency: starting with {0} "
+                + "storage device(s), maximum: {1}",
+                new Object[]{limit, maximum});
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "copy concurrency control");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(
+                this::adapt, PERIOD, PERIOD, TimeUnit.SECONDS);
+    }
+
+    /**
+     * notifies the controller that a storage device started copying
+     *
+     * @param storageDevice the storage device
+     */
+    public void copyStarted(StorageDevice storageDevice) {
+        String device = storageDevice.getDevice();
+        lastWrittenBytes.put(device, new AtomicLong(getWrittenBytes(device)));
+    }
+
+    /**
+     * notifies the controller that a storage device finished copying
+     *
+     * @param storageDevice the storage device
+     */
+    public void copyFinished(StorageDevice storageDevice) {
+        String device = storageDevice.getDevice();
+        AtomicLong last = lastWrittenBytes.remove(device);
+        if (last != null) {
+            finishedBytes.addAndGet(getWrittenBytes(device) - last.get());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        StringBuilder stringBuilder = new StringBuilder();
+        for (Map.Entry<Integer, Measurement> entry
+                : measurements.entrySet()) {
+            stringBuilder.append(String.format(" %d: %.1f MiB/s",
+                    entry.getKey(), entry.getValue().throughput));
+        }
+        LOGGER.log(Level.INFO, "adaptive copy concurrency: finished with "
+                + "limit {0}, aggregate throughput by limit:{1}",
+                new Object[]{limit, stringBuilder});
+    }
+
+    private synchronized void adapt() {
+        try {
+            period++;
+
+            // sample all copying storage devices
+            long bytes = finishedBytes.getAndSet(0);
+            StringBuilder devices = new StringBuilder();
+            for (Map.Entry<String, AtomicLong> entry
+                    : lastWrittenBytes.entrySet()) {
+                long written = getWrittenBytes(entry.getKey());
+                long delta = written - entry.getValue().getAndSet(written);
+                bytes += delta;
+                devices.append(String.format(" %s: %.1f MiB/s",
+                        entry.getKey(), (double) delta / PERIOD / MEGA));
+            }
+            double throughput = (double) bytes / PERIOD / MEGA;
+            int copying = lastWrittenBytes.size();
+            int waiting = semaphore.getQueueLength();
+            LOGGER.log(Level.FINE, "adaptive copy concurrency: limit {0}, "
+                    + "{1} copying, {2} waiting, aggregate {3} MiB/s,{4}",
+                    new Object[]{limit, copying, waiting,
+                        String.format("%.1f", throughput), devices});
+
+            if (settling) {
+                // the period after a change mixes both limits
+                settling = false;
+                return;
+            }
+            if (copying < limit) {
+                // the limit is not reached, the throughput says nothing
+                // about it
+                return;
+            }
+
+            Measurement current = measurements.get(limit);
+            if ((current == null) || (period - current.period > MEMORY)) {
+                current = new Measurement(throughput, period);
+                measurements.put(limit, current);
+            } else {
+                current.update(throughput, period);
+            }
+            Measurement lower = getRecentMeasurement(limit - 1);
+            Measurement higher = getRecentMeasurement(limit + 1);
+
+            if ((lower != null)
+                    && (current.throughput < lower.throughput * (1 - MARGIN))) {
+                int newLimit = Math.min(limit - 1,
+                        (int) (limit * DECREASE_FACTOR));
+                setLimit(Math.max(1, newLimit), String.format(
+                        "aggregate throughput %.1f MiB/s is below %.1f MiB/s "
+                        + "with %d storage device(s)", current.throughput,
+                        lower.throughput, limit - 1), devices);
+
+            } else if ((waiting > 0) && (limit < maximum)
+                    && ((lower == null) || (current.throughput
+                    > lower.throughput * (1 + MARGIN)))
+                    && ((higher == null) || (higher.throughput
+                    > current.throughput * (1 + MARGIN)))) {
+                setLimit(limit + 1, String.format(
+                        "aggregate throughput %.1f MiB/s is still growing, "
+                        + "%d storage device(s) waiting",
+                        current.throughput, waiting), devices);
+            }
+        } catch (RuntimeException ex) {
+            // an exception would cancel all further adaptions
+            LOGGER.log(Level.WARNING, "", ex);
+        }
+    }
+
+    private Measurement getRecentMeasurement(int limit) {
+        Measurement measurement = measurements.get(limit);
+        if ((measurement == null) || (period - measurement.period > MEMORY)) {
+            return null;
+        }
+        return measurement;
+    }
+
+    private void setLimit(int newLimit, String reason, CharSequence devices) {
+        LOGGER.log(Level.INFO, "adaptive copy concurrency: changing limit "
+                + "from {0} to {1} ({2}), storage devices:{3}",
+                new Object[]{limit, newLimit, reason, devices});
+        if (newLimit > limit) {
+            semaphore.release(newLimit - limit);
+        } else {
+            // storage devices that are copying right now just don't give
+            // their permits to the next ones
+            semaphore.reducePermits(limit - newLimit);
+        }
+        limit = newLimit;
+        settling = true;
+    }
+
+    private static long getWrittenBytes(String device) {
+        return DLCopy.getIOBytes(device)[1];
+    }
+
+    private static class Measurement {
+
+        private double throughput;
+        private int period;
+
+        Measurement(double throughput, int period) {
+            this.throughput = throughput;
+            this.period = period;
+        }
+
+        void update(double newThroughput, int newPeriod) {
+            // exponentially weighted moving average
+            throughput = (throughput + newThroughput) / 2;
+            period = newPeriod;
+        }
+    }
+
+    private static class AdjustableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        AdjustableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -16,16 +16,20 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -33,7 +37,9 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -77,12 +83,177 @@ public class DLCopy {
      */
     public static String systemPartitionLabel;
 
+    /**
+     * if the EFI partition should be created once per installation batch as
+     * an image and then written to all storage devices of the batch
+     */
+    public static boolean useEfiImageTemplate = true;
+
+    /**
+     * the directory where prebuilt system partition images are cached or null,
+     * if the system partition should be created and filled on every storage
+     * device
+     */
+    public static File systemImageCacheDirectory;
+
+    /**
+     * if several storage devices should be installed concurrently in a
+     * pipeline of installation stages (see {@link InstallPipeline})
+     */
+    public static boolean pipelinedInstallation;
+
+    /**
+     * if the EFI and system files should be copied into RAM before installing
+     * a batch of storage devices (see {@link RamStagedSystemSource})
+     */
+    public static boolean ramStagedSource;
+
+    /**
+     * if the data partition is formatted before or while the system files are
+     * copied
+     */
+    public static FormattingMode dataPartitionFormattingMode
+            = FormattingMode.AUTO;
+
+    /**
+     * if copied files should be dropped from the page cache so that the
+     * source files stay cached for the next storage device of a batch (see
+     * {@link BatchFileCopier})
+     */
+    public static boolean pageCacheManagement = true;
+
+    /**
+     * if large files and the random data of the data partition should be
+     * written with direct I/O (see {@link DirectIO})
+     */
+    public static boolean directIO = true;
+
+    /**
+     * the maximum number of block writes in flight per storage device (see
+     * {@link QueuedBlockWriter})
+     */
+    public static int writeQueueDepth = 4;
+
+    /**
+     * if files that need not be hashed should be copied within the kernel
+     * (see {@link BatchFileCopier})
+     */
+    public static boolean kernelCopy = true;
+
+    /**
+     * how copied files are checked (when copy checks are enabled)
+     */
+    public static VerificationMode verificationMode = VerificationMode.FULL;
+
+    /**
+     * the number of random blocks per squashfs image that are checked in the
+     * {@link VerificationMode#SAMPLED} mode (in addition to the first and the
+     * last block)
+     */
+    public static int verificationSamples = 256;
+
+    /**
+     * the seed for selecting the sampled blocks or <code>null</code>, if a
+     * random seed should be used (the seed is logged, so that a failed
+     * verification can be reproduced)
+     */
+    public static Long verificationSeed;
+
+    /**
+     * if the copied EFI and system files should be verified against a block
+     * hash manifest of the source that is then stored on the system partition
+     * (see {@link BlockHashManifest})
+     */
+    public static boolean blockHashManifest;
+
+    /**
+     * if md5sum.txt of the system source should be used as the reference
+     * when checking copied files (see
+     * {@link SystemSource#getReferenceDigests()})
+     */
+    public static boolean md5sumReference = true;
+
+    /**
+     * the digest algorithm for checking copies
+     */
+    public static DigestAlgorithm digestAlgorithm = DigestAlgorithm.MD5;
+
+    /**
+     * the memory budget of the digest cache (see {@link DigestCache})
+     */
+    public static long digestCacheMemoryBudget = 16 * MEGA;
+
+    /**
+     * the directory of the run history database (see {@link RunHistory}) or
+     * null, if no run history should be recorded
+     */
+    public static File runHistoryDirectory = new File(
+            System.getProperty("user.home"), ".dlcopy/runhistory");
+
+    /**
+     * if storage devices should be checked for fake capacities before an
+     * installation (see {@link CapacityCheck})
+     */
+    public static boolean capacityCheck;
+
+    /**
+     * the mode for qualifying storage devices before an installation (see
+     * {@link DeviceQualification})
+     */
+    public static QualificationMode deviceQualification
+            = QualificationMode.OFF;
+
+    /**
+     * the minimum sequential write speed (in MiB/s) of storage devices that
+     * are not classified as slow by the device qualification (storage devices
+     * above this speed are never aborted as stragglers)
+     */
+    public static double minimumWriteSpeed = 4;
+
+    /**
+     * the fraction of the median copy throughput of a batch below which a
+     * storage device is a straggler, if its throughput is also below
+     * {@link #minimumWriteSpeed} (see {@link BatchWatchdog}, 0 disables
+     * aborting stragglers)
+     */
+    public static double stragglerRatio = 0.2;
+
+    /**
+     * the maximum number of storage devices that copy concurrently in a
+     * pipelined installation when the number is adapted to the aggregate
+     * throughput (see {@link CopyConcurrencyController}) or 0, if the limit
+     * of the {@link InstallStage#COPY} stage is fixed
+     */
+    public static int adaptiveCopyConcurrency;
+
+    /**
+     * if the storage devices of a pipelined installation should be started
+     * balanced across USB host controllers and hubs (see
+     * {@link UsbTopology})
+     */
+    public static boolean topologyAwareScheduling = true;
+
+    /**
+     * if the block layer settings of storage devices should be tuned while
+     * they are installed (see {@link QueueTuning})
+     */
+    public static boolean queueTuning;
+
+    /**
+     * the policy for when copied data is explicitly flushed to the storage
+     * device
+     */
+    public static DurabilityMode durabilityMode = DurabilityMode.BEFORE_UMOUNT;
+
     private static final Logger LOGGER
             = Logger.getLogger(DLCopy.class.getName());
-    private static final ProcessExecutor PROCESS_EXECUTOR
-            = new ProcessExecutor();
+    // ProcessExecutor is not thread-safe and the installation stages of
+    // several storage devices may run concurrently
+    private static final ThreadLocal<ProcessExecutor> PROCESS_EXECUTOR
+            = ThreadLocal.withInitial(WatchedProcessExecutor::new);
     private static final long MINIMUM_PARTITION_SIZE = 200 * MEGA;
     private static final long MINIMUM_FREE_MEMORY = 300 * MEGA;
+    private static final int VERIFICATION_THREADS = 4;
     private static DBusConnection dbusSystemConnection;
 
     static {
@@ -99,6 +270,25 @@ public class DLCopy {
      * @param args the command line arguments
      */
     public static void main(final String args[]) {
+
+        // print the run history without starting the GUI
+        // (e.g. "--runHistoryReport" or "--runHistoryReport <serial>")
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--runHistoryReport")) {
+                String serial = null;
+                if ((i != args.length - 1) && !args[i + 1].startsWith("--")) {
+                    serial = args[i + 1];
+                }
+                for (int j = 0; j < args.length - 1; j++) {
+                    if (args[j].equals("--runHistory")) {
+                        runHistoryDirectory = new File(args[j + 1]);
+                    }
+                }
+                printRunHistoryReport(serial);
+                return;
+            }
+        }
+
         java.awt.EventQueue.invokeLater(() -> {
             DLCopySwingGUI gui = new DLCopySwingGUI(args);
             gui.init();
@@ -106,6 +296,45 @@ public class DLCopy {
         });
     }
 
+    private static void printRunHistoryReport(String serial) {
+        RunHistory runHistory = RunHistory.getInstance();
+        if (runHistory == null) {
+            System.err.println("the run history is not available");
+            System.exit(-1);
+        }
+        try {
+            runHistory.printReport(System.out, serial);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.SEVERE, "", ex);
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * returns the number of bytes read from and written to a storage device
+     * since it was attached
+     *
+     * @param device the storage device (e.g. "sdb")
+     * @return the number of read bytes (index 0) and written bytes (index 1)
+     * or zeros, if the statistics of the storage device are not available
+     */
+    static long[] getIOBytes(String device) {
+        try {
+            String[] tokens = readOneLineFile(new File(
+                    "/sys/block/" + device + "/stat")).trim().split("\\s+");
+            // the 3rd and 7th field are the numbers of read and written
+            // sectors (always 512 bytes)
+            return new long[]{
+                Long.parseLong(tokens[2]) * 512,
+                Long.parseLong(tokens[6]) * 512
+            };
+        } catch (IOException | NumberFormatException
+                | ArrayIndexOutOfBoundsException ex) {
+            LOGGER.log(Level.FINE, "", ex);
+            return new long[2];
+        }
+    }
+
     /**
      * returns the enlarged system size (safe size for partition creation)
      *
@@ -188,7 +417,7 @@ public class DLCopy {
         }
 
         // install MBR
-        int exitValue = PROCESS_EXECUTOR.executeScript(
+        int exitValue = PROCESS_EXECUTOR.get().executeScript(
                 "cat " + source.getMbrPath() + " > " + device + '\n'
                 + "sync");
         if (exitValue != 0) {
@@ -236,55 +465,177 @@ public class DLCopy {
             throws InterruptedException, IOException,
             DBusException, NoSuchAlgorithmException {
 
-        // determine size and state
-        String device = "/dev/" + storageDevice.getDevice();
-        long storageDeviceSize = storageDevice.getSize();
-        PartitionSizes partitionSizes
-                = installerOrUpgrader.getPartitionSizes(storageDevice);
+        InstallationTarget target = new InstallationTarget(
+                source, storageDevice, installerOrUpgrader);
+
+        long start = installerOrUpgrader.stageStarted(
+                storageDevice, InstallStage.PARTITION);
+        partitionStorageDevice(target, installerOrUpgrader, dlCopyGUI);
+        installerOrUpgrader.stageFinished(
+                storageDevice, InstallStage.PARTITION, start);
+
+        start = installerOrUpgrader.stageStarted(
+                storageDevice, InstallStage.FORMAT);
+        createFileSystems(target, exchangePartitionLabel,
+                personalDataPartitionEncryption, personalEncryptionPassword,
+                secondaryDataPartitionEncryption, secondaryEncryptionPassword,
+                randomFillDataPartition, installerOrUpgrader, dlCopyGUI);
+        installerOrUpgrader.stageFinished(
+                storageDevice, InstallStage.FORMAT, start);
+
+        boolean installed = false;
+        try {
+            start = installerOrUpgrader.stageStarted(
+                    storageDevice, InstallStage.COPY);
+            copyFiles(source, fileCopier, target, installerOrUpgrader,
+                    checkCopies, dlCopyGUI);
+            installerOrUpgrader.stageFinished(
+                    storageDevice, InstallStage.COPY, start);
+
+            start = installerOrUpgrader.stageStarted(
+                    storageDevice, InstallStage.BOOT_SECTOR);
+            writeBootSector(source, target, installerOrUpgrader, dlCopyGUI);
+            installerOrUpgrader.stageFinished(
+                    storageDevice, InstallStage.BOOT_SECTOR, start);
+            installed = true;
+        } finally {
+            // never leave the data partition formatting running when failing
+            // (waiting could take forever on a hung storage device)
+            if (!installed) {
+                target.cancelDataPartitionFormatting();
+            }
+        }
+
+        source.unmountTmpPartitions();
+    }
+
+    /**
+     * creates the partition table on a target storage device (the first stage
+     * of an installation)
+     *
+     * @param target the installation target
+     * @param installerOrUpgrader the Installer or Upgrader that is calling this
+     * method
+     * @param dlCopyGUI the program GUI
+     * @throws InterruptedException when the installation was interrupted
+     * @throws IOException when an I/O exception occurs
+     * @throws DBusException when there was a problem with DBus
+     */
+    public static void partitionStorageDevice(InstallationTarget target,
+            InstallerOrUpgrader installerOrUpgrader, DLCopyGUI dlCopyGUI)
+            throws InterruptedException, IOException, DBusException {
+
+        // update GUI
+        installerOrUpgrader.showCreatingFileSystems();
+
+        String device = target.getDevice();
+        long storageDeviceSize = target.getStorageDevice().getSize();
+        PartitionSizes partitionSizes = target.getPartitionSizes();
+        PartitionState partitionState = target.getPartitionState();
+        String efiDevice = target.getEfiDevice();
+        String exchangeDevice = target.getExchangeDevice();
+        String persistenceDevice = target.getDataDevice();
+        String systemDevice = target.getSystemDevice();
+
+        // determine exact partition sizes
+        long overhead = storageDeviceSize - getEnlargedSystemSize(
+                installerOrUpgrader.getSourceSystemSize());
         int exchangeMB = partitionSizes.getExchangeMB();
-        PartitionState partitionState = getPartitionState(storageDeviceSize,
-                DLCopy.getEnlargedSystemSize(source.getSystemSize()));
+        int persistenceMB = partitionSizes.getPersistenceMB();
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.log(Level.FINEST, "size of {0} = {1} Byte\n"
+                    + "overhead = {2} Byte\n"
+                    + "exchangeMB = {3} MiB\n"
+                    + "persistenceMB = {4} MiB",
+                    new Object[]{device, storageDeviceSize, overhead,
+                        exchangeMB, persistenceMB
+                    });
+        }
 
-        StorageDevice.Type deviceType = storageDevice.getType();
-        boolean pPartition
-                = deviceType == StorageDevice.Type.SDMemoryCard
-                || deviceType == StorageDevice.Type.NVMe;
-
-        // determine devices
-        String destinationEfiDevice = null;
-        String destinationExchangeDevice = null;
-        String destinationDataDevice = null;
-        String destinationSystemDevice;
+        // assemble partition table
+        // The boot partition is actually formatted with FAT32, but "hidden"
+        // by using the EFI partition type.
+        PartitionTableWriter partitionTableWriter
+                = new PartitionTableWriter(device, storageDeviceSize);
+        List<Path> partitionDeviceNodes = new ArrayList<>();
+        partitionDeviceNodes.add(Paths.get(efiDevice));
+        partitionDeviceNodes.add(Paths.get(systemDevice));
         switch (partitionState) {
             case ONLY_SYSTEM:
-                destinationEfiDevice = device + (pPartition ? "p1" : '1');
-                destinationSystemDevice = device + (pPartition ? "p2" : '2');
+                // create two partitions:
+                //  1) efi (EFI)
+                //  2) system (Linux)
+                partitionTableWriter.addPartition(EFI_PARTITION_SIZE,
+                        PartitionTableWriter.TYPE_EFI, true);
+                partitionTableWriter.addLastPartition(
+                        PartitionTableWriter.TYPE_LINUX, false);
                 break;
 
             case PERSISTENCE:
-                destinationEfiDevice = device + (pPartition ? "p1" : '1');
-                destinationDataDevice = device + (pPartition ? "p2" : '2');
-                destinationSystemDevice = device + (pPartition ? "p3" : '3');
+                // create three partitions:
+                //  1) efi (EFI)
+                //  2) persistence (Linux)
+                //  3) system (Linux)
+                partitionTableWriter.addPartition(EFI_PARTITION_SIZE,
+                        PartitionTableWriter.TYPE_EFI, true);
+                partitionTableWriter.addPartition(
+                        EFI_PARTITION_SIZE + persistenceMB,
+                        PartitionTableWriter.TYPE_LINUX, false);
+                partitionTableWriter.addLastPartition(
+                        PartitionTableWriter.TYPE_LINUX, false);
+                partitionDeviceNodes.add(Paths.get(persistenceDevice));
                 break;
 
             case EXCHANGE:
                 if (exchangeMB == 0) {
-                    destinationEfiDevice = device + (pPartition ? "p1" : '1');
-                    destinationDataDevice = device + (pPartition ? "p2" : '2');
-                    destinationSystemDevice = device + (pPartition ? "p3" : '3');
+                    // create three partitions:
+                    //  1) efi (EFI)
+                    //  2) persistence (Linux)
+                    //  3) system (Linux)
+                    partitionTableWriter.addPartition(EFI_PARTITION_SIZE,
+                            PartitionTableWriter.TYPE_EFI, true);
+                    partitionTableWriter.addPartition(
+                            EFI_PARTITION_SIZE + persistenceMB,
+                            PartitionTableWriter.TYPE_LINUX, false);
+                    partitionTableWriter.addLastPartition(
+                            PartitionTableWriter.TYPE_LINUX, false);
+                    partitionDeviceNodes.add(Paths.get(persistenceDevice));
+
                 } else {
-                    destinationEfiDevice
-                            = device + (pPartition ? "p1" : '1');
-                    destinationExchangeDevice
-                            = device + (pPartition ? "p2" : '2');
-                    if (partitionSizes.getPersistenceMB() == 0) {
-                        destinationSystemDevice
-                                = device + (pPartition ? "p3" : '3');
+                    // determine type of exchange partition
+                    byte exchangePartitionType;
+                    String fileSystem = installerOrUpgrader.
+                            getExchangePartitionFileSystem();
+                    if (fileSystem.equalsIgnoreCase("fat32")) {
+                        exchangePartitionType
+                                = PartitionTableWriter.TYPE_FAT32_LBA;
+                    } else {
+                        // exFAT & NTFS
+                        exchangePartitionType
+                                = PartitionTableWriter.TYPE_NTFS_EXFAT;
+                    }
+
+                    //  1) efi (EFI)
+                    //  2) exchange (exFAT, FAT32 or NTFS)
+                    partitionTableWriter.addPartition(EFI_PARTITION_SIZE,
+                            PartitionTableWriter.TYPE_EFI, true);
+                    partitionTableWriter.addPartition(
+                            EFI_PARTITION_SIZE + exchangeMB,
+                            exchangePartitionType, false);
+                    partitionDeviceNodes.add(Paths.get(exchangeDevice));
+                    if (persistenceMB == 0) {
+                        //  3) system (Linux)
+                        partitionTableWriter.addLastPartition(
+                                PartitionTableWriter.TYPE_LINUX, false);
                     } else {
-                        destinationDataDevice
-                                = device + (pPartition ? "p3" : '3');
-                        destinationSystemDevice
-                                = device + (pPartition ? "p4" : '4');
+                        //  3) persistence (Linux)
+                        //  4) system (Linux)
+                        partitionTableWriter.addPartition(EFI_PARTITION_SIZE
+                                + exchangeMB + persistenceMB,
+                                PartitionTableWriter.TYPE_LINUX, false);
+                        partitionTableWriter.addLastPartition(
+                                PartitionTableWriter.TYPE_LINUX, false);
+                        partitionDeviceNodes.add(Paths.get(persistenceDevice));
                     }
                 }
                 break;
@@ -296,132 +647,304 @@ public class DLCopy {
                 throw new IOException(errorMessage);
         }
 
-        // create all necessary partitions
-        try {
-            createPartitions(storageDevice, partitionSizes, storageDeviceSize,
-                    partitionState, destinationExchangeDevice,
-                    exchangePartitionLabel, destinationDataDevice,
-                    personalDataPartitionEncryption, personalEncryptionPassword,
-                    secondaryDataPartitionEncryption,
-                    secondaryEncryptionPassword, randomFillDataPartition,
-                    destinationEfiDevice, destinationSystemDevice,
-                    installerOrUpgrader, dlCopyGUI);
-        } catch (IOException iOException) {
-            // On some Corsair Flash Voyager GT drives the first sfdisk try
-            // failes with the following output:
-            // ---------------
-            // Checking that no-one is using this disk right now ...
-            // OK
-            // Warning: The partition table looks like it was made
-            //       for C/H/S=*/78/14 (instead of 15272/64/32).
-            //
-            // For this listing I'll assume that geometry.
-            //
-            // Disk /dev/sdc: 15272 cylinders, 64 heads, 32 sectors/track
-            // Old situation:
-            // Units = mebibytes of 1048576 bytes, blocks of 1024 bytes, counting from 0
-            //
-            //    Device Boot Start   End    MiB    #blocks   Id  System
-            // /dev/sdc1         3+ 15271  15269-  15634496    c  W95 FAT32 (LBA)
-            //                 start: (c,h,s) expected (7,30,1) found (1,0,1)
-            //                 end: (c,h,s) expected (1023,77,14) found (805,77,14)
-            // /dev/sdc2         0      -      0          0    0  Empty
-            // /dev/sdc3         0      -      0          0    0  Empty
-            // /dev/sdc4         0      -      0          0    0  Empty
-            // New situation:
-            // Units = mebibytes of 1048576 bytes, blocks of 1024 bytes, counting from 0
-            //
-            //    Device Boot Start   End    MiB    #blocks   Id  System
-            // /dev/sdc1         0+  1023   1024-   1048575+   c  W95 FAT32 (LBA)
-            // /dev/sdc2      1024  11008   9985   10224640   83  Linux
-            // /dev/sdc3   * 11009  15271   4263    4365312    c  W95 FAT32 (LBA)
-            // /dev/sdc4         0      -      0          0    0  Empty
-            // BLKRRPART: Das Gerät oder die Ressource ist belegt
-            // The command to re-read the partition table failed.
-            // Run partprobe(8), kpartx(8) or reboot your system now,
-            // before using mkfs
-            // If you created or changed a DOS partition, /dev/foo7, say, then use dd(1)
-            // to zero the first 512 bytes:  dd if=/dev/zero of=/dev/foo7 bs=512 count=1
-            // (See fdisk(8).)
-            // Successfully wrote the new partition table
-            //
-            // Re-reading the partition table ...
-            // ---------------
-            // Strangely, even though sfdisk exits with zero (success) the
-            // partitions are *NOT* correctly created the first time. Even
-            // more strangely, it always works the second time. Therefore
-            // we automatically retry once more in case of an error.
-            createPartitions(storageDevice, partitionSizes, storageDeviceSize,
-                    partitionState, destinationExchangeDevice,
-                    exchangePartitionLabel, destinationDataDevice,
+        // make sure that no udev rule is still scanning the device
+        settleUdev();
+
+        // check if a swap partition is active on this device
+        // if so, switch it off
+        List<String> swaps
+                = LernstickFileTools.readFile(new File("/proc/swaps"));
+        for (String swapLine : swaps) {
+            if (swapLine.startsWith(device)) {
+                swapoffPartition(device, swapLine, dlCopyGUI);
+            }
+        }
+
+        // umount all mounted partitions of device
+        umountPartitions(device, dlCopyGUI);
+
+        // We must wipe the whole storage device before creating the partitions,
+        // otherwise USB flash drives previously written with a dd'ed ISO
+        // will NOT work!
+        if (PROCESS_EXECUTOR.get().executeProcess(
+                true, true, "wipefs", "-a", device) != 0) {
+            String errorMessage = STRINGS.getString("Error_Wiping_File_System");
+            errorMessage = MessageFormat.format(errorMessage, device);
+            LOGGER.severe(errorMessage);
+            throw new IOException(errorMessage);
+        }
+
+        // write the new partition table and let the kernel know about it
+        partitionTableWriter.write();
+        partitionTableWriter.rereadPartitionTable();
+
+        // Partition.getPartitionFromDeviceAndNumber() in
+        // formatPersistencePartition() (next stage) fails if udisks doesn't
+        // know about the new partitions yet.
+        Path[] deviceNodes = partitionDeviceNodes.toArray(
+                new Path[partitionDeviceNodes.size()]);
+        if (!waitForDeviceNodes(deviceNodes)
+                || !waitForUdisks("Partition", deviceNodes)) {
+            String errorMessage = STRINGS.getString("Error_Repartitioning");
+            errorMessage = MessageFormat.format(errorMessage, device);
+            LOGGER.severe(errorMessage);
+            throw new IOException(errorMessage);
+        }
+    }
+
+    /**
+     * creates the file systems on a freshly partitioned target storage device
+     * (the second stage of an installation)
+     *
+     * @param target the installation target
+     * @param exchangePartitionLabel the label of the exchange partition
+     * @param personalDataPartitionEncryption if the persistence partition
+     * should be encrypted with a personal password
+     * @param personalEncryptionPassword the personal encryption password
+     * @param secondaryDataPartitionEncryption if the persistence partition
+     * should be encrypted with a secondary password
+     * @param secondaryEncryptionPassword the secondary encryption password
+     * @param randomFillDataPartition if the data partition should be filled
+     * with random data before formatting
+     * @param installerOrUpgrader the Installer or Upgrader that is calling this
+     * method
+     * @param dlCopyGUI the program GUI
+     * @throws InterruptedException when the installation was interrupted
+     * @throws IOException when an I/O exception occurs
+     * @throws DBusException when there was a problem with DBus
+     */
+    public static void createFileSystems(InstallationTarget target,
+            String exchangePartitionLabel,
+            boolean personalDataPartitionEncryption,
+            String personalEncryptionPassword,
+            boolean secondaryDataPartitionEncryption,
+            String secondaryEncryptionPassword, boolean randomFillDataPartition,
+            InstallerOrUpgrader installerOrUpgrader, DLCopyGUI dlCopyGUI)
+            throws InterruptedException, IOException, DBusException {
+
+        String efiDevice = target.getEfiDevice();
+        String exchangeDevice = target.getExchangeDevice();
+        String persistenceDevice = target.getDataDevice();
+        String systemDevice = target.getSystemDevice();
+
+        // Random filling, LUKS setup and mkfs of the data partition take
+        // quite some time but the data partition is only needed at the very
+        // end when copying the persistence layer.
+        boolean formatDataInBackground = (persistenceDevice != null)
+                && isConcurrentDataPartitionFormatting(target,
+                        personalDataPartitionEncryption
+                        && randomFillDataPartition);
+
+        // create file systems
+        if (exchangeDevice != null) {
+            // create file system for exchange partition
+            formatExchangePartition(exchangeDevice, exchangePartitionLabel,
+                    installerOrUpgrader.getExchangePartitionFileSystem(),
+                    dlCopyGUI);
+        }
+        if (formatDataInBackground) {
+            // the data partition progress must not interfere with the file
+            // copy progress
+            DLCopyGUI backgroundGUI = getBackgroundGUI(dlCopyGUI);
+            // the executor of the formatting thread (for killing the running
+            // command when the formatting is cancelled)
+            AtomicReference<ProcessExecutor> formattingExecutor
+                    = new AtomicReference<>();
+            FutureTask<Void> dataPartitionFormatting = new FutureTask<Void>(
+                    () -> {
+                        formattingExecutor.set(PROCESS_EXECUTOR.get());
+                        formatPersistencePartition(persistenceDevice,
+                                personalDataPartitionEncryption,
+                                personalEncryptionPassword,
+                                secondaryDataPartitionEncryption,
+                                secondaryEncryptionPassword,
+                                randomFillDataPartition,
+                                installerOrUpgrader
+                                        .getDataPartitionFileSystem(),
+                                backgroundGUI);
+                        return null;
+                    }) {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    boolean cancelled = super.cancel(mayInterruptIfRunning);
+                    // mkfs and tune2fs don't care about interrupts
+                    ProcessExecutor executor = formattingExecutor.get();
+                    if (cancelled && (executor != null)) {
+                        executor.destroy();
+                    }
+                    return cancelled;
+                }
+            };
+            target.setDataPartitionFormatting(dataPartitionFormatting);
+            LOGGER.log(Level.INFO, "formatting {0} in the background",
+                    persistenceDevice);
+            new Thread(dataPartitionFormatting,
+                    "format " + persistenceDevice).start();
+        } else if (persistenceDevice != null) {
+            formatPersistencePartition(persistenceDevice,
                     personalDataPartitionEncryption, personalEncryptionPassword,
                     secondaryDataPartitionEncryption,
                     secondaryEncryptionPassword, randomFillDataPartition,
-                    destinationEfiDevice, destinationSystemDevice,
-                    installerOrUpgrader, dlCopyGUI);
+                    installerOrUpgrader.getDataPartitionFileSystem(),
+                    dlCopyGUI);
         }
+        formatEfiAndSystemPartition(efiDevice, systemDevice,
+                installerOrUpgrader.getEfiImageTemplate(),
+                installerOrUpgrader.getSystemImage());
 
-        // Here have to trigger a rescan of the device partitions. Otherwise
-        // udisks sometimes just doesn't know about the new partitions and we
-        // will later get exceptions similar to this one:
+        // Here we have to wait until udisks knows about the new file systems.
+        // Otherwise we will later get exceptions similar to this one:
         // org.freedesktop.dbus.exceptions.DBusExecutionException:
         // No such interface 'org.freedesktop.UDisks2.Filesystem'
-        PROCESS_EXECUTOR.executeProcess("partprobe", device);
-        // Sigh... even after partprobe exits, we have to give udisks even more
-        // time to get its act together and finally know about the new
-        // partitions.
-        try {
-            // 5 seconds were not enough!
-            TimeUnit.SECONDS.sleep(7);
-        } catch (InterruptedException ex) {
-            LOGGER.log(Level.SEVERE, "", ex);
+        List<Path> fileSystemDeviceNodes = new ArrayList<>();
+        fileSystemDeviceNodes.add(Paths.get(efiDevice));
+        fileSystemDeviceNodes.add(Paths.get(systemDevice));
+        if (exchangeDevice != null) {
+            fileSystemDeviceNodes.add(Paths.get(exchangeDevice));
+        }
+        settleUdev();
+        if (!waitForUdisks("Filesystem", fileSystemDeviceNodes.toArray(
+                new Path[fileSystemDeviceNodes.size()]))) {
+            String errorMessage
+                    = STRINGS.getString("Error_File_Systems_Not_Available");
+            errorMessage = MessageFormat.format(
+                    errorMessage, target.getDevice());
+            LOGGER.severe(errorMessage);
+            throw new IOException(errorMessage);
         }
 
         // the partitions now really exist
         // -> instantiate them as objects
-        Partition destinationExchangePartition
-                = (destinationExchangeDevice == null) ? null
-                        : Partition.getPartitionFromDeviceAndNumber(
-                                destinationExchangeDevice.substring(5));
+        Partition exchangePartition = (exchangeDevice == null) ? null
+                : Partition.getPartitionFromDeviceAndNumber(
+                        exchangeDevice.substring(5));
 
-        Partition destinationDataPartition
-                = (destinationDataDevice == null) ? null
-                        : Partition.getPartitionFromDeviceAndNumber(
-                                destinationDataDevice.substring(5));
+        Partition dataPartition = (persistenceDevice == null) ? null
+                : Partition.getPartitionFromDeviceAndNumber(
+                        persistenceDevice.substring(5));
 
-        Partition destinationBootPartition
-                = Partition.getPartitionFromDeviceAndNumber(
-                        destinationEfiDevice.substring(5));
+        Partition efiPartition = Partition.getPartitionFromDeviceAndNumber(
+                efiDevice.substring(5));
 
-        Partition destinationSystemPartition
-                = Partition.getPartitionFromDeviceAndNumber(
-                        destinationSystemDevice.substring(5));
+        Partition systemPartition = Partition.getPartitionFromDeviceAndNumber(
+                systemDevice.substring(5));
+
+        target.setPartitions(efiPartition, exchangePartition,
+                dataPartition, systemPartition);
+    }
+
+    /**
+     * copies the exchange, EFI, system and persistence files to a target
+     * storage device (the third stage of an installation)
+     *
+     * @param source the system source
+     * @param fileCopier the Filecopier used for copying the system partition
+     * @param target the installation target
+     * @param installerOrUpgrader the Installer or Upgrader that is calling this
+     * method
+     * @param checkCopies if copies should be checked for errors
+     * @param dlCopyGUI the program GUI
+     * @throws InterruptedException when the installation was interrupted
+     * @throws IOException when an I/O exception occurs
+     * @throws DBusException when there was a problem with DBus
+     * @throws java.security.NoSuchAlgorithmException when the file checking
+     * algorithm can't be found
+     */
+    public static void copyFiles(SystemSource source, FileCopier fileCopier,
+            InstallationTarget target, InstallerOrUpgrader installerOrUpgrader,
+            boolean checkCopies, DLCopyGUI dlCopyGUI)
+            throws InterruptedException, IOException,
+            DBusException, NoSuchAlgorithmException {
 
         // copy operating system files
-        copyExchangeEfiAndSystem(source, fileCopier, storageDevice,
-                destinationExchangePartition, destinationBootPartition,
-                destinationSystemPartition, installerOrUpgrader, checkCopies,
-                dlCopyGUI);
+        copyExchangeEfiAndSystem(source, fileCopier,
+                target.getStorageDevice(), target.getExchangePartition(),
+                target.getEfiPartition(), target.getSystemPartition(),
+                installerOrUpgrader, checkCopies, dlCopyGUI);
 
         // copy persistence layer
+        target.waitForDataPartition();
         copyPersistence(source, installerOrUpgrader,
-                destinationDataPartition, dlCopyGUI);
+                target.getDataPartition(), dlCopyGUI);
+    }
+
+    /**
+     * makes a target storage device bootable and unmounts its partitions (the
+     * last stage of an installation)
+     *
+     * @param source the system source
+     * @param target the installation target
+     * @param installerOrUpgrader the Installer or Upgrader that is calling this
+     * method
+     * @param dlCopyGUI the program GUI
+     * @throws InterruptedException when the installation was interrupted
+     * @throws IOException when an I/O exception occurs
+     * @throws DBusException when there was a problem with DBus
+     */
+    public static void writeBootSector(SystemSource source,
+            InstallationTarget target, InstallerOrUpgrader installerOrUpgrader,
+            DLCopyGUI dlCopyGUI)
+            throws InterruptedException, IOException, DBusException {
+
+        // the data partition must be ready before unplugging is possible
+        target.waitForDataPartition();
 
         // make storage device bootable
         installerOrUpgrader.showWritingBootSector();
-        makeBootable(source, device, destinationBootPartition);
-
-        if (!umount(destinationBootPartition, dlCopyGUI)) {
+        makeBootable(source, target.getDevice(), target.getEfiPartition());
+
+        // the syslinux conversion, the data partition mode and makeBootable
+        // modified the EFI partition after its copy job
+        flushBeforeUmount(target.getEfiPartition(), true);
+        // the block hash manifest is saved after the copy job
+        flushBeforeUmount(target.getSystemPartition(), blockHashManifest);
+        if (!umount(target.getEfiPartition(), dlCopyGUI)) {
             String errorMessage = "could not umount destination boot partition";
             throw new IOException(errorMessage);
         }
 
-        if (!umount(destinationSystemPartition, dlCopyGUI)) {
+        if (!umount(target.getSystemPartition(), dlCopyGUI)) {
             String errorMessage
                     = "could not umount destination system partition";
             throw new IOException(errorMessage);
         }
-        source.unmountTmpPartitions();
+    }
+
+    private static boolean isConcurrentDataPartitionFormatting(
+            InstallationTarget target, boolean randomFill) {
+        switch (dataPartitionFormattingMode) {
+            case CONCURRENT:
+                return true;
+
+            case AUTO:
+                // Without random filling the data partition sees only a few
+                // writes (mostly waiting for LUKS key derivation and udisks),
+                // which never hurt the concurrent file copy.
+                return !randomFill
+                        || ConcurrentWriteBenchmark.isConcurrentWritingFaster(
+                                target.getStorageDevice(),
+                                target.getDataDevice(),
+                                target.getSystemDevice());
+
+            default:
+                return false;
+        }
+    }
+
+    private static DLCopyGUI getBackgroundGUI(DLCopyGUI dlCopyGUI) {
+        return (DLCopyGUI) Proxy.newProxyInstance(
+                DLCopyGUI.class.getClassLoader(),
+                new Class<?>[]{DLCopyGUI.class}, (proxy, method, arguments) -> {
+                    if (method.getName().startsWith("showInstall")) {
+                        // progress updates would hide the file copy progress
+                        return null;
+                    }
+                    try {
+                        return method.invoke(dlCopyGUI, arguments);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                });
     }
 
     /**
@@ -487,7 +1010,7 @@ public class DLCopy {
             }
         }
 
-        int exitValue = PROCESS_EXECUTOR.executeProcess(
+        int exitValue = PROCESS_EXECUTOR.get().executeProcess(
                 "umount", deviceOrMountpoint);
         if (exitValue != 0) {
             String errorMessage = STRINGS.getString("Error_Umount");
@@ -588,25 +1111,44 @@ public class DLCopy {
                 long persistenceSize = persistencePartition.getSize();
 
                 LOGGER.info("filling data partition with random data...");
+                // with direct I/O the progress shows what really reached the
+                // storage device (and not just the page cache)
+                boolean directIO = DLCopy.directIO && DirectIO.isSupported();
                 try (FileChannel source = FileChannel.open(
                         Paths.get("/dev/urandom"), StandardOpenOption.READ);
-                        FileChannel destination = FileChannel.open(
-                                Paths.get(device), StandardOpenOption.WRITE)) {
-                    ByteBuffer byteBuffer = ByteBuffer.allocateDirect(MEGA);
-                    long written = 0;
-                    while (true) {
-                        byteBuffer.clear();
-                        source.read(byteBuffer);
+                        QueuedBlockWriter destination = new QueuedBlockWriter(
+                                Paths.get(device), directIO,
+                                DLCopy.writeQueueDepth)) {
+                    long position = 0;
+                    while (position < persistenceSize) {
+                        checkInterrupted(device);
+                        ByteBuffer byteBuffer = destination.acquireBuffer();
+                        if (persistenceSize - position < byteBuffer.limit()) {
+                            byteBuffer.limit(
+                                    (int) (persistenceSize - position));
+                        }
+                        // direct writes must consist of whole blocks
+                        while (byteBuffer.hasRemaining()) {
+                            source.read(byteBuffer);
+                        }
                         byteBuffer.flip();
-                        written += destination.write(byteBuffer);
+                        int bytes = byteBuffer.remaining();
+                        destination.submit(byteBuffer, position);
+                        position += bytes;
                         dlCopyGUI.showInstallOverwritingDataPartitionWithRandomData(
-                                written, persistenceSize);
+                                destination.getCompletedBytes(),
+                                persistenceSize);
                     }
+                    destination.force();
+                } catch (InterruptedIOException
+                        | ClosedByInterruptException e) {
+                    // cancelled, not failed
+                    throw e;
                 } catch (IOException e) {
-                    // this exception is thrown when the filling process is done
-                    // just ignore it...
-                    LOGGER.log(Level.INFO, "", e);
+                    // just like before, a failed random fill is not fatal
+                    LOGGER.log(Level.WARNING, "", e);
                 }
+                checkInterrupted(device);
                 dlCopyGUI.showInstallCreatingFileSystems();
             }
 
@@ -632,11 +1174,13 @@ public class DLCopy {
         // ------------
         // To make a long story short, this is the reason we have to use the
         // force flag "-F" here.
-        int exitValue = PROCESS_EXECUTOR.executeProcess("/sbin/mkfs."
+        checkInterrupted(device);
+        int exitValue = PROCESS_EXECUTOR.get().executeProcess("/sbin/mkfs."
                 + fileSystem, "-F", "-L", Partition.PERSISTENCE_LABEL,
                 personalDataPartitionEncryption ? mapperDevice : device);
+        checkInterrupted(device);
         if (exitValue != 0) {
-            LOGGER.severe(PROCESS_EXECUTOR.getOutput());
+            LOGGER.severe(PROCESS_EXECUTOR.get().getOutput());
             String errorMessage = STRINGS.getString(
                     "Error_Create_Data_Partition");
             LOGGER.severe(errorMessage);
@@ -644,11 +1188,11 @@ public class DLCopy {
         }
 
         // tuning
-        exitValue = PROCESS_EXECUTOR.executeProcess(
+        exitValue = PROCESS_EXECUTOR.get().executeProcess(
                 "/sbin/tune2fs", "-m", "0", "-c", "0", "-i", "0",
                 personalDataPartitionEncryption ? mapperDevice : device);
         if (exitValue != 0) {
-            LOGGER.severe(PROCESS_EXECUTOR.getOutput());
+            LOGGER.severe(PROCESS_EXECUTOR.get().getOutput());
             String errorMessage = STRINGS.getString(
                     "Error_Tune_Data_Partition");
             LOGGER.severe(errorMessage);
@@ -664,7 +1208,9 @@ public class DLCopy {
         try {
             TimeUnit.SECONDS.sleep(10);
         } catch (InterruptedException ex) {
-            LOGGER.log(Level.SEVERE, "", ex);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "interrupted while formatting " + device);
         }
         settleUdev();
 
@@ -691,6 +1237,34 @@ public class DLCopy {
         persistencePartition.umount();
     }
 
+    private static void checkInterrupted(String device)
+            throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException(
+                    "interrupted while formatting " + device);
+        }
+    }
+
+    private static void verifyWithBlockHashManifest(
+            InstallerOrUpgrader installerOrUpgrader,
+            CopyJobsInfo copyJobsInfo, boolean efiFilesCopied)
+            throws DBusException, IOException, NoSuchAlgorithmException {
+
+        BlockHashManifest manifest
+                = installerOrUpgrader.getBlockHashManifest();
+        // a prebuilt EFI image already contains the converted EFI files
+        if (efiFilesCopied) {
+            manifest.verify(BlockHashManifest.EFI_SECTION,
+                    new File(copyJobsInfo.getDestinationEfiPath()),
+                    VERIFICATION_THREADS);
+        }
+        File systemDirectory
+                = new File(copyJobsInfo.getDestinationSystemPath());
+        manifest.verify(BlockHashManifest.SYSTEM_SECTION, systemDirectory,
+                VERIFICATION_THREADS);
+        manifest.save(new File(systemDirectory, BlockHashManifest.FILE_NAME));
+    }
+
     /**
      * creates a CopyJobsInfo for a given source / destination combination
      *
@@ -754,7 +1328,7 @@ public class DLCopy {
         for (String bootFile : bootFiles) {
             Path destinationPath = Paths.get(destinationExchangePath, bootFile);
             if (Files.exists(destinationPath)) {
-                PROCESS_EXECUTOR.executeProcess(
+                PROCESS_EXECUTOR.get().executeProcess(
                         "fatattr", "+h", destinationPath.toString());
             }
         }
@@ -775,7 +1349,7 @@ public class DLCopy {
         }
 
         // use FAT attributes again to hide macOS ".hidden" file in Windows
-        PROCESS_EXECUTOR.executeProcess("fatattr", "+h", osxHiddenFilePath);
+        PROCESS_EXECUTOR.get().executeProcess("fatattr", "+h", osxHiddenFilePath);
     }
 
     /**
@@ -829,7 +1403,7 @@ public class DLCopy {
                     }
                 }
                 LernstickFileTools.writeFile(md5sumFile, lines);
-                PROCESS_EXECUTOR.executeProcess("sync");
+                PROCESS_EXECUTOR.get().executeProcess("sync");
             } else {
                 LOGGER.log(Level.WARNING,
                         "file \"{0}\" does not exist!", md5sumFileName);
@@ -850,13 +1424,39 @@ public class DLCopy {
      */
     public static void formatEfiAndSystemPartition(
             String efiDevice, String systemDevice) throws IOException {
+        formatEfiAndSystemPartition(efiDevice, systemDevice, null, null);
+    }
+
+    /**
+     * formats the efi and system partition
+     *
+     * @param efiDevice the efi device
+     * @param systemDevice the system device
+     * @param efiImageTemplate the prebuilt image of the EFI partition or null,
+     * if the EFI partition should be formatted with an empty file system
+     * @param systemImage the prebuilt image of the system partition or null,
+     * if the system partition should be formatted with an empty file system
+     * @throws IOException
+     */
+    public static void formatEfiAndSystemPartition(String efiDevice,
+            String systemDevice, EfiImageTemplate efiImageTemplate,
+            SystemImage systemImage) throws IOException {
+
+        if (efiImageTemplate == null) {
+            formatEfiPartition(efiDevice);
+        } else {
+            efiImageTemplate.writeTo(efiDevice);
+        }
 
-        formatEfiPartition(efiDevice);
+        if ((systemImage != null) && systemImage.fitsInto(systemDevice)) {
+            systemImage.writeTo(systemDevice);
+            return;
+        }
 
-        int exitValue = PROCESS_EXECUTOR.executeProcess(
+        int exitValue = PROCESS_EXECUTOR.get().executeProcess(
                 "/sbin/mkfs.ext3", "-L", systemPartitionLabel, systemDevice);
         if (exitValue != 0) {
-            LOGGER.severe(PROCESS_EXECUTOR.getOutput());
+            LOGGER.severe(PROCESS_EXECUTOR.get().getOutput());
             String errorMessage
                     = STRINGS.getString("Error_Create_System_Partition");
             LOGGER.severe(errorMessage);
@@ -872,10 +1472,10 @@ public class DLCopy {
      */
     public static void formatEfiPartition(String efiDevice) throws IOException {
 
-        int exitValue = PROCESS_EXECUTOR.executeProcess(
+        int exitValue = PROCESS_EXECUTOR.get().executeProcess(
                 "/sbin/mkfs.vfat", "-n", Partition.EFI_LABEL, efiDevice);
         if (exitValue != 0) {
-            LOGGER.severe(PROCESS_EXECUTOR.getOutput());
+            LOGGER.severe(PROCESS_EXECUTOR.get().getOutput());
             String errorMessage
                     = STRINGS.getString("Error_Create_EFI_Partition");
             LOGGER.severe(errorMessage);
@@ -1010,20 +1610,36 @@ public class DLCopy {
      */
     public static String getMd5String(String filePath)
             throws NoSuchAlgorithmException, IOException {
-        MessageDigest md5 = MessageDigest.getInstance("MD5");
-        try (DigestInputStream digestInputStream = new DigestInputStream(
-                Files.newInputStream(Paths.get(filePath)), md5)) {
-            byte[] byteArray = new byte[1024];
-            for (int i = digestInputStream.read(byteArray); i > 0;) {
-                i = digestInputStream.read(byteArray);
-            }
-            byte[] digest = md5.digest();
-            StringBuilder stringBuilder = new StringBuilder(32);
-            for (byte b : digest) {
-                stringBuilder.append(String.format("%02x", b));
+        return getDigestString(DigestAlgorithm.MD5, filePath);
+    }
+
+    /**
+     * returns the textual representation of the digest of a file
+     *
+     * @param algorithm the digest algorithm
+     * @param filePath the path of the file to digest
+     * @return the textual representation of the digest of a file
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     * @throws IOException if reading from the file fails
+     */
+    public static String getDigestString(DigestAlgorithm algorithm,
+            String filePath) throws NoSuchAlgorithmException, IOException {
+        MessageDigest messageDigest = algorithm.createMessageDigest();
+        try (FileChannel channel = FileChannel.open(
+                Paths.get(filePath), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MEGA);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                messageDigest.update(buffer);
+                buffer.clear();
             }
-            return stringBuilder.toString();
         }
+        byte[] digest = messageDigest.digest();
+        StringBuilder stringBuilder = new StringBuilder(2 * digest.length);
+        for (byte b : digest) {
+            stringBuilder.append(String.format("%02x", b));
+        }
+        return stringBuilder.toString();
     }
 
     /**
@@ -1113,364 +1729,6 @@ public class DLCopy {
         }
     }
 
-    private static void createPartitions(StorageDevice storageDevice,
-            PartitionSizes partitionSizes, long storageDeviceSize,
-            final PartitionState partitionState, String exchangeDevice,
-            String exchangePartitionLabel,
-            String persistenceDevice, boolean personalDataPartitionEncryption,
-            String personalEncryptionPassword,
-            boolean secondaryDataPartitionEncryption,
-            String secondaryEncryptionPassword, boolean randomFillDataPartition,
-            String efiDevice, String systemDevice,
-            InstallerOrUpgrader installerOrUpgrader, DLCopyGUI dlCopyGUI)
-            throws InterruptedException, IOException, DBusException {
-
-        // update GUI
-        installerOrUpgrader.showCreatingFileSystems();
-
-        String device = "/dev/" + storageDevice.getDevice();
-
-        // determine exact partition sizes
-        long overhead = storageDeviceSize - getEnlargedSystemSize(
-                installerOrUpgrader.getSourceSystemSize());
-        int exchangeMB = partitionSizes.getExchangeMB();
-        int persistenceMB = partitionSizes.getPersistenceMB();
-        if (LOGGER.isLoggable(Level.FINEST)) {
-            LOGGER.log(Level.FINEST, "size of {0} = {1} Byte\n"
-                    + "overhead = {2} Byte\n"
-                    + "exchangeMB = {3} MiB\n"
-                    + "persistenceMB = {4} MiB",
-                    new Object[]{device, storageDeviceSize, overhead,
-                        exchangeMB, persistenceMB
-                    });
-        }
-
-        // assemble partition command
-        List<String> partedCommandList = new ArrayList<>();
-        partedCommandList.add("/sbin/parted");
-        partedCommandList.add("-s");
-        partedCommandList.add("-a");
-        partedCommandList.add("optimal");
-        partedCommandList.add(device);
-
-//            // list of "rm" commands must be inversely sorted, otherwise
-//            // removal of already existing partitions will fail when storage
-//            // device has logical partitions in extended partitions (the logical
-//            // partitions are no longer found when the extended partition is
-//            // already removed)
-//            List<String> partitionNumbers = new ArrayList<String>();
-//            for (Partition partition : storageDevice.getPartitions()) {
-//                partitionNumbers.add(String.valueOf(partition.getNumber()));
-//            }
-//            Collections.sort(partitionNumbers);
-//            for (int i = partitionNumbers.size() - 1; i >=0; i--) {
-//                partedCommandList.add("rm");
-//                partedCommandList.add(partitionNumbers.get(i));
-//            }
-        switch (partitionState) {
-            case ONLY_SYSTEM:
-                // create two partitions: efi, system
-                String efiBorder = EFI_PARTITION_SIZE + "MiB";
-                mkpart(partedCommandList, "0%", efiBorder);
-                mkpart(partedCommandList, efiBorder, "100%");
-                setFlag(partedCommandList, "1", "boot", "on");
-                setFlag(partedCommandList, "1", "lba", "on");
-                break;
-
-            case PERSISTENCE:
-                // create three partitions: efi, persistence, system
-                efiBorder = EFI_PARTITION_SIZE + "MiB";
-                String persistenceBorder
-                        = (EFI_PARTITION_SIZE + persistenceMB) + "MiB";
-                mkpart(partedCommandList, "0%", efiBorder);
-                mkpart(partedCommandList, efiBorder, persistenceBorder);
-                mkpart(partedCommandList, persistenceBorder, "100%");
-                setFlag(partedCommandList, "1", "boot", "on");
-                setFlag(partedCommandList, "1", "lba", "on");
-                break;
-
-            case EXCHANGE:
-                if (exchangeMB == 0) {
-                    // create three partitions: efi, persistence, system
-                    efiBorder = EFI_PARTITION_SIZE + "MiB";
-                    persistenceBorder
-                            = (EFI_PARTITION_SIZE + persistenceMB) + "MiB";
-                    mkpart(partedCommandList, "0%", efiBorder);
-                    mkpart(partedCommandList, efiBorder, persistenceBorder);
-                    mkpart(partedCommandList, persistenceBorder, "100%");
-                    setFlag(partedCommandList, "1", "boot", "on");
-                    setFlag(partedCommandList, "1", "lba", "on");
-
-                } else {
-                    // first two partitions: efi, exchange
-                    efiBorder = EFI_PARTITION_SIZE + "MiB";
-                    String exchangeBorder
-                            = (EFI_PARTITION_SIZE + exchangeMB) + "MiB";
-                    String secondBorder = exchangeBorder;
-                    mkpart(partedCommandList, "0%", efiBorder);
-                    mkpart(partedCommandList, efiBorder, exchangeBorder);
-                    setFlag(partedCommandList, "1", "boot", "on");
-                    if (persistenceMB == 0) {
-                        // third partition: system
-                        mkpart(partedCommandList, secondBorder, "100%");
-                    } else {
-                        // last two partitions: persistence, system
-                        persistenceBorder = (EFI_PARTITION_SIZE
-                                + exchangeMB + persistenceMB) + "MiB";
-                        mkpart(partedCommandList,
-                                secondBorder, persistenceBorder);
-                        mkpart(partedCommandList, persistenceBorder, "100%");
-                    }
-                    setFlag(partedCommandList, "1", "lba", "on");
-                    setFlag(partedCommandList, "2", "lba", "on");
-                }
-                break;
-
-            default:
-                String errorMessage = "unsupported partitionState \""
-                        + partitionState + '\"';
-                LOGGER.severe(errorMessage);
-                throw new IOException(errorMessage);
-        }
-
-        // safety wait in case of device scanning
-        // 5 seconds were not enough...
-        TimeUnit.SECONDS.sleep(7);
-
-        // check if a swap partition is active on this device
-        // if so, switch it off
-        List<String> swaps
-                = LernstickFileTools.readFile(new File("/proc/swaps"));
-        for (String swapLine : swaps) {
-            if (swapLine.startsWith(device)) {
-                swapoffPartition(device, swapLine, dlCopyGUI);
-            }
-        }
-
-        // umount all mounted partitions of device
-        umountPartitions(device, dlCopyGUI);
-
-        // We must wipe the whole storage device before creating the partitions,
-        // otherwise USB flash drives previously written with a dd'ed ISO
-        // will NOT work!
-        if (PROCESS_EXECUTOR.executeProcess(
-                true, true, "wipefs", "-a", device) != 0) {
-            String errorMessage = STRINGS.getString("Error_Wiping_File_System");
-            errorMessage = MessageFormat.format(errorMessage, device);
-            LOGGER.severe(errorMessage);
-            throw new IOException(errorMessage);
-        }
-
-        // "parted <device> mklabel msdos" did NOT work correctly here!
-        // (the partition table type was still unknown and booting failed)
-        int exitValue;
-        if (DbusTools.DBUS_VERSION == DbusTools.DbusVersion.V1) {
-            // "--print-reply" is needed in the call to dbus-send below to make
-            // the call synchronous
-            exitValue = PROCESS_EXECUTOR.executeProcess("dbus-send",
-                    "--system", "--print-reply",
-                    "--dest=org.freedesktop.UDisks",
-                    "/org/freedesktop/UDisks/devices/" + device.substring(5),
-                    "org.freedesktop.UDisks.Device.PartitionTableCreate",
-                    "string:mbr", "array:string:");
-
-        } else {
-            // Even more fun with udisks2! :-)
-            //
-            // Now whe have to call org.freedesktop.UDisks2.Block.Format
-            // This function has the signature 'sa{sv}'.
-            // dbus-send is unable to send messages with this signature.
-            // To quote the dbus-send manpage:
-            // ****************************
-            //  D-Bus supports more types than these, but dbus-send currently
-            //  does not. Also, dbus-send does not permit empty containers or
-            //  nested containers (e.g. arrays of variants).
-            // ****************************
-            //
-            // creating a Java interface also fails, see here:
-            // https://bugs.debian.org/cgi-bin/bugreport.cgi?bug=777241
-            //
-            // So we have to create a script that calls python.
-            // This utterly sucks but our options are limited...
-            // exitValue = processExecutor.executeScript(true, true,
-            //         "python -c 'import dbus; "
-            //         + "dbus.SystemBus().call_blocking("
-            //         + "\"org.freedesktop.UDisks2\", "
-            //         + "\"/org/freedesktop/UDisks2/block_devices/"
-            //         + device.substring(5) + "\", "
-            //         + "\"org.freedesktop.UDisks2.Block\", "
-            //         + "\"Format\", \"sa{sv}\", (\"dos\", {}))'");
-            //
-            // It gets even better. The call above very often just fails with
-            // the following error message:
-            // Traceback (most recent call last):
-            // File "<string>", line 1, in <module>
-            // File "/usr/lib/python2.7/dist-packages/dbus/connection.py", line 651, in call_blocking message, timeout)
-            // dbus.exceptions.DBusException: org.freedesktop.UDisks2.Error.Failed: Error synchronizing after initial wipe: Timed out waiting for object
-            //
-            // So, for Debian 8 we retry with good old parted and hope for the
-            // best...
-            exitValue = PROCESS_EXECUTOR.executeProcess(true, true,
-                    "parted", "-s", device, "mklabel", "msdos");
-        }
-        if (exitValue != 0) {
-            String errorMessage
-                    = STRINGS.getString("Error_Creating_Partition_Table");
-            errorMessage = MessageFormat.format(errorMessage, device);
-            LOGGER.severe(errorMessage);
-            throw new IOException(errorMessage);
-        }
-
-        // another safety wait...
-        TimeUnit.SECONDS.sleep(3);
-
-        // repartition device
-        String[] commandArray = partedCommandList.toArray(
-                new String[partedCommandList.size()]);
-        exitValue = PROCESS_EXECUTOR.executeProcess(commandArray);
-        if (exitValue != 0) {
-            String errorMessage = STRINGS.getString("Error_Repartitioning");
-            errorMessage = MessageFormat.format(errorMessage, device);
-            LOGGER.severe(errorMessage);
-            throw new IOException(errorMessage);
-        }
-
-        // safety wait so that new partitions are known to the system
-        TimeUnit.SECONDS.sleep(7);
-
-        // The partition types assigned by parted are mostly garbage.
-        // We must fix them here...
-        // The boot partition is actually formatted with FAT32, but "hidden"
-        // by using the EFI partition type.
-        switch (partitionState) {
-            case ONLY_SYSTEM:
-                // create two partitions:
-                //  1) efi (EFI)
-                //  2) system (Linux)
-                PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                        "--part-type", device, "1", "ef");
-                PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                        "--part-type", device, "2", "83");
-                break;
-
-            case PERSISTENCE:
-                // create three partitions:
-                //  1) efi (EFI)
-                //  2) persistence (Linux)
-                //  3) system (Linux)
-                PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                        "--part-type", device, "1", "ef");
-                PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                        "--part-type", device, "2", "83");
-                PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                        "--part-type", device, "3", "83");
-                break;
-
-            case EXCHANGE:
-                if (exchangeMB == 0) {
-                    // create three partitions:
-                    //  1) efi (EFI)
-                    //  2) persistence (Linux)
-                    //  3) system (Linux)
-                    PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                            "--part-type", device, "1", "ef");
-                    PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                            "--part-type", device, "2", "83");
-                    PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                            "--part-type", device, "3", "83");
-                } else {
-                    // determine ID for exchange partition
-                    String exchangePartitionID;
-                    String fileSystem = installerOrUpgrader.
-                            getExchangePartitionFileSystem();
-                    if (fileSystem.equalsIgnoreCase("fat32")) {
-                        exchangePartitionID = "c";
-                    } else {
-                        // exFAT & NTFS
-                        exchangePartitionID = "7";
-                    }
-
-                    //  1) efi (EFI)
-                    //  2) exchange (exFAT, FAT32 or NTFS)
-                    PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                            "--part-type", device, "1", "ef");
-                    PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                            "--part-type", device, "2", exchangePartitionID);
-
-                    if (persistenceMB == 0) {
-                        //  3) system (Linux)
-                        PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                                "--part-type", device, "3", "83");
-                    } else {
-                        //  3) persistence (Linux)
-                        //  4) system (Linux)
-                        PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                                "--part-type", device, "3", "83");
-                        PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk",
-                                "--part-type", device, "4", "83");
-                    }
-                }
-                break;
-
-            default:
-                String errorMessage = "unsupported partitionState \""
-                        + partitionState + '\"';
-                LOGGER.log(Level.SEVERE, errorMessage);
-                throw new IOException(errorMessage);
-        }
-
-        // Partition.getPartitionFromDeviceAndNumber() in
-        // formatPersistencePartition() below failed without waiting here for
-        // a little bit
-        TimeUnit.SECONDS.sleep(3);
-        settleUdev();
-
-        // create file systems
-        switch (partitionState) {
-            case ONLY_SYSTEM:
-                formatEfiAndSystemPartition(efiDevice, systemDevice);
-                return;
-
-            case PERSISTENCE:
-                formatPersistencePartition(persistenceDevice,
-                        personalDataPartitionEncryption,
-                        personalEncryptionPassword,
-                        secondaryDataPartitionEncryption,
-                        secondaryEncryptionPassword, randomFillDataPartition,
-                        installerOrUpgrader.getDataPartitionFileSystem(),
-                        dlCopyGUI);
-                formatEfiAndSystemPartition(efiDevice, systemDevice);
-                return;
-
-            case EXCHANGE:
-                if (exchangeMB != 0) {
-                    // create file system for exchange partition
-                    formatExchangePartition(exchangeDevice,
-                            exchangePartitionLabel,
-                            installerOrUpgrader.getExchangePartitionFileSystem(),
-                            dlCopyGUI);
-                }
-                if (persistenceDevice != null) {
-                    formatPersistencePartition(persistenceDevice,
-                            personalDataPartitionEncryption,
-                            personalEncryptionPassword,
-                            secondaryDataPartitionEncryption,
-                            secondaryEncryptionPassword,
-                            randomFillDataPartition,
-                            installerOrUpgrader.getDataPartitionFileSystem(),
-                            dlCopyGUI);
-                }
-                formatEfiAndSystemPartition(efiDevice, systemDevice);
-                return;
-
-            default:
-                String errorMessage = "unsupported partitionState \""
-                        + partitionState + '\"';
-                LOGGER.log(Level.SEVERE, errorMessage);
-                throw new IOException(errorMessage);
-        }
-    }
-
     private static void copyExchangeEfiAndSystem(SystemSource source,
             FileCopier fileCopier, StorageDevice storageDevice,
             Partition destinationExchangePartition,
@@ -1504,18 +1762,59 @@ public class DLCopy {
         // copy all files
         installerOrUpgrader.showCopyingFiles(fileCopier);
 
+        // the EFI files are already there when the EFI partition was written
+        // from a prebuilt image
+        EfiImageTemplate efiImageTemplate
+                = installerOrUpgrader.getEfiImageTemplate();
         CopyJob efiFilesCopyJob = copyJobsInfo.getExchangeEfiCopyJob();
+        CopyJob efiCopyJob = (efiImageTemplate == null)
+                ? copyJobsInfo.getEfiCopyJob() : null;
+        // the same goes for the system files and a prebuilt system image
+        SystemImage systemImage = installerOrUpgrader.getSystemImage();
+        CopyJob systemCopyJob = ((systemImage != null) && systemImage.fitsInto(
+                "/dev/" + destinationSystemPartition.getDeviceAndNumber()))
+                ? null : copyJobsInfo.getSystemCopyJob();
+        if (checkCopies && md5sumReference
+                && (fileCopier instanceof BatchFileCopier)) {
+            ((BatchFileCopier) fileCopier).setReferenceDigests(
+                    installerOrUpgrader.getReferenceDigests());
+        }
         fileCopier.copy(checkCopies, exchangeCopyJob, efiFilesCopyJob,
-                copyJobsInfo.getEfiCopyJob(), copyJobsInfo.getSystemCopyJob());
+                efiCopyJob, systemCopyJob);
+        flushCopyJobs(fileCopier, storageDevice, destinationExchangePath,
+                copyJobsInfo.getDestinationEfiPath(),
+                copyJobsInfo.getDestinationSystemPath());
+        if (checkCopies && (fileCopier instanceof BatchFileCopier)) {
+            long throughput
+                    = ((BatchFileCopier) fileCopier).getReadBackThroughput();
+            if (throughput >= 0) {
+                LOGGER.log(Level.INFO, "read-back throughput of {0}: {1} MiB/s",
+                        new Object[]{storageDevice.getDevice(),
+                            throughput / MEGA});
+            }
+        }
+        if (blockHashManifest) {
+            // must happen before the EFI files are converted below
+            verifyWithBlockHashManifest(installerOrUpgrader, copyJobsInfo,
+                    efiCopyJob != null);
+        }
 
         // update GUI
         installerOrUpgrader.showUnmounting();
 
-        source.unmountTmpPartitions();
+        // The temporarily mounted source partitions are unmounted by the
+        // caller when all storage devices using them are done.
         if (destinationExchangePath != null) {
+            flushBeforeUmount(destinationExchangePath, false);
             destinationExchangePartition.umount();
         }
 
+        if (efiImageTemplate != null) {
+            // syslinux conversion and data partition mode are already applied
+            // in the EFI image
+            return;
+        }
+
         String destinationEfiPath = copyJobsInfo.getDestinationEfiPath();
         // isolinux -> syslinux renaming
         // !!! don't check here for boot storage device type !!!
@@ -1533,6 +1832,84 @@ public class DLCopy {
         }
     }
 
+    /**
+     * flushes all dirty pages of a file system to its storage device
+     * (syncfs()) and logs the time it took
+     *
+     * @param mountPath the mount path of the file system
+     * @param phase the phase of the installation (for logging)
+     * @throws IOException if flushing failed
+     */
+    static void flushFileSystem(String mountPath, String phase)
+            throws IOException {
+        long start = System.nanoTime();
+        ProcessExecutor processExecutor = PROCESS_EXECUTOR.get();
+        if (processExecutor.executeProcess(
+                true, true, "sync", "-f", mountPath) != 0) {
+            throw new IOException("could not flush " + mountPath + ": "
+                    + processExecutor.getOutput());
+        }
+        LOGGER.log(Level.INFO, "flushed {0} ({1}) in {2} ms", new Object[]{
+            mountPath, phase, (System.nanoTime() - start) / 1_000_000});
+    }
+
+    private static void flushCopyJobs(FileCopier fileCopier,
+            StorageDevice storageDevice, String... mountPaths)
+            throws IOException {
+        if ((durabilityMode == DurabilityMode.PER_FILE)
+                && (fileCopier instanceof BatchFileCopier)) {
+            LOGGER.log(Level.INFO, "flushed files of {0} in {1} ms",
+                    new Object[]{storageDevice.getDevice(),
+                        ((BatchFileCopier) fileCopier).getFileFlushTime()});
+            return;
+        }
+        // other file copiers can't flush single files
+        if (durabilityMode != DurabilityMode.BEFORE_UMOUNT) {
+            for (String mountPath : mountPaths) {
+                if (mountPath != null) {
+                    flushFileSystem(mountPath, "end of copy job");
+                }
+            }
+        }
+    }
+
+    /**
+     * flushes a file system before it is unmounted if the durability mode
+     * requires it or if the file system was modified after its copy job (so
+     * that we never rely on the implicit flush of umount)
+     *
+     * @param mountPath the mount path of the file system
+     * @param modified if the file system was modified after its copy job
+     * (e.g. by the syslinux conversion or when making it bootable) or without
+     * any copy job at all
+     * @throws IOException if flushing failed
+     */
+    static void flushBeforeUmount(String mountPath, boolean modified)
+            throws IOException {
+        if (modified || (durabilityMode == DurabilityMode.BEFORE_UMOUNT)) {
+            flushFileSystem(mountPath, modified
+                    ? "modified, before umount" : "before umount");
+        }
+    }
+
+    /**
+     * flushes a partition before it is unmounted (see
+     * {@link #flushBeforeUmount(java.lang.String, boolean)}), does nothing if
+     * the partition is not mounted
+     *
+     * @param partition the partition
+     * @param modified if the partition was modified after its copy job or
+     * without any copy job at all
+     * @throws IOException if flushing failed
+     * @throws DBusException if checking the mount state failed
+     */
+    static void flushBeforeUmount(Partition partition, boolean modified)
+            throws IOException, DBusException {
+        if (partition.isMounted()) {
+            flushBeforeUmount(partition.getMountPath(), modified);
+        }
+    }
+
     private static void copyPersistence(SystemSource source,
             InstallerOrUpgrader installerOrUpgrader,
             Partition destinationDataPartition, DLCopyGUI dlCopyGUI)
@@ -1573,6 +1950,10 @@ public class DLCopy {
         // remove original ssh config to make it unique for every system
         removeSshConfig(destinationDataPath);
 
+        // the copy script can't flush single files, so the data partition
+        // is flushed as a whole in all modes
+        flushFileSystem(destinationDataPath, "data partition");
+
         // update GUI
         dlCopyGUI.showInstallUnmounting();
 
@@ -1586,22 +1967,6 @@ public class DLCopy {
         }
     }
 
-    private static void mkpart(List<String> commandList,
-            String start, String end) {
-        commandList.add("mkpart");
-        commandList.add("primary");
-        commandList.add(start);
-        commandList.add(end);
-    }
-
-    private static void setFlag(List<String> commandList,
-            String partition, String flag, String value) {
-        commandList.add("set");
-        commandList.add(partition);
-        commandList.add(flag);
-        commandList.add(value);
-    }
-
     /**
      * formats the exchange partition
      *
@@ -1645,7 +2010,7 @@ public class DLCopy {
 
         // If there was a LUKS partition at the very same location, the LUKS
         // header would be still there without wiping.
-        PROCESS_EXECUTOR.executeProcess("/usr/sbin/wipefs", "-a", device);
+        PROCESS_EXECUTOR.get().executeProcess("/usr/sbin/wipefs", "-a", device);
 
         // So that we continue to reliably detect exchange partitions even after
         // reformatting them with a different file system we have to adopt the
@@ -1653,7 +2018,7 @@ public class DLCopy {
         Pattern pattern = Pattern.compile("(.*)(\\p{Digit}+)");
         Matcher matcher = pattern.matcher(device);
         if (matcher.matches()) {
-            PROCESS_EXECUTOR.executeProcess("/sbin/sfdisk", "--part-type",
+            PROCESS_EXECUTOR.get().executeProcess("/sbin/sfdisk", "--part-type",
                     matcher.group(1), matcher.group(2), exchangePartitionID);
             try {
                 TimeUnit.SECONDS.sleep(7);
@@ -1675,11 +2040,11 @@ public class DLCopy {
 
         int exitValue;
         if (quickSwitch == null) {
-            exitValue = PROCESS_EXECUTOR.executeProcess(
+            exitValue = PROCESS_EXECUTOR.get().executeProcess(
                     "/sbin/mkfs." + mkfsBuilder, mkfsLabelSwitch,
                     label, device);
         } else {
-            exitValue = PROCESS_EXECUTOR.executeProcess(
+            exitValue = PROCESS_EXECUTOR.get().executeProcess(
                     "/sbin/mkfs." + mkfsBuilder, quickSwitch, mkfsLabelSwitch,
                     label, device);
         }
@@ -1753,7 +2118,7 @@ public class DLCopy {
                 new Object[]{previousPartition, partition, delta});
 
         String partitionDeviceFile = "/dev/" + partition.getDeviceAndNumber();
-        ProcessExecutor processExecutor = new ProcessExecutor(true);
+        ProcessExecutor processExecutor = new WatchedProcessExecutor(true);
 
         // run initial filesystem check
         int returnValue = processExecutor.executeProcess(true, true, "e2fsck",
@@ -1858,6 +2223,75 @@ public class DLCopy {
         return false;
     }
 
+    /**
+     * waits until udisks provides a certain interface for all given device
+     * nodes
+     *
+     * @param interfaceName the name of the udisks interface (e.g. "Partition"
+     * or "Filesystem"), only used with udisks2
+     * @param deviceNodes the device nodes to wait for
+     * @return <code>true</code> if udisks knows about all device nodes,
+     * <code>false</code> if the timeout was reached or waiting was interrupted
+     * (the interrupt status is kept)
+     */
+    public static boolean waitForUdisks(
+            String interfaceName, Path... deviceNodes) {
+
+        List<Path> deviceNodeList = new ArrayList<>();
+        Collections.addAll(deviceNodeList, deviceNodes);
+
+        for (int i = 0, MAX = 30; i < MAX; i++) {
+
+            try {
+                List<String> partitions = DbusTools.getPartitions();
+                Iterator<Path> iterator = deviceNodeList.iterator();
+                while (iterator.hasNext()) {
+                    String name = iterator.next().getFileName().toString();
+                    if (!partitions.contains(name)) {
+                        continue;
+                    }
+                    if (DbusTools.DBUS_VERSION == DbusTools.DbusVersion.V2) {
+                        List<String> interfaceNames
+                                = DbusTools.getInterfaceNames(
+                                        "/org/freedesktop/UDisks2/block_devices/"
+                                        + name);
+                        if (!interfaceNames.contains(
+                                "org.freedesktop.UDisks2." + interfaceName)) {
+                            continue;
+                        }
+                    }
+                    LOGGER.log(Level.INFO, "udisks knows about {0}", name);
+                    iterator.remove();
+                }
+            } catch (IOException | DBusException | SAXException
+                    | ParserConfigurationException ex) {
+                LOGGER.log(Level.WARNING, "", ex);
+            }
+
+            if (deviceNodeList.isEmpty()) {
+                return true;
+            }
+
+            if (i < (MAX - 1)) {
+                try {
+                    TimeUnit.SECONDS.sleep(1);
+                } catch (InterruptedException ex) {
+                    // e.g. the storage device was aborted, the caller must
+                    // see the interrupt
+                    LOGGER.log(Level.WARNING,
+                            "interrupted while waiting for udisks", ex);
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            } else {
+                LOGGER.log(Level.WARNING, "Timeout reached, udisks still "
+                        + "doesn''t know about {0}.", deviceNodeList);
+            }
+        }
+
+        return false;
+    }
+
     public static boolean transfer(StorageDevice sourceDevice,
             StorageDevice destinationDevice, boolean transferExchange,
             boolean transferHome, boolean transferNetwork,
@@ -1888,7 +2322,7 @@ public class DLCopy {
     }
 
     public static void settleUdev() {
-        ProcessExecutor processExecutor = new ProcessExecutor(true);
+        ProcessExecutor processExecutor = new WatchedProcessExecutor(true);
         processExecutor.executeProcess(true, true, "udevadm", "settle");
     }
 
@@ -1904,7 +2338,7 @@ public class DLCopy {
                 installer, copyScript, persistenceSourcePath);
     }
 
-    private static void umountPartitions(String device, DLCopyGUI dlCopyGUI)
+    static void umountPartitions(String device, DLCopyGUI dlCopyGUI)
             throws IOException {
         LOGGER.log(Level.FINEST, "umountPartitions({0})", device);
         List<String> mounts
@@ -1950,7 +2384,7 @@ public class DLCopy {
         }
 
         if (disableSwap) {
-            int exitValue = PROCESS_EXECUTOR.executeProcess(
+            int exitValue = PROCESS_EXECUTOR.get().executeProcess(
                     "swapoff", swapFile);
             if (exitValue != 0) {
                 String errorMessage = STRINGS.getString("Error_Swapoff_File");
@@ -1983,7 +2417,7 @@ public class DLCopy {
         }
 
         if (disableSwap) {
-            int exitValue = PROCESS_EXECUTOR.executeProcess(
+            int exitValue = PROCESS_EXECUTOR.get().executeProcess(
                     "swapoff", swapFile);
             if (exitValue != 0) {
                 String errorMessage
@@ -0,0 +1,388 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.MEGA;
+import ch.fhnw.util.StorageDevice;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A short write and read benchmark that qualifies storage devices before an
+ * installation. A few extremely slow or worn out USB flash drives can slow
+ * down a whole batch, therefore every storage device is classified (see
+ * {@link DeviceClass}) and the installer can skip the bad ones or install
+ * them last (see {@link DLCopy#deviceQualification}).
+ * <p>
+ * The benchmark writes to the area after the first MiB of the storage
+ * device. This area is overwritten by the installation anyway. Sequential
+ * writes show how fast the large squashfs images can be written, random 4 KiB
+ * writes show how fast the many small files of the data partition can be
+ * written. All written data is read back and compared, a storage device that
+ * returns other data than written (or fails with an I/O error) is classified
+ * as {@link DeviceClass#FAILING}.
+ * <p>
+ * The results are cached per storage device (device file and serial number),
+ * so that the device list can show them and the same storage device is not
+ * benchmarked again in later batches.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public final class DeviceQualification {
+
+    /**
+     * the classes of storage devices
+     */
+    public enum DeviceClass {
+        /**
+         * the storage device is fast
+         */
+        FAST,
+        /**
+         * the storage device has a normal speed
+         */
+        NORMAL,
+        /**
+         * the storage device is slower than the configured minimum
+         */
+        SLOW,
+        /**
+         * the storage device returned wrong data or had I/O errors
+         */
+        FAILING
+    }
+
+    /**
+     * the result of the qualification of a storage device
+     */
+    public static final class Result {
+
+        private final DeviceClass deviceClass;
+        private final double writeSpeed;
+        private final double readSpeed;
+        private final double writeIOPS;
+        private final double readIOPS;
+        private final String error;
+
+        private Result(DeviceClass deviceClass, double writeSpeed,
+                double readSpeed, double writeIOPS, double readIOPS,
+                String error) {
+            this.deviceClass = deviceClass;
+            this.writeSpeed = writeSpeed;
+            this.readSpeed = readSpeed;
+            this.writeIOPS = writeIOPS;
+            this.readIOPS = readIOPS;
+            this.error = error;
+        }
+
+        /**
+         * returns the class of the storage device
+         *
+         * @return the class of the storage device
+         */
+        public DeviceClass getDeviceClass() {
+            return deviceClass;
+        }
+
+        /**
+         * returns the sequential write speed
+         *
+         * @return the sequential write speed (in MiB/s)
+         */
+        public double getWriteSpeed() {
+            return writeSpeed;
+        }
+
+        /**
+         * returns the sequential read speed
+         *
+         * @return the sequential read speed (in MiB/s)
+         */
+        public double getReadSpeed() {
+            return readSpeed;
+        }
+
+        /**
+         * returns the number of random 4 KiB writes per second
+         *
+         * @return the number of random 4 KiB writes per second
+         */
+        public double getWriteIOPS() {
+            return writeIOPS;
+        }
+
+        /**
+         * returns the number of random 4 KiB reads per second
+         *
+         * @return the number of random 4 KiB reads per second
+         */
+        public double getReadIOPS() {
+            return readIOPS;
+        }
+
+        /**
+         * returns the error of a failing storage device
+         *
+         * @return the error of a failing storage device or null, if the
+         * storage device did not fail
+         */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            if (deviceClass == DeviceClass.FAILING) {
+                return deviceClass + " (" + error + ')';
+            }
+            return String.format("%s (write %.1f MiB/s, read %.1f MiB/s, "
+                    + "%.0f random writes/s, %.0f random reads/s)",
+                    deviceClass, writeSpeed, readSpeed, writeIOPS, readIOPS);
+        }
+    }
+
+    private static final Logger LOGGER
+            = Logger.getLogger(DeviceQualification.class.getName());
+    // the first MiB contains the partition table and the boot loader
+    private static final long OFFSET = MEGA;
+    private static final int SEQUENTIAL_SIZE = 8 * DirectIO.BUFFER_SIZE;
+    // the random writes are spread over this area (after the sequential
+    // writes)
+    private static final long RANDOM_AREA = 256 * MEGA;
+    private static final int RANDOM_BLOCK_SIZE = 4096;
+    private static final int RANDOM_BLOCKS = 64;
+    // very slow storage devices need several seconds for a single random
+    // write, so we stop after some time
+    private static final long RANDOM_TIME_LIMIT = 10_000_000_000L;
+    private static final double FAST_WRITE_SPEED = 30;
+    private static final double FAST_WRITE_IOPS = 200;
+    private static final double MINIMUM_WRITE_IOPS = 10;
+    private static final Map<String, Result> RESULTS
+            = new ConcurrentHashMap<>();
+
+    private DeviceQualification() {
+    }
+
+    /**
+     * qualifies a storage device (or returns the cached result of a previous
+     * qualification)
+     * <p>
+     * <b>Warning:</b> This overwrites the first 300 MiB of the storage device!
+     * All partitions of the storage device must be unmounted.
+     *
+     * @param storageDevice the storage device
+     * @return the result of the qualification or null, if the storage device
+     * can't be qualified (e.g. because direct I/O is not supported)
+     */
+    public static Result qualify(StorageDevice storageDevice) {
+        if (!DirectIO.isSupported()) {
+            return null;
+        }
+        String key = getKey(storageDevice);
+        Result result = RESULTS.get(key);
+        if (result == null) {
+            result = measure(storageDevice);
+            if (result != null) {
+                RESULTS.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * returns the result of a previous qualification of a storage device
+     *
+     * @param storageDevice the storage device
+     * @return the result of a previous qualification or null, if the storage
+     * device was not qualified yet
+     */
+    public static Result getResult(StorageDevice storageDevice) {
+        return RESULTS.get(getKey(storageDevice));
+    }
+
+    private static String getKey(StorageDevice storageDevice) {
+        return storageDevice.getDevice() + ' ' + storageDevice.getSerial();
+    }
+
+    private static Result measure(StorageDevice storageDevice) {
+        Path path = Paths.get("/dev/" + storageDevice.getDevice());
+        long usableSize = storageDevice.getSize() - OFFSET;
+        if (usableSize < SEQUENTIAL_SIZE + RANDOM_AREA) {
+            LOGGER.log(Level.INFO,
+                    "{0} is too small for a qualification", path);
+            return null;
+        }
+        int blockSize = DirectIO.getBlockSize(path);
+        if (RANDOM_BLOCK_SIZE % blockSize != 0) {
+            LOGGER.log(Level.INFO, "unsupported block size of {0}: {1}",
+                    new Object[]{path, blockSize});
+            return null;
+        }
+
+        ByteBuffer buffer = null;
+        ByteBuffer readBuffer = null;
+        try {
+            buffer = DirectIO.acquireBuffer();
+            readBuffer = DirectIO.acquireBuffer();
+            byte[] data = new byte[DirectIO.BUFFER_SIZE];
+            // random data, some controllers compress or deduplicate
+            long seed = System.nanoTime();
+
+            // sequential writes
+            long start = System.nanoTime();
+            try (FileChannel channel = DirectIO.openForWriting(path)) {
+                for (long done = 0; done < SEQUENTIAL_SIZE;
+                        done += DirectIO.BUFFER_SIZE) {
+                    fill(buffer, data, seed + done);
+                    write(channel, buffer, OFFSET + done);
+                }
+                channel.force(true);
+            }
+            double writeSpeed = getSpeed(SEQUENTIAL_SIZE, start);
+
+            // sequential reads
+            start = System.nanoTime();
+            try (FileChannel channel = DirectIO.openForReading(path)) {
+                for (long done = 0; done < SEQUENTIAL_SIZE;
+                        done += DirectIO.BUFFER_SIZE) {
+                    readBuffer.clear();
+                    read(channel, readBuffer, OFFSET + done);
+                    fill(buffer, data, seed + done);
+                    if (!buffer.equals(readBuffer)) {
+                        return failed(path, "data at offset "
+                                + (OFFSET + done) + " differs");
+                    }
+                }
+            }
+            double readSpeed = getSpeed(SEQUENTIAL_SIZE, start);
+
+            // random writes
+            Random random = new Random(seed);
+            long[] positions = new long[RANDOM_BLOCKS];
+            long randomBlocks = RANDOM_AREA / RANDOM_BLOCK_SIZE;
+            for (int i = 0; i < RANDOM_BLOCKS; i++) {
+                positions[i] = OFFSET + SEQUENTIAL_SIZE + RANDOM_BLOCK_SIZE
+                        * (long) (random.nextDouble() * randomBlocks);
+            }
+            int writtenBlocks = 0;
+            start = System.nanoTime();
+            try (FileChannel channel = DirectIO.openForWriting(path)) {
+                while ((writtenBlocks < RANDOM_BLOCKS)
+                        && (System.nanoTime() - start < RANDOM_TIME_LIMIT)) {
+                    fillBlock(buffer, positions[writtenBlocks], seed);
+                    write(channel, buffer, positions[writtenBlocks]);
+                    writtenBlocks++;
+                }
+                channel.force(true);
+            }
+            double writeIOPS = getRate(writtenBlocks, start);
+
+            // random reads
+            start = System.nanoTime();
+            try (FileChannel channel = DirectIO.openForReading(path)) {
+                for (int i = 0; i < writtenBlocks; i++) {
+                    readBuffer.clear();
+                    readBuffer.limit(RANDOM_BLOCK_SIZE);
+                    read(channel, readBuffer, positions[i]);
+                    fillBlock(buffer, positions[i], seed);
+                    if (!buffer.equals(readBuffer)) {
+                        return failed(path, "data at offset "
+                                + positions[i] + " differs");
+                    }
+                }
+            }
+            double readIOPS = getRate(writtenBlocks, start);
+
+            DeviceClass deviceClass;
+            if ((writeSpeed < DLCopy.minimumWriteSpeed)
+                    || (writeIOPS < MINIMUM_WRITE_IOPS)) {
+                deviceClass = DeviceClass.SLOW;
+            } else if ((writeSpeed >= FAST_WRITE_SPEED)
+                    && (writeIOPS >= FAST_WRITE_IOPS)) {
+                deviceClass = DeviceClass.FAST;
+            } else {
+                deviceClass = DeviceClass.NORMAL;
+            }
+            Result result = new Result(deviceClass,
+                    writeSpeed, readSpeed, writeIOPS, readIOPS, null);
+            LOGGER.log(Level.INFO, "qualification of {0}: {1}",
+                    new Object[]{path, result});
+            return result;
+
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+            return failed(path, ex.getMessage());
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "qualification interrupted", ex);
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (buffer != null) {
+                DirectIO.releaseBuffer(buffer);
+            }
+            if (readBuffer != null) {
+                DirectIO.releaseBuffer(readBuffer);
+            }
+        }
+    }
+
+    private static Result failed(Path path, String error) {
+        LOGGER.log(Level.WARNING, "qualification of {0} failed: {1}",
+                new Object[]{path, error});
+        return new Result(DeviceClass.FAILING, 0, 0, 0, 0, error);
+    }
+
+    private static void fill(ByteBuffer buffer, byte[] data, long seed) {
+        new Random(seed).nextBytes(data);
+        buffer.clear();
+        buffer.put(data);
+        buffer.flip();
+    }
+
+    private static void fillBlock(ByteBuffer buffer, long position,
+            long seed) {
+        // every block contains its position, so that a block that was
+        // written to the wrong position is detected
+        buffer.clear();
+        buffer.limit(RANDOM_BLOCK_SIZE);
+        for (long value = seed ^ position; buffer.hasRemaining(); value++) {
+            buffer.putLong(value);
+        }
+        buffer.flip();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of device");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private static double getSpeed(long bytes, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return bytes / seconds / MEGA;
+    }
+
+    private static double getRate(int count, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return count / seconds;
+    }
+}
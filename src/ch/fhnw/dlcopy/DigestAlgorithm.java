@@ -0,0 +1,70 @@
+package ch.fhnw.dlcopy;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * the digest algorithms for checking copies (choose between integrity and
+ * speed)
+ */
+public enum DigestAlgorithm {
+    /**
+     * MD5, compatible with md5sum.txt of the live media
+     */
+    MD5("MD5"),
+    /**
+     * SHA-256, a cryptographic hash (fast on CPUs with SHA extensions)
+     */
+    SHA256("SHA-256"),
+    /**
+     * XXH64, a very fast non-cryptographic hash (see {@link XXH64Digest})
+     */
+    XXH64("XXH64");
+
+    private final String name;
+
+    private DigestAlgorithm(String name) {
+        this.name = name;
+    }
+
+    /**
+     * returns the standard name of the algorithm
+     *
+     * @return the standard name of the algorithm
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * creates a new MessageDigest for this algorithm
+     *
+     * @return a new MessageDigest for this algorithm
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    public MessageDigest createMessageDigest()
+            throws NoSuchAlgorithmException {
+        if (this == XXH64) {
+            return new XXH64Digest();
+        }
+        return MessageDigest.getInstance(name);
+    }
+
+    /**
+     * returns the algorithm with a given standard name
+     *
+     * @param name the standard name of the algorithm
+     * @return the algorithm with the given standard name
+     * @throws NoSuchAlgorithmException if there is no algorithm with the given
+     * name
+     */
+    public static DigestAlgorithm forName(String name)
+            throws NoSuchAlgorithmException {
+        for (DigestAlgorithm algorithm : values()) {
+            if (algorithm.name.equals(name)) {
+                return algorithm;
+            }
+        }
+        throw new NoSuchAlgorithmException(name);
+    }
+}
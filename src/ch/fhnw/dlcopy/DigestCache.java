@@ -0,0 +1,186 @@
+package ch.fhnw.dlcopy;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe cache of file digests with a memory budget. Copy checks of
+ * the same source files (e.g. when installing a batch of storage devices)
+ * only need to hash the source once. In a long session with many sources
+ * (ISOs, the running system, transfer sources) an unbounded cache would grow
+ * without limit, therefore the least recently used entries are evicted when
+ * the memory budget (see {@link DLCopy#digestCacheMemoryBudget}) is
+ * exceeded.
+ * <p>
+ * The digests are not stored as separate arrays but in fixed size slots of
+ * one primitive array. Every entry only consists of the (interned) key and
+ * the index of its slot.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class DigestCache {
+
+    /**
+     * the maximum length of a digest (SHA-256)
+     */
+    public static final int MAX_DIGEST_LENGTH = 32;
+
+    // one length byte followed by the digest
+    private static final int SLOT_SIZE = MAX_DIGEST_LENGTH + 1;
+    // a rough estimation of the size of a map entry, the Integer value and
+    // the String of the key (without its characters)
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int INITIAL_SLOTS = 64;
+
+    // in access order, so that the eldest entry is the least recently used
+    private final LinkedHashMap<String, Integer> slots
+            = new LinkedHashMap<>(INITIAL_SLOTS, 0.75f, true);
+    private byte[] slotData = new byte[INITIAL_SLOTS * SLOT_SIZE];
+    private int[] freeSlots = new int[INITIAL_SLOTS];
+    private int freeSlotCount;
+    private int usedSlotCount;
+    private long usedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * returns the cached digest of a file
+     *
+     * @param key the key of the file
+     * @return the cached digest or null, if the cache contains no digest for
+     * the file
+     */
+    public synchronized byte[] get(String key) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        int offset = slot * SLOT_SIZE;
+        return Arrays.copyOfRange(slotData,
+                offset + 1, offset + 1 + slotData[offset]);
+    }
+
+    /**
+     * puts the digest of a file into the cache (and evicts the least recently
+     * used entries if the memory budget is exceeded)
+     *
+     * @param key the key of the file
+     * @param digest the digest of the file
+     */
+    public synchronized void put(String key, byte[] digest) {
+        if (digest.length > MAX_DIGEST_LENGTH) {
+            throw new IllegalArgumentException("digests must not be longer "
+                    + "than " + MAX_DIGEST_LENGTH + " bytes");
+        }
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            // paths of the same source are requested over and over again
+            key = key.intern();
+            slot = allocateSlot();
+            slots.put(key, slot);
+            usedBytes += getEntrySize(key);
+        }
+        int offset = slot * SLOT_SIZE;
+        slotData[offset] = (byte) digest.length;
+        System.arraycopy(digest, 0, slotData, offset + 1, digest.length);
+        evict(DLCopy.digestCacheMemoryBudget);
+    }
+
+    /**
+     * removes all entries from the cache
+     */
+    public synchronized void clear() {
+        slots.clear();
+        slotData = new byte[INITIAL_SLOTS * SLOT_SIZE];
+        freeSlots = new int[INITIAL_SLOTS];
+        freeSlotCount = 0;
+        usedSlotCount = 0;
+        usedBytes = 0;
+    }
+
+    /**
+     * returns the number of entries in the cache
+     *
+     * @return the number of entries in the cache
+     */
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    /**
+     * returns the estimated memory usage of the cache
+     *
+     * @return the estimated memory usage of the cache (in bytes)
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * returns the number of successful lookups
+     *
+     * @return the number of successful lookups
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * returns the number of failed lookups
+     *
+     * @return the number of failed lookups
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * returns the number of evicted entries
+     *
+     * @return the number of evicted entries
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return slots.size() + " entries, " + usedBytes + " bytes, " + hits
+                + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+
+    private int allocateSlot() {
+        if (freeSlotCount > 0) {
+            return freeSlots[--freeSlotCount];
+        }
+        if ((usedSlotCount + 1) * SLOT_SIZE > slotData.length) {
+            slotData = Arrays.copyOf(slotData, 2 * slotData.length);
+        }
+        return usedSlotCount++;
+    }
+
+    private void evict(long memoryBudget) {
+        Iterator<Map.Entry<String, Integer>> iterator
+                = slots.entrySet().iterator();
+        // always keep the latest entry
+        while ((usedBytes > memoryBudget) && (slots.size() > 1)) {
+            Map.Entry<String, Integer> eldest = iterator.next();
+            if (freeSlotCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, 2 * freeSlots.length);
+            }
+            freeSlots[freeSlotCount++] = eldest.getValue();
+            usedBytes -= getEntrySize(eldest.getKey());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private static long getEntrySize(String key) {
+        return ENTRY_OVERHEAD + 2L * key.length() + SLOT_SIZE;
+    }
+}
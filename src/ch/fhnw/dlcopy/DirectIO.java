@@ -0,0 +1,354 @@
+package ch.fhnw.dlcopy;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Support for writing with direct I/O (O_DIRECT). Direct writes bypass the
+ * page cache, so there is no build-up of dirty pages that must be flushed
+ * when unmounting and the write progress shows what really reached the
+ * storage device. Direct reads always come from the storage device, which is
+ * what we need when verifying a copy.
+ * <p>
+ * Direct I/O needs ExtendedOpenOption.DIRECT and ByteBuffer.alignedSlice(),
+ * which are only available since Java 10. Both are looked up at runtime, on
+ * older Java versions {@link #isSupported()} just returns
+ * <code>false</code>.
+ * <p>
+ * All direct writes must use buffers from the aligned buffer pool (see
+ * {@link #acquireBuffer()}) and must write whole blocks at block aligned
+ * positions.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public final class DirectIO {
+
+    /**
+     * the size of the buffers in the aligned buffer pool
+     */
+    public static final int BUFFER_SIZE = 4 * DLCopy.MEGA;
+
+    private static final Logger LOGGER
+            = Logger.getLogger(DirectIO.class.getName());
+    // the alignment of all buffers, a multiple of all common block sizes
+    private static final int ALIGNMENT = 4096;
+    private static final int MAX_BUFFERS = 16;
+    private static final OpenOption DIRECT_OPTION;
+    private static final Method ALIGNED_SLICE_METHOD;
+    private static final BlockingQueue<ByteBuffer> BUFFER_POOL
+            = new LinkedBlockingQueue<>();
+    private static final AtomicInteger ALLOCATED_BUFFERS = new AtomicInteger();
+
+    static {
+        OpenOption directOption = null;
+        Method alignedSliceMethod = null;
+        try {
+            Class<?> optionClass = Class.forName(
+                    "com.sun.nio.file.ExtendedOpenOption");
+            for (Object constant : optionClass.getEnumConstants()) {
+                if (((Enum<?>) constant).name().equals("DIRECT")) {
+                    directOption = (OpenOption) constant;
+                }
+            }
+            alignedSliceMethod = ByteBuffer.class.getMethod(
+                    "alignedSlice", int.class);
+        } catch (ClassNotFoundException | NoSuchMethodException ex) {
+            LOGGER.log(Level.INFO, "direct I/O is not supported: {0}",
+                    ex.toString());
+            directOption = null;
+        }
+        DIRECT_OPTION = directOption;
+        ALIGNED_SLICE_METHOD = directOption == null ? null : alignedSliceMethod;
+    }
+
+    private DirectIO() {
+    }
+
+    /**
+     * checks if the Java runtime supports direct I/O
+     *
+     * @return <code>true</code>, if the Java runtime supports direct I/O,
+     * <code>false</code> otherwise
+     */
+    public static boolean isSupported() {
+        return DIRECT_OPTION != null;
+    }
+
+    /**
+     * returns the open option for direct I/O
+     *
+     * @return the open option for direct I/O or null, if direct I/O is not
+     * supported
+     */
+    public static OpenOption getDirectOption() {
+        return DIRECT_OPTION;
+    }
+
+    /**
+     * opens a file or device for direct writing
+     *
+     * @param path the path of the file or device
+     * @param options additional open options
+     * @return the opened channel
+     * @throws IOException if the path can't be opened for direct I/O (e.g.
+     * tmpfs does not support direct I/O)
+     */
+    public static FileChannel openForWriting(Path path, OpenOption... options)
+            throws IOException {
+        if (!isSupported()) {
+            throw new IOException("direct I/O is not supported");
+        }
+        OpenOption[] allOptions = new OpenOption[options.length + 2];
+        System.arraycopy(options, 0, allOptions, 0, options.length);
+        allOptions[options.length] = StandardOpenOption.WRITE;
+        allOptions[options.length + 1] = DIRECT_OPTION;
+        return FileChannel.open(path, allOptions);
+    }
+
+    /**
+     * opens a file or device for direct reading
+     *
+     * @param path the path of the file or device
+     * @return the opened channel
+     * @throws IOException if the path can't be opened for direct I/O
+     */
+    public static FileChannel openForReading(Path path) throws IOException {
+        if (!isSupported()) {
+            throw new IOException("direct I/O is not supported");
+        }
+        return FileChannel.open(path, StandardOpenOption.READ, DIRECT_OPTION);
+    }
+
+    /**
+     * returns the block size that direct writes to a path must be aligned to
+     *
+     * @param path the path
+     * @return the block size that direct writes to the path must be aligned
+     * to
+     */
+    public static int getBlockSize(Path path) {
+        String pathString = path.toString();
+        if (pathString.startsWith("/dev/")) {
+            return getLogicalBlockSize(pathString.substring(5));
+        }
+        try {
+            FileStore fileStore = Files.getFileStore(path);
+            Method method = FileStore.class.getMethod("getBlockSize");
+            long blockSize = (Long) method.invoke(fileStore);
+            if ((blockSize > 0) && (ALIGNMENT % blockSize == 0)) {
+                return (int) blockSize;
+            }
+        } catch (Exception ex) {
+            LOGGER.log(Level.FINE, "", ex);
+        }
+        return ALIGNMENT;
+    }
+
+    private static int getLogicalBlockSize(String device) {
+        try {
+            File deviceDirectory
+                    = new File("/sys/class/block/" + device).getCanonicalFile();
+            File blockSizeFile = new File(
+                    deviceDirectory, "queue/logical_block_size");
+            if (!blockSizeFile.exists()) {
+                // partitions use the queue of their storage device
+                blockSizeFile = new File(deviceDirectory.getParentFile(),
+                        "queue/logical_block_size");
+            }
+            int blockSize = Integer.parseInt(
+                    DLCopy.readOneLineFile(blockSizeFile));
+            if ((blockSize > 0) && (ALIGNMENT % blockSize == 0)) {
+                return blockSize;
+            }
+        } catch (IOException | NumberFormatException ex) {
+            LOGGER.log(Level.FINE, "", ex);
+        }
+        return ALIGNMENT;
+    }
+
+    /**
+     * takes an aligned buffer from the buffer pool (waits if all buffers are
+     * in use)
+     *
+     * @return an aligned and cleared buffer with {@link #BUFFER_SIZE} bytes
+     * @throws InterruptedException if waiting for a buffer was interrupted
+     */
+    public static ByteBuffer acquireBuffer() throws InterruptedException {
+        ByteBuffer buffer = tryAcquireBuffer();
+        if (buffer == null) {
+            buffer = BUFFER_POOL.take();
+            buffer.clear();
+            buffer.order(ByteOrder.BIG_ENDIAN);
+        }
+        return buffer;
+    }
+
+    /**
+     * takes an aligned buffer from the buffer pool if one is available
+     *
+     * @return an aligned and cleared buffer with {@link #BUFFER_SIZE} bytes or
+     * null, if all buffers are in use
+     */
+    public static ByteBuffer tryAcquireBuffer() {
+        ByteBuffer buffer = BUFFER_POOL.poll();
+        if (buffer == null) {
+            if (ALLOCATED_BUFFERS.incrementAndGet() <= MAX_BUFFERS) {
+                buffer = allocateAlignedBuffer();
+            } else {
+                ALLOCATED_BUFFERS.decrementAndGet();
+                return null;
+            }
+        }
+        buffer.clear();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * returns a buffer to the buffer pool
+     *
+     * @param buffer a buffer from {@link #acquireBuffer()}
+     */
+    public static void releaseBuffer(ByteBuffer buffer) {
+        BUFFER_POOL.offer(buffer);
+    }
+
+    /**
+     * writes a buffer completely to a channel that was opened with
+     * {@link #openForWriting(java.nio.file.Path, java.nio.file.OpenOption...)}
+     * and pads the last partial block with zeros
+     *
+     * @param channel the channel
+     * @param buffer the buffer (the remaining bytes are written)
+     * @param blockSize the block size of the channel
+     * @return the number of written bytes (without padding)
+     * @throws IOException if writing fails
+     */
+    public static int writeBlocks(FileChannel channel, ByteBuffer buffer,
+            int blockSize) throws IOException {
+        int bytes = buffer.remaining();
+        pad(buffer, blockSize);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return bytes;
+    }
+
+    /**
+     * pads the remaining bytes of a buffer with zeros to a multiple of the
+     * block size
+     *
+     * @param buffer the buffer
+     * @param blockSize the block size
+     */
+    public static void pad(ByteBuffer buffer, int blockSize) {
+        int padding = (blockSize - (buffer.remaining() % blockSize))
+                % blockSize;
+        if (padding > 0) {
+            int limit = buffer.limit();
+            buffer.limit(limit + padding);
+            for (int i = limit; i < limit + padding; i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * reads the first bytes of a file or device back (with direct I/O, if
+     * possible, so that the storage device and not the page cache is read)
+     * and digests them
+     *
+     * @param path the path of the file or device
+     * @param length the number of bytes to digest
+     * @param messageDigest the message digest to update
+     * @return the digest of the first bytes of the file or device
+     * @throws IOException if reading fails or the file or device is shorter
+     * than the given length
+     */
+    public static byte[] digest(Path path, long length,
+            MessageDigest messageDigest) throws IOException {
+
+        FileChannel channel = null;
+        if (isSupported()) {
+            try {
+                channel = openForReading(path);
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, "can''t read {0} with direct I/O: {1}",
+                        new Object[]{path, ex.toString()});
+            }
+        }
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = acquireBuffer();
+        } catch (InterruptedException ex) {
+            channel.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "interrupted while waiting for a buffer");
+        }
+        int blockSize = getBlockSize(path);
+        try {
+            long position = 0;
+            while (position < length) {
+                int bytes = (int) Math.min(BUFFER_SIZE, length - position);
+                // direct reads must consist of whole blocks
+                buffer.clear();
+                buffer.limit(bytes);
+                pad(buffer, blockSize);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position())
+                            < 0) {
+                        throw new EOFException(path + " ends at "
+                                + (position + buffer.position())
+                                + " Byte, expected " + length + " Byte");
+                    }
+                }
+                buffer.position(0);
+                buffer.limit(bytes);
+                messageDigest.update(buffer);
+                position += bytes;
+            }
+            return messageDigest.digest();
+        } finally {
+            channel.close();
+            releaseBuffer(buffer);
+        }
+    }
+
+    private static ByteBuffer allocateAlignedBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE + ALIGNMENT);
+        if (ALIGNED_SLICE_METHOD != null) {
+            try {
+                ByteBuffer alignedBuffer
+                        = (ByteBuffer) ALIGNED_SLICE_METHOD.invoke(
+                                buffer, ALIGNMENT);
+                alignedBuffer.limit(BUFFER_SIZE);
+                return alignedBuffer.slice();
+            } catch (ReflectiveOperationException ex) {
+                LOGGER.log(Level.WARNING, "", ex);
+            }
+        }
+        buffer.limit(BUFFER_SIZE);
+        return buffer.slice();
+    }
+}
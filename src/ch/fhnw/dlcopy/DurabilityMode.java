@@ -0,0 +1,24 @@
+package ch.fhnw.dlcopy;
+
+/**
+ * the policies for when copied data is explicitly flushed to the storage
+ * device (file systems that are modified after their copy job are flushed
+ * before they are unmounted in all modes)
+ */
+public enum DurabilityMode {
+    /**
+     * every copied file is flushed (fsync()) before it is closed, the safest
+     * and slowest mode
+     */
+    PER_FILE,
+    /**
+     * every destination file system is flushed (syncfs()) at the end of its
+     * copy job
+     */
+    PER_PARTITION,
+    /**
+     * every destination file system is flushed (syncfs()) once right before
+     * it is unmounted
+     */
+    BEFORE_UMOUNT
+}
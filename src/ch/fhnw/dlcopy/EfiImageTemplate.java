@@ -0,0 +1,257 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.MEGA;
+import ch.fhnw.dlcopy.gui.DLCopyGUI;
+import ch.fhnw.filecopier.CopyJob;
+import ch.fhnw.filecopier.FileCopier;
+import ch.fhnw.filecopier.Source;
+import ch.fhnw.util.LernstickFileTools;
+import ch.fhnw.util.Partition;
+import ch.fhnw.util.ProcessExecutor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.freedesktop.dbus.exceptions.DBusException;
+
+/**
+ * A finished image of the EFI partition (FAT file system with all EFI files,
+ * syslinux conversion and data partition mode already applied). It is created
+ * once per installation batch and then written raw into the EFI partition of
+ * every target storage device.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class EfiImageTemplate {
+
+    /**
+     * the size of the image (the EFI partition starts at 1 MiB and ends at
+     * EFI_PARTITION_SIZE MiB)
+     */
+    public static final long IMAGE_SIZE
+            = (DLCopy.EFI_PARTITION_SIZE - 1) * MEGA;
+
+    private static final Logger LOGGER
+            = Logger.getLogger(EfiImageTemplate.class.getName());
+    private static final int SECTOR_SIZE = 512;
+
+    private final File imageFile;
+    private final boolean checkCopies;
+
+    private EfiImageTemplate(File imageFile, boolean checkCopies) {
+        this.imageFile = imageFile;
+        this.checkCopies = checkCopies;
+    }
+
+    /**
+     * creates a new EFI image template
+     *
+     * @param source the system source
+     * @param dataPartitionMode the data partition mode to set in the
+     * bootloaders config
+     * @param checkCopies if copies should be checked for errors (also the
+     * copies of the image on the target storage devices)
+     * @param dlCopyGUI the program GUI to show error messages
+     * @return the new EFI image template
+     * @throws IOException if an I/O exception occurs
+     * @throws DBusException if mounting the source EFI partition fails
+     * @throws NoSuchAlgorithmException if the file checking algorithm can't be
+     * found
+     */
+    public static EfiImageTemplate create(SystemSource source,
+            DataPartitionMode dataPartitionMode, boolean checkCopies,
+            DLCopyGUI dlCopyGUI)
+            throws IOException, DBusException, NoSuchAlgorithmException {
+
+        File imageFile = File.createTempFile("DLCopy-EFI", ".img");
+        File mountDir = null;
+        ProcessExecutor processExecutor = new WatchedProcessExecutor(true);
+        boolean mounted = false;
+        try {
+            try (RandomAccessFile randomAccessFile
+                    = new RandomAccessFile(imageFile, "rw")) {
+                randomAccessFile.setLength(IMAGE_SIZE);
+            }
+
+            int exitValue = processExecutor.executeProcess(true, true,
+                    "/sbin/mkfs.vfat", "-n", Partition.EFI_LABEL,
+                    imageFile.getPath());
+            if (exitValue != 0) {
+                LOGGER.severe(processExecutor.getOutput());
+                String errorMessage = DLCopy.STRINGS.getString(
+                        "Error_Create_EFI_Partition");
+                LOGGER.severe(errorMessage);
+                throw new IOException(errorMessage);
+            }
+
+            mountDir = LernstickFileTools.createTempDirectory(
+                    new File("/tmp/"), "DLCopy-EFI");
+            String mountPath = mountDir.getPath();
+            exitValue = processExecutor.executeProcess(true, true,
+                    "mount", "-o", "loop", imageFile.getPath(), mountPath);
+            if (exitValue != 0) {
+                throw new IOException("could not mount EFI image "
+                        + imageFile + ": " + processExecutor.getOutput());
+            }
+            mounted = true;
+
+            // fill the image
+            FileCopier fileCopier = new FileCopier();
+            fileCopier.copy(checkCopies, new CopyJob(
+                    new Source[]{source.getEfiCopySource()},
+                    new String[]{mountPath}));
+            source.unmountTmpPartitions();
+            DLCopy.isolinuxToSyslinux(mountPath, dlCopyGUI);
+            DLCopy.setDataPartitionMode(source, dataPartitionMode, mountPath);
+
+            exitValue = processExecutor.executeProcess(
+                    true, true, "umount", mountPath);
+            if (exitValue != 0) {
+                throw new IOException("could not umount EFI image "
+                        + imageFile + ": " + processExecutor.getOutput());
+            }
+            mounted = false;
+
+            LOGGER.log(Level.INFO, "created EFI image template {0}", imageFile);
+            return new EfiImageTemplate(imageFile, checkCopies);
+
+        } catch (IOException | DBusException | NoSuchAlgorithmException ex) {
+            if (mounted) {
+                processExecutor.executeProcess(true, true,
+                        "umount", mountDir.getPath());
+            }
+            Files.deleteIfExists(imageFile.toPath());
+            throw ex;
+        } finally {
+            if (mountDir != null && !mounted) {
+                Files.deleteIfExists(mountDir.toPath());
+            }
+        }
+    }
+
+    /**
+     * writes the image into an EFI partition (and reads it back, if copies
+     * should be checked)
+     *
+     * @param efiDevice the device file of the EFI partition (e.g. "/dev/sdb1")
+     * @throws IOException if writing the image fails or the partition doesn't
+     * contain the image after writing
+     */
+    public void writeTo(String efiDevice) throws IOException {
+
+        File sizeFile = new File("/sys/class/block/"
+                + efiDevice.substring(5) + "/size");
+        long partitionSize
+                = Long.parseLong(DLCopy.readOneLineFile(sizeFile)) * 512;
+        if (partitionSize < IMAGE_SIZE) {
+            throw new IOException("EFI partition " + efiDevice + " ("
+                    + partitionSize + " Byte) is smaller than the EFI image ("
+                    + IMAGE_SIZE + " Byte)");
+        }
+
+        LOGGER.log(Level.INFO, "writing EFI image template to {0}", efiDevice);
+        // the digest of the written bytes (every copy has its own volume ID)
+        MessageDigest writtenDigest = null;
+        if (checkCopies) {
+            try {
+                writtenDigest = DLCopy.digestAlgorithm.createMessageDigest();
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IOException(ex);
+            }
+        }
+        long position = 0;
+        try (FileChannel source = FileChannel.open(
+                imageFile.toPath(), StandardOpenOption.READ);
+                QueuedBlockWriter destination = new QueuedBlockWriter(
+                        Paths.get(efiDevice),
+                        DLCopy.directIO && DirectIO.isSupported(),
+                        DLCopy.writeQueueDepth)) {
+
+            boolean endOfFile = false;
+            while (!endOfFile && (position < IMAGE_SIZE)) {
+                ByteBuffer buffer = destination.acquireBuffer();
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                // direct writes must consist of whole blocks
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer, position + buffer.position())
+                            < 0) {
+                        endOfFile = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                int bytes = buffer.remaining();
+                if (bytes == 0) {
+                    DirectIO.releaseBuffer(buffer);
+                    break;
+                }
+                if (position == 0) {
+                    // every copy gets its own FAT volume ID
+                    setRandomVolumeId(buffer);
+                }
+                if (writtenDigest != null) {
+                    writtenDigest.update(buffer.duplicate());
+                }
+                destination.submit(buffer, position);
+                position += bytes;
+            }
+            destination.force();
+        }
+
+        if (writtenDigest != null) {
+            // The EFI files are not copied file by file, therefore the file
+            // checks of the copy stage don't cover the EFI partition.
+            byte[] expectedDigest = writtenDigest.digest();
+            byte[] readDigest = DirectIO.digest(
+                    Paths.get(efiDevice), position, writtenDigest);
+            if (!MessageDigest.isEqual(expectedDigest, readDigest)) {
+                throw new IOException("EFI partition " + efiDevice
+                        + " does not match the EFI image template");
+            }
+            LOGGER.log(Level.INFO, "verified EFI partition {0}", efiDevice);
+        }
+    }
+
+    /**
+     * deletes the image file
+     */
+    public void delete() {
+        try {
+            Files.deleteIfExists(imageFile.toPath());
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+        }
+    }
+
+    private static void setRandomVolumeId(ByteBuffer bootSectors) {
+        byte[] fatType = new byte[5];
+        bootSectors.position(0x52);
+        bootSectors.get(fatType);
+        boolean fat32 = "FAT32".equals(
+                new String(fatType, StandardCharsets.US_ASCII));
+        int volumeIdOffset = fat32 ? 0x43 : 0x27;
+        int volumeId = new SecureRandom().nextInt();
+        bootSectors.putInt(volumeIdOffset, volumeId);
+        if (fat32) {
+            // FAT32 also has a backup boot sector
+            int backupSector = bootSectors.getShort(0x32) & 0xFFFF;
+            int backupOffset = backupSector * SECTOR_SIZE + volumeIdOffset;
+            if ((backupSector != 0)
+                    && (backupOffset + 4 <= bootSectors.limit())) {
+                bootSectors.putInt(backupOffset, volumeId);
+            }
+        }
+        bootSectors.position(0);
+    }
+}
@@ -34,7 +34,7 @@ public class ExchangeTransferrer extends Transferrer {
     public void transfer(boolean checkCopies)
             throws IOException, DBusException, NoSuchAlgorithmException {
 
-        FileCopier fileCopier = new FileCopier();
+        FileCopier fileCopier = new BatchFileCopier();
         gui.showInstallFileCopy(fileCopier);
         
         mount();
@@ -0,0 +1,21 @@
+package ch.fhnw.dlcopy;
+
+/**
+ * the modes for formatting the data partition while installing
+ */
+public enum FormattingMode {
+    /**
+     * format the data partition before copying any files
+     */
+    SEQUENTIAL,
+    /**
+     * format the data partition in the background while the system files are
+     * copied
+     */
+    CONCURRENT,
+    /**
+     * format the data partition in the background only if a short benchmark
+     * shows that the storage device handles concurrent writes well
+     */
+    AUTO
+}
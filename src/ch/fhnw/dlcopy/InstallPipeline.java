@@ -0,0 +1,358 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.dlcopy.gui.DLCopyGUI;
+import ch.fhnw.util.ProcessExecutor;
+import ch.fhnw.util.StorageDevice;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Installs the system on several storage devices concurrently. Every storage
+ * device runs through all installation stages in order, but different storage
+ * devices may be in different stages at the same time (e.g. while one storage
+ * device is copying files the next one is already partitioned and formatted).
+ * The number of storage devices per stage is limited individually.
+ * <p>
+ * The GUI always follows one storage device (the foreground device) in the
+ * order of the device list. Progress updates of all other storage devices are
+ * held back until they become the foreground device.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class InstallPipeline {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(InstallPipeline.class.getName());
+    private static final Map<InstallStage, Integer> STAGE_LIMITS
+            = new EnumMap<>(InstallStage.class);
+
+    static {
+        for (InstallStage stage : InstallStage.values()) {
+            STAGE_LIMITS.put(stage, 1);
+        }
+    }
+
+    private final Installer installer;
+    private final SystemSource source;
+    private final DLCopyGUI dlCopyGUI;
+    private final Map<InstallStage, Semaphore> semaphores;
+    private final int slots;
+    private CopyConcurrencyController copyController;
+
+    /**
+     * creates a new InstallPipeline
+     *
+     * @param installer the Installer that uses this pipeline
+     * @param source the system source
+     * @param dlCopyGUI the program GUI
+     */
+    public InstallPipeline(Installer installer, SystemSource source,
+            DLCopyGUI dlCopyGUI) {
+        this.installer = installer;
+        this.source = source;
+        this.dlCopyGUI = dlCopyGUI;
+        semaphores = new EnumMap<>(InstallStage.class);
+        int stageSlots = 0;
+        for (InstallStage stage : InstallStage.values()) {
+            int limit = getEffectiveLimit(stage);
+            if ((stage == InstallStage.COPY)
+                    && (DLCopy.adaptiveCopyConcurrency > 0)) {
+                // the stage limit is just the starting point
+                copyController = new CopyConcurrencyController(
+                        limit, DLCopy.adaptiveCopyConcurrency);
+                semaphores.put(stage, copyController.getSemaphore());
+                stageSlots += DLCopy.adaptiveCopyConcurrency;
+            } else {
+                semaphores.put(stage, new Semaphore(limit, true));
+                stageSlots += limit;
+            }
+        }
+        slots = stageSlots;
+    }
+
+    /**
+     * returns the maximum number of storage devices in a stage
+     *
+     * @param stage the installation stage
+     * @return the maximum number of storage devices in the stage
+     */
+    public static int getStageLimit(InstallStage stage) {
+        return STAGE_LIMITS.get(stage);
+    }
+
+    /**
+     * sets the maximum number of storage devices in a stage
+     *
+     * @param stage the installation stage
+     * @param limit the maximum number of storage devices in the stage
+     */
+    public static void setStageLimit(InstallStage stage, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException(
+                    "limit of stage " + stage + " must be at least 1");
+        }
+        STAGE_LIMITS.put(stage, limit);
+    }
+
+    /**
+     * installs the system on a list of storage devices
+     *
+     * @param storageDevices the list of storage devices
+     * @param exchangePartitionLabels the labels of the exchange partitions
+     * (one per storage device)
+     * @param autoNumbers the auto numbers to report when a storage device is
+     * finished (one per storage device)
+     * @throws InterruptedException if waiting for a storage device was
+     * interrupted
+     */
+    public void install(List<StorageDevice> storageDevices,
+            List<String> exchangePartitionLabels, List<Integer> autoNumbers)
+            throws InterruptedException {
+
+        List<DeviceJob> jobs = new ArrayList<>();
+        for (int i = 0, size = storageDevices.size(); i < size; i++) {
+            jobs.add(new DeviceJob(storageDevices.get(i),
+                    exchangePartitionLabels.get(i)));
+        }
+
+        // There is no point in having more storage devices in flight than
+        // there are slots in all stages.
+        int threads = Math.min(jobs.size(), slots);
+        LOGGER.log(Level.INFO, "installing {0} storage devices with {1} "
+                + "threads, stage limits: {2}",
+                new Object[]{jobs.size(), threads, STAGE_LIMITS});
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        if (copyController != null) {
+            copyController.start();
+        }
+        try {
+            // The GUI follows the list order but the storage devices may be
+            // started in a different order.
+            List<StorageDevice> startOrder = storageDevices;
+            if (DLCopy.topologyAwareScheduling) {
+                startOrder = UsbTopology.interleave(storageDevices);
+            }
+            for (StorageDevice storageDevice : startOrder) {
+                executorService.execute(
+                        jobs.get(storageDevices.indexOf(storageDevice)));
+            }
+
+            // report the storage devices to the GUI in their list order
+            for (int i = 0, size = jobs.size(); i < size; i++) {
+                DeviceJob job = jobs.get(i);
+                dlCopyGUI.installingDeviceStarted(job.storageDevice);
+                job.foregroundFilter.moveToForeground();
+                job.finished.await();
+                dlCopyGUI.installingDeviceFinished(
+                        job.errorMessage, autoNumbers.get(i));
+            }
+        } finally {
+            executorService.shutdownNow();
+            if (copyController != null) {
+                copyController.close();
+            }
+            source.unmountTmpPartitions();
+        }
+    }
+
+    private static int getEffectiveLimit(InstallStage stage) {
+        int limit = getStageLimit(stage);
+        switch (stage) {
+            case TRANSFER:
+                // all storage devices transfer from the same source device
+                if (limit > 1) {
+                    LOGGER.log(Level.WARNING, "limiting stage {0} to 1 storage "
+                            + "device (shared transfer source)", stage);
+                    return 1;
+                }
+                return limit;
+
+            default:
+                return limit;
+        }
+    }
+
+    private class DeviceJob implements Runnable {
+
+        private final StorageDevice storageDevice;
+        private final String exchangePartitionLabel;
+        private final ForegroundFilter foregroundFilter;
+        private final DLCopyGUI deviceGUI;
+        private final CountDownLatch finished;
+        private volatile String errorMessage;
+
+        public DeviceJob(StorageDevice storageDevice,
+                String exchangePartitionLabel) {
+            this.storageDevice = storageDevice;
+            this.exchangePartitionLabel = exchangePartitionLabel;
+            foregroundFilter = new ForegroundFilter();
+            deviceGUI = (DLCopyGUI) Proxy.newProxyInstance(
+                    DLCopyGUI.class.getClassLoader(),
+                    new Class<?>[]{DLCopyGUI.class}, foregroundFilter);
+            finished = new CountDownLatch(1);
+        }
+
+        @Override
+        public void run() {
+            installer.setThreadGUI(deviceGUI);
+            installer.startRun(storageDevice, RunHistory.INSTALL);
+            installer.startWatching(storageDevice);
+            QueueTuning queueTuning = null;
+            InstallationTarget target = null;
+            try {
+                if (DLCopy.queueTuning) {
+                    queueTuning = QueueTuning.tune(storageDevice);
+                }
+                target = new InstallationTarget(
+                        source, storageDevice, installer);
+                for (InstallStage stage : InstallStage.values()) {
+                    Semaphore semaphore = semaphores.get(stage);
+                    semaphore.acquire();
+                    try {
+                        LOGGER.log(Level.INFO, "{0}: starting stage {1}",
+                                new Object[]{storageDevice, stage});
+                        if ((stage == InstallStage.COPY)
+                                && (copyController != null)) {
+                            copyController.copyStarted(storageDevice);
+                        }
+                        long start
+                                = installer.stageStarted(storageDevice, stage);
+                        installer.executeStage(stage, target,
+                                exchangePartitionLabel, deviceGUI);
+                        installer.stageFinished(storageDevice, stage, start);
+                    } finally {
+                        if ((stage == InstallStage.COPY)
+                                && (copyController != null)) {
+                            copyController.copyFinished(storageDevice);
+                        }
+                        semaphore.release();
+                    }
+                }
+            } catch (Exception exception) {
+                LOGGER.log(Level.WARNING, "", exception);
+                errorMessage = exception.getMessage();
+            } finally {
+                // also clears the interrupt of an aborted storage device
+                errorMessage = installer.stopWatching(
+                        storageDevice, errorMessage);
+                if ((target != null) && (errorMessage != null)) {
+                    // the data partition may still be formatted in the
+                    // background when a stage failed (waiting could take
+                    // forever on a hung storage device)
+                    target.cancelDataPartitionFormatting();
+                }
+                if (queueTuning != null) {
+                    queueTuning.restore();
+                }
+                installer.finishRun(storageDevice, errorMessage);
+                installer.setThreadGUI(null);
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * Forwards the installation progress of a storage device to the GUI only
+     * while the storage device is in the foreground. Otherwise only the last
+     * progress update is kept and shown as soon as the storage device moves to
+     * the foreground.
+     */
+    private class ForegroundFilter implements InvocationHandler {
+
+        private final Object lock = new Object();
+        private boolean foreground;
+        private Method lastMethod;
+        private Object[] lastArguments;
+
+        public void moveToForeground() {
+            synchronized (lock) {
+                foreground = true;
+                if (lastMethod != null) {
+                    invokeGUI(lastMethod, lastArguments);
+                    lastMethod = null;
+                    lastArguments = null;
+                }
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] arguments)
+                throws Throwable {
+
+            String name = method.getName();
+
+            if (name.equals("showInstallPersistencyCopy")) {
+                // The GUI not only shows the copy progress but also executes
+                // the copy script. Therefore this call must never be dropped.
+                boolean inForeground;
+                synchronized (lock) {
+                    inForeground = foreground;
+                }
+                if (inForeground) {
+                    return invokeGUI(method, arguments);
+                }
+                copyPersistenceInBackground((String) arguments[1]);
+                return null;
+            }
+
+            if (name.startsWith("showInstall")
+                    || name.equals("setInstallCopyLine")) {
+                synchronized (lock) {
+                    if (foreground) {
+                        return invokeGUI(method, arguments);
+                    }
+                    lastMethod = method;
+                    lastArguments = arguments;
+                    return null;
+                }
+            }
+
+            // everything else (error messages, confirm dialogs, ...) must
+            // always be shown
+            return invokeGUI(method, arguments);
+        }
+
+        private Object invokeGUI(Method method, Object[] arguments) {
+            try {
+                return method.invoke(dlCopyGUI, arguments);
+            } catch (IllegalAccessException ex) {
+                LOGGER.log(Level.SEVERE, "", ex);
+                return null;
+            } catch (InvocationTargetException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                LOGGER.log(Level.SEVERE, "", cause);
+                return null;
+            }
+        }
+
+        private void copyPersistenceInBackground(String copyScript) {
+            ProcessExecutor processExecutor = new ProcessExecutor(true);
+            try {
+                int exitValue = processExecutor.executeScript(
+                        true, true, copyScript);
+                if (exitValue != 0) {
+                    LOGGER.severe("Could not copy persistence layer!");
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, "", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package ch.fhnw.dlcopy;
+
+/**
+ * the stages of an installation on a single storage device (in the order they
+ * are executed)
+ */
+public enum InstallStage {
+    /**
+     * wiping the storage device and writing the partition table
+     */
+    PARTITION,
+    /**
+     * creating the file systems (including random filling and encryption of
+     * the data partition)
+     */
+    FORMAT,
+    /**
+     * copying (and verifying) the exchange, EFI, system and data files
+     */
+    COPY,
+    /**
+     * installing the boot loader and unmounting the partitions
+     */
+    BOOT_SECTOR,
+    /**
+     * transferring data and settings from another storage device
+     */
+    TRANSFER
+}
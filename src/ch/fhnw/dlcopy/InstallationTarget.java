@@ -0,0 +1,290 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.util.Partition;
+import ch.fhnw.util.StorageDevice;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.freedesktop.dbus.exceptions.DBusException;
+
+/**
+ * Holds information about a storage device while the system is installed on
+ * it: the planned partition layout, the device files of all partitions and
+ * (as soon as the file systems exist) the partitions themselves.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class InstallationTarget {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(InstallationTarget.class.getName());
+
+    private final StorageDevice storageDevice;
+    private final String device;
+    private final PartitionSizes partitionSizes;
+    private final PartitionState partitionState;
+    private String efiDevice;
+    private String exchangeDevice;
+    private String dataDevice;
+    private String systemDevice;
+    private Partition efiPartition;
+    private Partition exchangePartition;
+    private Partition dataPartition;
+    private Partition systemPartition;
+    private volatile Future<Void> dataPartitionFormatting;
+
+    /**
+     * creates a new InstallationTarget
+     *
+     * @param source the system source
+     * @param storageDevice the target storage device
+     * @param installerOrUpgrader the Installer or Upgrader that installs the
+     * system
+     * @throws IOException if the storage device has an unsupported partition
+     * state
+     */
+    public InstallationTarget(SystemSource source, StorageDevice storageDevice,
+            InstallerOrUpgrader installerOrUpgrader) throws IOException {
+
+        this.storageDevice = storageDevice;
+
+        // determine size and state
+        device = "/dev/" + storageDevice.getDevice();
+        partitionSizes = installerOrUpgrader.getPartitionSizes(storageDevice);
+        int exchangeMB = partitionSizes.getExchangeMB();
+        partitionState = DLCopy.getPartitionState(storageDevice.getSize(),
+                DLCopy.getEnlargedSystemSize(source.getSystemSize()));
+
+        StorageDevice.Type deviceType = storageDevice.getType();
+        boolean pPartition
+                = deviceType == StorageDevice.Type.SDMemoryCard
+                || deviceType == StorageDevice.Type.NVMe;
+
+        // determine devices
+        switch (partitionState) {
+            case ONLY_SYSTEM:
+                efiDevice = device + (pPartition ? "p1" : '1');
+                systemDevice = device + (pPartition ? "p2" : '2');
+                break;
+
+            case PERSISTENCE:
+                efiDevice = device + (pPartition ? "p1" : '1');
+                dataDevice = device + (pPartition ? "p2" : '2');
+                systemDevice = device + (pPartition ? "p3" : '3');
+                break;
+
+            case EXCHANGE:
+                if (exchangeMB == 0) {
+                    efiDevice = device + (pPartition ? "p1" : '1');
+                    dataDevice = device + (pPartition ? "p2" : '2');
+                    systemDevice = device + (pPartition ? "p3" : '3');
+                } else {
+                    efiDevice = device + (pPartition ? "p1" : '1');
+                    exchangeDevice = device + (pPartition ? "p2" : '2');
+                    if (partitionSizes.getPersistenceMB() == 0) {
+                        systemDevice = device + (pPartition ? "p3" : '3');
+                    } else {
+                        dataDevice = device + (pPartition ? "p3" : '3');
+                        systemDevice = device + (pPartition ? "p4" : '4');
+                    }
+                }
+                break;
+
+            default:
+                String errorMessage = "unsupported partitionState \""
+                        + partitionState + '\"';
+                LOGGER.severe(errorMessage);
+                throw new IOException(errorMessage);
+        }
+    }
+
+    /**
+     * returns the target storage device
+     *
+     * @return the target storage device
+     */
+    public StorageDevice getStorageDevice() {
+        return storageDevice;
+    }
+
+    /**
+     * returns the device file of the storage device (e.g. "/dev/sdb")
+     *
+     * @return the device file of the storage device
+     */
+    public String getDevice() {
+        return device;
+    }
+
+    /**
+     * returns the planned partition sizes
+     *
+     * @return the planned partition sizes
+     */
+    public PartitionSizes getPartitionSizes() {
+        return partitionSizes;
+    }
+
+    /**
+     * returns the partition state of the storage device
+     *
+     * @return the partition state of the storage device
+     */
+    public PartitionState getPartitionState() {
+        return partitionState;
+    }
+
+    /**
+     * returns the device file of the EFI partition (e.g. "/dev/sdb1")
+     *
+     * @return the device file of the EFI partition
+     */
+    public String getEfiDevice() {
+        return efiDevice;
+    }
+
+    /**
+     * returns the device file of the exchange partition
+     *
+     * @return the device file of the exchange partition or null, if there is
+     * no exchange partition
+     */
+    public String getExchangeDevice() {
+        return exchangeDevice;
+    }
+
+    /**
+     * returns the device file of the data partition
+     *
+     * @return the device file of the data partition or null, if there is no
+     * data partition
+     */
+    public String getDataDevice() {
+        return dataDevice;
+    }
+
+    /**
+     * returns the device file of the system partition
+     *
+     * @return the device file of the system partition
+     */
+    public String getSystemDevice() {
+        return systemDevice;
+    }
+
+    /**
+     * returns the EFI partition
+     *
+     * @return the EFI partition or null, if the file systems were not yet
+     * created
+     */
+    public Partition getEfiPartition() {
+        return efiPartition;
+    }
+
+    /**
+     * returns the exchange partition
+     *
+     * @return the exchange partition or null, if there is no exchange
+     * partition or the file systems were not yet created
+     */
+    public Partition getExchangePartition() {
+        return exchangePartition;
+    }
+
+    /**
+     * returns the data partition
+     *
+     * @return the data partition or null, if there is no data partition or
+     * the file systems were not yet created
+     */
+    public Partition getDataPartition() {
+        return dataPartition;
+    }
+
+    /**
+     * returns the system partition
+     *
+     * @return the system partition or null, if the file systems were not yet
+     * created
+     */
+    public Partition getSystemPartition() {
+        return systemPartition;
+    }
+
+    /**
+     * sets the partitions after the file systems were created
+     *
+     * @param efiPartition the EFI partition
+     * @param exchangePartition the exchange partition (may be null)
+     * @param dataPartition the data partition (may be null)
+     * @param systemPartition the system partition
+     */
+    public void setPartitions(Partition efiPartition,
+            Partition exchangePartition, Partition dataPartition,
+            Partition systemPartition) {
+        this.efiPartition = efiPartition;
+        this.exchangePartition = exchangePartition;
+        this.dataPartition = dataPartition;
+        this.systemPartition = systemPartition;
+    }
+
+    /**
+     * sets the formatting of the data partition that runs in the background
+     *
+     * @param dataPartitionFormatting the formatting of the data partition
+     */
+    public synchronized void setDataPartitionFormatting(
+            Future<Void> dataPartitionFormatting) {
+        this.dataPartitionFormatting = dataPartitionFormatting;
+    }
+
+    /**
+     * cancels the formatting of the data partition (if running in the
+     * background), e.g. when the installation of the storage device failed
+     * or was aborted and nobody would ever wait for the formatting
+     */
+    public void cancelDataPartitionFormatting() {
+        Future<Void> formatting = dataPartitionFormatting;
+        if ((formatting != null) && formatting.cancel(true)) {
+            LOGGER.log(Level.INFO, "cancelled formatting of {0}", dataDevice);
+        }
+        dataPartitionFormatting = null;
+    }
+
+    /**
+     * waits until the formatting of the data partition (if running in the
+     * background) is finished
+     *
+     * @throws InterruptedException if waiting was interrupted
+     * @throws IOException if formatting the data partition failed
+     * @throws DBusException if formatting the data partition failed
+     */
+    public synchronized void waitForDataPartition()
+            throws InterruptedException, IOException, DBusException {
+        if (dataPartitionFormatting == null) {
+            return;
+        }
+        try {
+            dataPartitionFormatting.get();
+        } catch (CancellationException ex) {
+            throw new IOException(
+                    "formatting of " + dataDevice + " was cancelled", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof DBusException) {
+                throw (DBusException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // report errors only once
+            dataPartitionFormatting = null;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ch.fhnw.dlcopy;
 
+import static ch.fhnw.dlcopy.DLCopy.STRINGS;
 import ch.fhnw.dlcopy.gui.DLCopyGUI;
 import ch.fhnw.filecopier.FileCopier;
 import ch.fhnw.util.ProcessExecutor;
@@ -7,8 +8,14 @@ import ch.fhnw.util.StorageDevice;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.IOException;
-import java.util.HashMap;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -90,7 +97,7 @@ public class Installer extends InstallerOrUpgrader
      */
     public Installer(SystemSource source, List<StorageDevice> deviceList,
             String exchangePartitionLabel, String exchangePartitionFileSystem,
-            String dataPartitionFileSystem, HashMap<String, byte[]> digestCache,
+            String dataPartitionFileSystem, DigestCache digestCache,
             DLCopyGUI dlCopyGUI, int exchangePartitionSize,
             boolean copyExchangePartition, String autoNumberPattern,
             int autoNumberStart, int autoNumberIncrement,
@@ -139,27 +146,100 @@ public class Installer extends InstallerOrUpgrader
 
             dlCopyGUI.showInstallProgress();
 
-            String currentExchangePartitionLabel = exchangePartitionLabel;
-            for (StorageDevice storageDevice : deviceList) {
+            // Counterfeit storage devices would only fail after minutes of
+            // copying. Skip them right away.
+            List<StorageDevice> installList = deviceList;
+            if (DLCopy.capacityCheck) {
+                installList = checkCapacities(installList);
+            }
 
-                // update overall progress message
-                dlCopyGUI.installingDeviceStarted(storageDevice);
+            // A few very slow or failing storage devices can slow down the
+            // whole batch. Skip them or install them last.
+            if (DLCopy.deviceQualification != QualificationMode.OFF) {
+                installList = qualifyStorageDevices(installList);
+            }
+
+            logPredictedDuration(installList);
+
+            // A single hung or crawling storage device must not hold up the
+            // whole batch.
+            setWatchdog(new BatchWatchdog());
+
+            // The EFI partition is identical on all storage devices of a
+            // batch. Therefore we prepare it only once and write it as a
+            // whole to every storage device.
+            if (DLCopy.useEfiImageTemplate && (deviceListSize > 1)) {
+                try {
+                    efiImageTemplate = EfiImageTemplate.create(source,
+                            dataPartitionMode, checkCopies, dlCopyGUI);
+                } catch (IOException | DBusException
+                        | NoSuchAlgorithmException ex) {
+                    // not fatal, we just fall back to the slower per-device
+                    // creation of the EFI partition
+                    LOGGER.log(Level.WARNING,
+                            "could not create EFI image template", ex);
+                }
+            }
 
-                // auto numbering
-                if (!autoNumberPattern.isEmpty()) {
-                    String autoNumberString = String.valueOf(autoNumber);
-                    int nrOfPrefixZeros
-                            = autoNumberMinDigits - autoNumberString.length();
-                    for (int i = 0; i < nrOfPrefixZeros; i++) {
-                        autoNumberString = "0" + autoNumberString;
+            // the system partition image is cached across batches
+            if (DLCopy.systemImageCacheDirectory != null) {
+                try {
+                    systemImage = SystemImage.getSystemImage(source,
+                            DLCopy.systemImageCacheDirectory, checkCopies);
+                } catch (IOException | NoSuchAlgorithmException ex) {
+                    // not fatal, we just fall back to the slower per-device
+                    // creation of the system partition
+                    LOGGER.log(Level.WARNING,
+                            "could not get system image", ex);
+                }
+            }
+
+            // Read the EFI and system files only once from the (often slow)
+            // source storage device. The system files are not needed when
+            // there is a prebuilt system image.
+            if (DLCopy.ramStagedSource && (deviceListSize > 1)) {
+                try {
+                    RamStagedSystemSource ramStagedSource
+                            = RamStagedSystemSource.stage(source,
+                                    systemImage == null, checkCopies);
+                    if (ramStagedSource != null) {
+                        source = ramStagedSource;
                     }
-                    currentExchangePartitionLabel
-                            = exchangePartitionLabel.replace(
-                                    autoNumberPattern, autoNumberString);
-                    autoNumber += autoNumberIncrement;
+                } catch (IOException | DBusException
+                        | NoSuchAlgorithmException ex) {
+                    // not fatal, we just read from the source storage device
+                    LOGGER.log(Level.WARNING,
+                            "could not stage system source in RAM", ex);
                 }
+            }
+
+            if (DLCopy.pipelinedInstallation && (installList.size() > 1)) {
+                // auto numbering must follow the order of the device list
+                List<String> exchangePartitionLabels = new ArrayList<>();
+                List<Integer> autoNumbers = new ArrayList<>();
+                for (int i = 0, size = installList.size(); i < size; i++) {
+                    exchangePartitionLabels.add(
+                            getNextExchangePartitionLabel());
+                    autoNumbers.add(autoNumber);
+                }
+                new InstallPipeline(this, source, dlCopyGUI).install(
+                        installList, exchangePartitionLabels, autoNumbers);
+                return null;
+            }
+
+            for (StorageDevice storageDevice : installList) {
+
+                // update overall progress message
+                dlCopyGUI.installingDeviceStarted(storageDevice);
+                startRun(storageDevice, RunHistory.INSTALL);
+                startWatching(storageDevice);
+
+                String currentExchangePartitionLabel
+                        = getNextExchangePartitionLabel();
 
                 String errorMessage = null;
+                QueueTuning queueTuning = DLCopy.queueTuning
+                        ? QueueTuning.tune(storageDevice) : null;
                 try {
                     DLCopy.copyToStorageDevice(source, fileCopier,
                             storageDevice, currentExchangePartitionLabel,
@@ -172,21 +252,47 @@ public class Installer extends InstallerOrUpgrader
                         | DBusException exception) {
                     LOGGER.log(Level.WARNING, "", exception);
                     errorMessage = exception.getMessage();
+                } finally {
+                    if (queueTuning != null) {
+                        queueTuning.restore();
+                    }
                 }
+                // also clears the interrupt of an aborted storage device
+                errorMessage = stopWatching(storageDevice, errorMessage);
 
                 if (transferDevice != null) {
+                    long start = System.nanoTime();
                     DLCopy.transfer(transferDevice, storageDevice,
                             transferExchange, transferHome, transferNetwork,
                             transferPrinter, transferFirewall, checkCopies,
                             this, dlCopyGUI);
+                    stageFinished(storageDevice, InstallStage.TRANSFER, start);
                 }
 
+                finishRun(storageDevice, errorMessage);
                 dlCopyGUI.installingDeviceFinished(errorMessage, autoNumber);
             }
 
             return null;
 
         } finally {
+            // also covers the FileCopiers of a pipelined installation
+            double hitRatio = sourceCacheStatistics.getHitRatio();
+            if (hitRatio >= 0) {
+                LOGGER.log(Level.INFO, "source cache hit ratio of batch: "
+                        + "{0}%", Math.round(hitRatio * 100));
+            }
+            LOGGER.log(Level.INFO, "digest cache: {0}", digestCache);
+            setWatchdog(null);
+            if (efiImageTemplate != null) {
+                efiImageTemplate.delete();
+            }
+            if (source instanceof RamStagedSystemSource) {
+                RamStagedSystemSource ramStagedSource
+                        = (RamStagedSystemSource) source;
+                source = ramStagedSource.getDelegate();
+                ramStagedSource.release();
+            }
             lock.unlock();
         }
     }
@@ -208,6 +314,66 @@ public class Installer extends InstallerOrUpgrader
         dlCopyGUI.installingListFinished();
     }
 
+    /**
+     * executes a single installation stage on a storage device
+     *
+     * @param stage the installation stage
+     * @param target the installation target
+     * @param currentExchangePartitionLabel the label of the exchange partition
+     * on this storage device
+     * @param gui the GUI to use for this storage device
+     * @throws InterruptedException when the installation was interrupted
+     * @throws IOException when an I/O exception occurs
+     * @throws DBusException when there was a problem with DBus
+     * @throws NoSuchAlgorithmException when the file checking algorithm can't
+     * be found
+     */
+    void executeStage(InstallStage stage, InstallationTarget target,
+            String currentExchangePartitionLabel, DLCopyGUI gui)
+            throws InterruptedException, IOException, DBusException,
+            NoSuchAlgorithmException {
+
+        switch (stage) {
+            case PARTITION:
+                DLCopy.partitionStorageDevice(target, this, gui);
+                break;
+
+            case FORMAT:
+                DLCopy.createFileSystems(target, currentExchangePartitionLabel,
+                        personalDataPartitionEncryption,
+                        personalEncryptionPassword,
+                        secondaryDataPartitionEncryption,
+                        secondaryEncryptionPassword, randomFillDataPartition,
+                        this, gui);
+                break;
+
+            case COPY:
+                // Several storage devices may copy concurrently, every one
+                // with its own FileCopier. They only share the (thread-safe)
+                // digest cache and source cache statistics.
+                DLCopy.copyFiles(source,
+                        new BatchFileCopier(digestCache, sourceCacheStatistics),
+                        target, this, checkCopies, gui);
+                break;
+
+            case BOOT_SECTOR:
+                DLCopy.writeBootSector(source, target, this, gui);
+                break;
+
+            case TRANSFER:
+                if (transferDevice != null) {
+                    DLCopy.transfer(transferDevice, target.getStorageDevice(),
+                            transferExchange, transferHome, transferNetwork,
+                            transferPrinter, transferFirewall, checkCopies,
+                            this, gui);
+                }
+                break;
+
+            default:
+                LOGGER.log(Level.WARNING, "unsupported stage {0}", stage);
+        }
+    }
+
     @Override
     public void propertyChange(PropertyChangeEvent evt) {
         if (ProcessExecutor.LINE.equals(evt.getPropertyName())) {
@@ -220,22 +386,22 @@ public class Installer extends InstallerOrUpgrader
 
     @Override
     public void showCreatingFileSystems() {
-        dlCopyGUI.showInstallCreatingFileSystems();
+        getGUI().showInstallCreatingFileSystems();
     }
 
     @Override
     public void showCopyingFiles(FileCopier fileCopier) {
-        dlCopyGUI.showInstallFileCopy(fileCopier);
+        getGUI().showInstallFileCopy(fileCopier);
     }
 
     @Override
     public void showUnmounting() {
-        dlCopyGUI.showInstallUnmounting();
+        getGUI().showInstallUnmounting();
     }
 
     @Override
     public void showWritingBootSector() {
-        dlCopyGUI.showInstallWritingBootSector();
+        getGUI().showInstallWritingBootSector();
     }
 
     @Override
@@ -274,4 +440,144 @@ public class Installer extends InstallerOrUpgrader
     public DataPartitionMode getDataPartitionMode() {
         return dataPartitionMode;
     }
+
+    private void logPredictedDuration(List<StorageDevice> storageDevices) {
+        RunHistory runHistory = RunHistory.getInstance();
+        if (runHistory == null) {
+            return;
+        }
+        long duration = 0;
+        int knownDevices = 0;
+        for (StorageDevice storageDevice : storageDevices) {
+            long deviceDuration
+                    = runHistory.predictInstallDuration(storageDevice);
+            if (deviceDuration != -1) {
+                duration += deviceDuration;
+                knownDevices++;
+            }
+        }
+        if (knownDevices > 0) {
+            // the prediction is for installing one storage device after the
+            // other, pipelined installations are faster
+            LOGGER.log(Level.INFO, "predicted duration of batch: {0} min "
+                    + "(known storage devices or models: {1} of {2})",
+                    new Object[]{duration / 60_000, knownDevices,
+                        storageDevices.size()});
+        }
+    }
+
+    private List<StorageDevice> checkCapacities(
+            List<StorageDevice> storageDevices) throws InterruptedException {
+
+        // the storage devices are checked in parallel, the check is limited
+        // by the latency of the storage devices, not by their bandwidth
+        ExecutorService executorService = Executors.newFixedThreadPool(
+                storageDevices.size(), runnable -> {
+                    Thread thread = new Thread(runnable, "capacity check");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        List<StorageDevice> installList = new ArrayList<>();
+        try {
+            List<Future<CapacityCheck.Result>> futures = new ArrayList<>();
+            for (StorageDevice storageDevice : storageDevices) {
+                futures.add(executorService.submit(() -> {
+                    DLCopy.umountPartitions(
+                            "/dev/" + storageDevice.getDevice(), dlCopyGUI);
+                    return CapacityCheck.check(storageDevice);
+                }));
+            }
+            for (int i = 0, size = storageDevices.size(); i < size; i++) {
+                StorageDevice storageDevice = storageDevices.get(i);
+                try {
+                    CapacityCheck.Result result = futures.get(i).get();
+                    if (result.isFake()) {
+                        skip(storageDevice, "Error_Fake_Capacity", result);
+                        continue;
+                    }
+                } catch (ExecutionException ex) {
+                    // not fatal, the check is not possible (e.g. because
+                    // direct I/O is not supported)
+                    LOGGER.log(Level.WARNING, "capacity check of /dev/"
+                            + storageDevice.getDevice() + " failed", ex);
+                }
+                installList.add(storageDevice);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        return installList;
+    }
+
+    private List<StorageDevice> qualifyStorageDevices(
+            List<StorageDevice> storageDevices) {
+        List<StorageDevice> installList = new ArrayList<>();
+        List<StorageDevice> slowDevices = new ArrayList<>();
+        QualificationMode mode = DLCopy.deviceQualification;
+        for (StorageDevice storageDevice : storageDevices) {
+            DeviceQualification.Result result = null;
+            try {
+                DLCopy.umountPartitions(
+                        "/dev/" + storageDevice.getDevice(), dlCopyGUI);
+                result = DeviceQualification.qualify(storageDevice);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "", ex);
+            }
+            if (result == null) {
+                // qualification not possible, just install it
+                installList.add(storageDevice);
+                continue;
+            }
+            switch (result.getDeviceClass()) {
+                case FAILING:
+                    if (mode == QualificationMode.REPORT) {
+                        installList.add(storageDevice);
+                    } else {
+                        skip(storageDevice,
+                                "Error_Device_Qualification", result);
+                    }
+                    break;
+                case SLOW:
+                    if (mode == QualificationMode.SKIP) {
+                        skip(storageDevice,
+                                "Error_Device_Qualification", result);
+                    } else if (mode == QualificationMode.QUEUE_LAST) {
+                        slowDevices.add(storageDevice);
+                    } else {
+                        installList.add(storageDevice);
+                    }
+                    break;
+                default:
+                    installList.add(storageDevice);
+            }
+        }
+        installList.addAll(slowDevices);
+        return installList;
+    }
+
+    private void skip(StorageDevice storageDevice, String errorKey,
+            Object result) {
+        LOGGER.log(Level.WARNING, "skipping /dev/{0}: {1}",
+                new Object[]{storageDevice.getDevice(), result});
+        // report the skipped storage device right away, so that it can be
+        // removed while the others are installed
+        dlCopyGUI.installingDeviceStarted(storageDevice);
+        String errorMessage = STRINGS.getString(errorKey);
+        errorMessage = MessageFormat.format(errorMessage, result);
+        dlCopyGUI.installingDeviceFinished(errorMessage, autoNumber);
+    }
+
+    private String getNextExchangePartitionLabel() {
+        if (autoNumberPattern.isEmpty()) {
+            return exchangePartitionLabel;
+        }
+        String autoNumberString = String.valueOf(autoNumber);
+        int nrOfPrefixZeros = autoNumberMinDigits - autoNumberString.length();
+        for (int i = 0; i < nrOfPrefixZeros; i++) {
+            autoNumberString = "0" + autoNumberString;
+        }
+        autoNumber += autoNumberIncrement;
+        return exchangePartitionLabel.replace(
+                autoNumberPattern, autoNumberString);
+    }
 }
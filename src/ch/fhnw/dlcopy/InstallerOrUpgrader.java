@@ -3,10 +3,16 @@ package ch.fhnw.dlcopy;
 import ch.fhnw.dlcopy.gui.DLCopyGUI;
 import ch.fhnw.filecopier.FileCopier;
 import ch.fhnw.util.StorageDevice;
-import java.util.HashMap;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.SwingWorker;
+import org.freedesktop.dbus.exceptions.DBusException;
 
 /**
  * An abstract base class for Installer and Upgrader
@@ -16,10 +22,14 @@ import javax.swing.SwingWorker;
 public abstract class InstallerOrUpgrader
         extends SwingWorker<Void, Void> {
 
+    private static final Logger LOGGER
+            = Logger.getLogger(InstallerOrUpgrader.class.getName());
+
     /**
-     * the system source
+     * the system source (may be replaced by a RAM staged copy while a batch is
+     * running)
      */
-    protected final SystemSource source;
+    protected SystemSource source;
 
     /**
      * the list of storage devices to handle
@@ -41,6 +51,18 @@ public abstract class InstallerOrUpgrader
      */
     protected final FileCopier fileCopier;
 
+    /**
+     * the digest cache shared by all FileCopiers
+     */
+    protected final DigestCache digestCache;
+
+    /**
+     * the page cache statistics of the source files, shared by all
+     * FileCopiers of a batch
+     */
+    protected final SourceCacheStatistics sourceCacheStatistics
+            = new SourceCacheStatistics();
+
     /**
      * the lock to aquire before executing in background
      */
@@ -56,8 +78,27 @@ public abstract class InstallerOrUpgrader
      */
     protected int deviceListSize;
 
+    /**
+     * the prebuilt image of the EFI partition or null, if the EFI partition
+     * must be created and filled on every storage device
+     */
+    protected EfiImageTemplate efiImageTemplate;
+
+    /**
+     * the prebuilt image of the system partition or null, if the system
+     * partition must be created and filled on every storage device
+     */
+    protected SystemImage systemImage;
+
     private final String exchangePartitionFileSystem;
     private final String dataPartitionFileSystem;
+    private final ThreadLocal<DLCopyGUI> threadGUI = new ThreadLocal<>();
+    private BlockHashManifest blockHashManifest;
+    private Map<String, byte[]> referenceDigests;
+    // the runs in progress for the run history (by device)
+    private final Map<String, RunHistory.Run> runs
+            = new ConcurrentHashMap<>();
+    private BatchWatchdog watchdog;
 
     /**
      * creates a new InstallerOrUpgrader
@@ -76,7 +117,7 @@ public abstract class InstallerOrUpgrader
     public InstallerOrUpgrader(SystemSource source,
             List<StorageDevice> deviceList, String exchangePartitionLabel,
             String exhangePartitionFileSystem, String dataPartitionFileSystem,
-            HashMap<String, byte[]> digestCache, DLCopyGUI dlCopyGUI,
+            DigestCache digestCache, DLCopyGUI dlCopyGUI,
             Lock lock) {
 
         this.source = source;
@@ -84,7 +125,9 @@ public abstract class InstallerOrUpgrader
         this.exchangePartitionLabel = exchangePartitionLabel;
         this.exchangePartitionFileSystem = exhangePartitionFileSystem;
         this.dataPartitionFileSystem = dataPartitionFileSystem;
-        this.fileCopier = new FileCopier(digestCache);
+        this.digestCache = digestCache;
+        this.fileCopier
+                = new BatchFileCopier(digestCache, sourceCacheStatistics);
         this.dlCopyGUI = dlCopyGUI;
         this.lock = lock;
         deviceListSize = deviceList.size();
@@ -139,6 +182,95 @@ public abstract class InstallerOrUpgrader
         return dataPartitionFileSystem;
     }
 
+    /**
+     * returns the prebuilt image of the EFI partition
+     *
+     * @return the prebuilt image of the EFI partition or null, if the EFI
+     * partition must be created and filled on every storage device
+     */
+    public EfiImageTemplate getEfiImageTemplate() {
+        return efiImageTemplate;
+    }
+
+    /**
+     * returns the prebuilt image of the system partition
+     *
+     * @return the prebuilt image of the system partition or null, if the
+     * system partition must be created and filled on every storage device
+     */
+    public SystemImage getSystemImage() {
+        return systemImage;
+    }
+
+    /**
+     * returns the block hash manifest of the EFI and system files of the
+     * system source (the manifest is built when called for the first time)
+     *
+     * @return the block hash manifest of the EFI and system files of the
+     * system source
+     * @throws DBusException if a D-BUS exception occurs
+     * @throws IOException if reading a source file fails
+     * @throws NoSuchAlgorithmException if the digest algorithm is not
+     * available
+     */
+    public synchronized BlockHashManifest getBlockHashManifest()
+            throws DBusException, IOException, NoSuchAlgorithmException {
+        if (blockHashManifest == null) {
+            BlockHashManifest manifest = new BlockHashManifest();
+            manifest.addSection(BlockHashManifest.EFI_SECTION,
+                    source.getEfiCopySource());
+            manifest.addSection(BlockHashManifest.SYSTEM_SECTION,
+                    source.getSystemCopySourceFull());
+            blockHashManifest = manifest;
+        }
+        return blockHashManifest;
+    }
+
+    /**
+     * returns the MD5 sums from md5sum.txt of the system source (read when
+     * called for the first time)
+     *
+     * @return the MD5 sums from md5sum.txt of the system source
+     * @throws DBusException if a D-BUS exception occurs
+     * @throws IOException if reading md5sum.txt fails
+     * @see SystemSource#getReferenceDigests()
+     */
+    public synchronized Map<String, byte[]> getReferenceDigests()
+            throws DBusException, IOException {
+        if (referenceDigests == null) {
+            referenceDigests = source.getReferenceDigests();
+            LOGGER.log(Level.INFO, "using {0} MD5 sums from md5sum.txt",
+                    referenceDigests.size());
+        }
+        return referenceDigests;
+    }
+
+    /**
+     * sets the GUI that is used by the calling thread instead of the program
+     * GUI (e.g. for filtering progress updates of storage devices that are
+     * installed in the background)
+     *
+     * @param gui the GUI for the calling thread or null, if the calling thread
+     * should use the program GUI again
+     */
+    void setThreadGUI(DLCopyGUI gui) {
+        if (gui == null) {
+            threadGUI.remove();
+        } else {
+            threadGUI.set(gui);
+        }
+    }
+
+    /**
+     * returns the GUI to use in the calling thread
+     *
+     * @return the GUI to use in the calling thread
+     */
+    protected DLCopyGUI getGUI() {
+        DLCopyGUI gui = threadGUI.get();
+        return gui == null ? dlCopyGUI : gui;
+    }
+
     /**
      * returns the size of the source system
      *
@@ -147,4 +279,114 @@ public abstract class InstallerOrUpgrader
     public long getSourceSystemSize() {
         return source.getSystemSize();
     }
+
+    /**
+     * starts recording a run on a storage device for the run history
+     *
+     * @param storageDevice the storage device
+     * @param operation the operation (e.g. {@link RunHistory#INSTALL})
+     */
+    protected void startRun(StorageDevice storageDevice, String operation) {
+        if (RunHistory.getInstance() != null) {
+            runs.put(storageDevice.getDevice(), new RunHistory.Run(
+                    storageDevice, operation, RunHistory.getRelease(source)));
+        }
+    }
+
+    /**
+     * sets the watchdog that aborts hung or crawling storage devices (a
+     * previous watchdog is closed)
+     *
+     * @param watchdog the watchdog or null, if storage devices should not be
+     * watched
+     */
+    protected void setWatchdog(BatchWatchdog watchdog) {
+        if (this.watchdog != null) {
+            this.watchdog.close();
+        }
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * starts watching a storage device (must be called by the thread that
+     * handles the storage device)
+     *
+     * @param storageDevice the storage device
+     */
+    protected void startWatching(StorageDevice storageDevice) {
+        if (watchdog != null) {
+            watchdog.deviceStarted(storageDevice);
+        }
+    }
+
+    /**
+     * stops watching a storage device (must be called by the thread that
+     * handles the storage device)
+     *
+     * @param storageDevice the storage device
+     * @param errorMessage the error message or null, if the storage device
+     * was handled successfully
+     * @return the reason why the watchdog aborted the storage device or the
+     * given error message, if the storage device was not aborted
+     */
+    protected String stopWatching(StorageDevice storageDevice,
+            String errorMessage) {
+        if (watchdog != null) {
+            String abortReason = watchdog.deviceFinished(storageDevice);
+            if (abortReason != null) {
+                return abortReason;
+            }
+        }
+        return errorMessage;
+    }
+
+    /**
+     * notifies about a stage that starts on a storage device
+     *
+     * @param storageDevice the storage device
+     * @param stage the starting stage
+     * @return the start of the stage (see {@link System#nanoTime()})
+     */
+    long stageStarted(StorageDevice storageDevice, InstallStage stage) {
+        if (watchdog != null) {
+            watchdog.stageStarted(storageDevice, stage);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * records the duration of a finished stage on a storage device
+     *
+     * @param storageDevice the storage device
+     * @param stage the finished stage
+     * @param start the start of the stage (see {@link System#nanoTime()})
+     */
+    void stageFinished(StorageDevice storageDevice, InstallStage stage,
+            long start) {
+        if (watchdog != null) {
+            watchdog.stageFinished(storageDevice, stage);
+        }
+        RunHistory.Run run = runs.get(storageDevice.getDevice());
+        if (run != null) {
+            run.addStageDuration(stage.name(),
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    /**
+     * finishes recording a run on a storage device and stores it in the run
+     * history
+     *
+     * @param storageDevice the storage device
+     * @param errorMessage the error message or null, if the run was
+     * successful
+     */
+    protected void finishRun(StorageDevice storageDevice,
+            String errorMessage) {
+        RunHistory.Run run = runs.remove(storageDevice.getDevice());
+        if (run != null) {
+            run.finish(errorMessage);
+            RunHistory.getInstance().record(run);
+        }
+    }
 }
@@ -154,13 +154,14 @@ public class IsoSystemSource extends SystemSource {
     }
 
     @Override
-    public String getMbrPath() {
+    public synchronized String getMbrPath() {
         mountSystemImageIfNeeded();
         return rootFsPath + version.getMbrFilePath();
     }
 
     @Override
-    public void installExtlinux(Partition partition) throws IOException {
+    public synchronized void installExtlinux(Partition partition)
+            throws IOException {
         mountSystemImageIfNeeded();
         processExecutor.executeProcess("sync");
         String syslinuxDir = createSyslinuxDir(partition);
@@ -181,7 +182,7 @@ public class IsoSystemSource extends SystemSource {
     }
 
     @Override
-    public void unmountTmpPartitions() {
+    public synchronized void unmountTmpPartitions() {
         if (rootFsPath != null) {
             try {
                 processExecutor.executeScript(String.format(
@@ -209,7 +210,7 @@ public class IsoSystemSource extends SystemSource {
         }
     }
 
-    private void mountIsoImageIfNeeded() {
+    private synchronized void mountIsoImageIfNeeded() {
         if (mediaPath != null) {
             return;
         }
@@ -224,7 +225,7 @@ public class IsoSystemSource extends SystemSource {
         }
     }
 
-    private void mountSystemImageIfNeeded() {
+    private synchronized void mountSystemImageIfNeeded() {
         mountIsoImageIfNeeded();
         if (rootFsPath != null) {
             return;
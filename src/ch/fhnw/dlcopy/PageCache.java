@@ -0,0 +1,117 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.util.ProcessExecutor;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Some helper methods for controlling which files are kept in the page cache.
+ * When installing a batch of storage devices the source files must stay in
+ * the page cache, otherwise every storage device reads them again from the
+ * (often slow) source storage device. Without any hints the kernel happily
+ * evicts the source files in favour of the (never again needed) pages of the
+ * destination files.
+ * <p>
+ * Java has no API for posix_fadvise() or mincore(). Therefore we use the
+ * command line tools dd (coreutils) and fincore (util-linux).
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public final class PageCache {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(PageCache.class.getName());
+    // keeps the fincore command line short enough
+    private static final int FILES_PER_CALL = 100;
+    private static volatile boolean fincoreAvailable = true;
+
+    private PageCache() {
+    }
+
+    /**
+     * flushes a file to its storage device and then removes all pages of the
+     * file from the page cache (fdatasync() followed by
+     * posix_fadvise(POSIX_FADV_DONTNEED))
+     *
+     * @param file the file
+     * @return <code>true</code>, if the file was flushed and dropped,
+     * <code>false</code> otherwise
+     */
+    public static boolean flushAndDrop(File file) {
+        ProcessExecutor processExecutor = new ProcessExecutor(true);
+        int exitValue = processExecutor.executeProcess(true, true,
+                "dd", "if=/dev/null", "of=" + file.getAbsolutePath(),
+                "oflag=nocache", "conv=notrunc,fdatasync", "count=0");
+        if (exitValue != 0) {
+            LOGGER.log(Level.WARNING, "could not drop {0} from page cache: {1}",
+                    new Object[]{file, processExecutor.getOutput()});
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * returns the number of bytes of some files that are currently in the
+     * page cache
+     *
+     * @param files the files
+     * @return the number of bytes of the files that are currently in the page
+     * cache or -1, if this information is not available
+     */
+    public static long getResidentBytes(List<File> files) {
+        long residentBytes = 0;
+        for (int i = 0, size = files.size(); i < size; i += FILES_PER_CALL) {
+            List<File> chunk = files.subList(
+                    i, Math.min(size, i + FILES_PER_CALL));
+            long chunkBytes = getResidentBytesOfChunk(chunk);
+            if (chunkBytes < 0) {
+                return -1;
+            }
+            residentBytes += chunkBytes;
+        }
+        return residentBytes;
+    }
+
+    private static long getResidentBytesOfChunk(List<File> files) {
+        if (!fincoreAvailable) {
+            return -1;
+        }
+        List<String> command = new ArrayList<>();
+        command.add("fincore");
+        command.add("--bytes");
+        command.add("--noheadings");
+        command.add("--raw");
+        command.add("--output");
+        command.add("RES");
+        for (File file : files) {
+            command.add(file.getAbsolutePath());
+        }
+        ProcessExecutor processExecutor = new ProcessExecutor(true);
+        int exitValue = processExecutor.executeProcess(true, true,
+                command.toArray(new String[command.size()]));
+        if (exitValue != 0) {
+            // fincore is rather new (util-linux 2.30), don't try again
+            LOGGER.log(Level.WARNING, "fincore failed, page cache statistics "
+                    + "disabled: {0}", processExecutor.getOutput());
+            fincoreAvailable = false;
+            return -1;
+        }
+        long residentBytes = 0;
+        for (String line : processExecutor.getStdOutList()) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                residentBytes += Long.parseLong(line);
+            } catch (NumberFormatException ex) {
+                LOGGER.log(Level.WARNING, "", ex);
+                return -1;
+            }
+        }
+        return residentBytes;
+    }
+}
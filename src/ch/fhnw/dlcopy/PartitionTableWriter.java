@@ -0,0 +1,274 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.MEGA;
+import ch.fhnw.util.ProcessExecutor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes an MBR partition table directly to a storage device. All partitions
+ * are aligned to MiB boundaries (the same layout "parted -a optimal" creates)
+ * and the complete table is written with a single write, so that the kernel
+ * can be told about the new partitions right afterwards.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class PartitionTableWriter {
+
+    /**
+     * the partition type of an EFI system partition
+     */
+    public static final byte TYPE_EFI = (byte) 0xEF;
+    /**
+     * the partition type of a Linux partition
+     */
+    public static final byte TYPE_LINUX = (byte) 0x83;
+    /**
+     * the partition type of a FAT32 partition with LBA addressing
+     */
+    public static final byte TYPE_FAT32_LBA = (byte) 0x0C;
+    /**
+     * the partition type of an NTFS or exFAT partition
+     */
+    public static final byte TYPE_NTFS_EXFAT = (byte) 0x07;
+
+    private static final Logger LOGGER
+            = Logger.getLogger(PartitionTableWriter.class.getName());
+    private static final int MAX_PRIMARY_PARTITIONS = 4;
+    private static final int DISK_SIGNATURE_OFFSET = 440;
+    private static final int PARTITION_TABLE_OFFSET = 446;
+    private static final int PARTITION_ENTRY_SIZE = 16;
+    private static final int BOOT_SIGNATURE_OFFSET = 510;
+    private static final long MAX_MBR_SECTORS = 0xFFFFFFFFL;
+    private static final int HEADS = 255;
+    private static final int SECTORS_PER_TRACK = 63;
+
+    private final String device;
+    private final int sectorSize;
+    private final long sectorCount;
+    private final long sectorsPerMiB;
+    private final List<PartitionEntry> partitionEntries;
+    private long nextStartSector;
+
+    /**
+     * creates a new PartitionTableWriter
+     *
+     * @param device the device file of the storage device (e.g. "/dev/sdb")
+     * @param deviceSize the size of the storage device (given in Byte)
+     */
+    public PartitionTableWriter(String device, long deviceSize) {
+        this.device = device;
+        sectorSize = getLogicalSectorSize(device);
+        sectorCount = deviceSize / sectorSize;
+        sectorsPerMiB = MEGA / sectorSize;
+        partitionEntries = new ArrayList<>();
+        // the first partition starts at 1 MiB
+        nextStartSector = sectorsPerMiB;
+    }
+
+    /**
+     * adds a primary partition that starts at the end of the previous
+     * partition and ends at the given MiB border
+     *
+     * @param endMiB the (exclusive) end of the partition (given in MiB from the
+     * start of the storage device)
+     * @param type the partition type
+     * @param bootable if the partition should be marked as bootable
+     * @throws IOException if the partition does not fit into the partition
+     * table or storage device
+     */
+    public void addPartition(long endMiB, byte type, boolean bootable)
+            throws IOException {
+        addPartition(endMiB * sectorsPerMiB - 1, type, bootable, false);
+    }
+
+    /**
+     * adds a primary partition that starts at the end of the previous
+     * partition and fills the rest of the storage device
+     *
+     * @param type the partition type
+     * @param bootable if the partition should be marked as bootable
+     * @throws IOException if the partition does not fit into the partition
+     * table or storage device
+     */
+    public void addLastPartition(byte type, boolean bootable)
+            throws IOException {
+        long lastSector = Math.min(sectorCount, MAX_MBR_SECTORS) - 1;
+        if (sectorCount > MAX_MBR_SECTORS) {
+            LOGGER.log(Level.WARNING, "{0} has {1} sectors but an MBR can only "
+                    + "address {2} sectors, the rest of the device stays unused",
+                    new Object[]{device, sectorCount, MAX_MBR_SECTORS});
+        }
+        addPartition(lastSector, type, bootable, true);
+    }
+
+    /**
+     * writes the partition table to the storage device
+     *
+     * @throws IOException if writing the partition table fails
+     */
+    public void write() throws IOException {
+
+        // We write the complete first MiB (the MBR and the gap up to the first
+        // partition) so that no stale GPT header or boot loader remains there.
+        // The boot code itself is written later when making the device
+        // bootable.
+        ByteBuffer buffer = ByteBuffer.allocate(MEGA);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        byte[] diskSignature = new byte[4];
+        new SecureRandom().nextBytes(diskSignature);
+        buffer.position(DISK_SIGNATURE_OFFSET);
+        buffer.put(diskSignature);
+
+        for (int i = 0; i < partitionEntries.size(); i++) {
+            PartitionEntry entry = partitionEntries.get(i);
+            buffer.position(PARTITION_TABLE_OFFSET + i * PARTITION_ENTRY_SIZE);
+            buffer.put(entry.bootable ? (byte) 0x80 : 0);
+            buffer.put(getCHS(entry.firstSector));
+            buffer.put(entry.type);
+            buffer.put(getCHS(entry.lastSector));
+            buffer.putInt((int) entry.firstSector);
+            buffer.putInt((int) (entry.lastSector - entry.firstSector + 1));
+        }
+
+        buffer.position(BOOT_SIGNATURE_OFFSET);
+        buffer.put((byte) 0x55);
+        buffer.put((byte) 0xAA);
+        buffer.rewind();
+
+        LOGGER.log(Level.INFO, "writing partition table to {0}:\n{1}",
+                new Object[]{device, this});
+        try (FileChannel channel = FileChannel.open(
+                Paths.get(device), StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+            channel.force(true);
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "", ex);
+            String errorMessage = getPartitionTableErrorMessage();
+            throw new IOException(errorMessage, ex);
+        }
+    }
+
+    /**
+     * lets the kernel re-read the partition table of the storage device
+     *
+     * @throws IOException if the kernel could not be informed about the new
+     * partition table
+     */
+    public void rereadPartitionTable() throws IOException {
+        ProcessExecutor processExecutor = new WatchedProcessExecutor(true);
+        // "blockdev --rereadpt" uses the BLKRRPART ioctl, which fails when
+        // any partition of the device is still busy. In that case
+        // "partx --update" still informs the kernel about each partition
+        // individually via BLKPG ioctls.
+        if (processExecutor.executeProcess(true, true,
+                "blockdev", "--rereadpt", device) != 0
+                && processExecutor.executeProcess(true, true,
+                        "partx", "--update", device) != 0) {
+            String errorMessage = getPartitionTableErrorMessage();
+            LOGGER.severe(errorMessage);
+            throw new IOException(errorMessage);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int i = 0; i < partitionEntries.size(); i++) {
+            PartitionEntry entry = partitionEntries.get(i);
+            stringBuilder.append(String.format(
+                    "%d: start=%d end=%d type=%02x%s\n", i + 1,
+                    entry.firstSector, entry.lastSector, entry.type & 0xFF,
+                    entry.bootable ? " boot" : ""));
+        }
+        return stringBuilder.toString();
+    }
+
+    private void addPartition(long lastSector, byte type, boolean bootable,
+            boolean last) throws IOException {
+        if (partitionEntries.size() == MAX_PRIMARY_PARTITIONS) {
+            throw new IOException("an MBR can only hold "
+                    + MAX_PRIMARY_PARTITIONS + " primary partitions");
+        }
+        long maxSector = Math.min(sectorCount, MAX_MBR_SECTORS) - 1;
+        if ((lastSector < nextStartSector) || (lastSector > maxSector)) {
+            String errorMessage = getRepartitioningErrorMessage();
+            LOGGER.log(Level.SEVERE, "{0} (partition {1}: {2}-{3})",
+                    new Object[]{errorMessage, partitionEntries.size() + 1,
+                        nextStartSector, lastSector});
+            throw new IOException(errorMessage);
+        }
+        partitionEntries.add(new PartitionEntry(
+                nextStartSector, lastSector, type, bootable));
+        if (!last) {
+            nextStartSector = lastSector + 1;
+        }
+    }
+
+    private String getPartitionTableErrorMessage() {
+        return MessageFormat.format(DLCopy.STRINGS.getString(
+                "Error_Creating_Partition_Table"), device);
+    }
+
+    private String getRepartitioningErrorMessage() {
+        return MessageFormat.format(
+                DLCopy.STRINGS.getString("Error_Repartitioning"), device);
+    }
+
+    private static byte[] getCHS(long sector) {
+        long cylinder = sector / (HEADS * SECTORS_PER_TRACK);
+        if (cylinder > 1023) {
+            // not addressable via CHS, use the conventional maximum
+            return new byte[]{(byte) 0xFE, (byte) 0xFF, (byte) 0xFF};
+        }
+        int head = (int) ((sector / SECTORS_PER_TRACK) % HEADS);
+        int sectorNumber = (int) (sector % SECTORS_PER_TRACK) + 1;
+        return new byte[]{
+            (byte) head,
+            (byte) (sectorNumber | ((cylinder >> 2) & 0xC0)),
+            (byte) (cylinder & 0xFF)
+        };
+    }
+
+    private static int getLogicalSectorSize(String device) {
+        File sectorSizeFile = new File("/sys/block/"
+                + device.substring(5) + "/queue/logical_block_size");
+        try {
+            return Integer.parseInt(DLCopy.readOneLineFile(sectorSizeFile));
+        } catch (IOException | NumberFormatException ex) {
+            LOGGER.log(Level.WARNING, "could not determine logical sector "
+                    + "size of " + device + ", assuming 512 Byte", ex);
+            return 512;
+        }
+    }
+
+    private static class PartitionEntry {
+
+        private final long firstSector;
+        private final long lastSector;
+        private final byte type;
+        private final boolean bootable;
+
+        public PartitionEntry(long firstSector, long lastSector,
+                byte type, boolean bootable) {
+            this.firstSector = firstSector;
+            this.lastSector = lastSector;
+            this.type = type;
+            this.bootable = bootable;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package ch.fhnw.dlcopy;
+
+/**
+ * the modes for qualifying storage devices before an installation (see
+ * {@link DeviceQualification})
+ */
+public enum QualificationMode {
+    /**
+     * storage devices are not qualified
+     */
+    OFF,
+    /**
+     * storage devices are qualified and the results are reported, all storage
+     * devices are installed in the selected order
+     */
+    REPORT,
+    /**
+     * slow storage devices are installed last, failing storage devices are
+     * skipped
+     */
+    QUEUE_LAST,
+    /**
+     * slow and failing storage devices are skipped
+     */
+    SKIP
+}
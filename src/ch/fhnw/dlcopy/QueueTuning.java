@@ -0,0 +1,261 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.MEGA;
+import ch.fhnw.util.StorageDevice;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tunes the block layer settings of a storage device while it is installed
+ * and restores the original settings afterwards. The defaults for removable
+ * flash storage devices are often far from optimal for the large sequential
+ * writes of an installation.
+ * <p>
+ * The settings depend on the class of the storage device (see
+ * {@link DeviceType}). The write throughput during the tuning is logged
+ * together with the average throughput of the storage device in the
+ * {@link RunHistory}, so that the profiles can be compared with the
+ * defaults.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public final class QueueTuning {
+
+    /**
+     * the classes of storage devices with their own tuning profile
+     */
+    public enum DeviceType {
+
+        /**
+         * USB flash drives
+         */
+        USB_FLASH,
+        /**
+         * SD and MMC cards
+         */
+        SD_CARD,
+        /**
+         * NVMe drives
+         */
+        NVME,
+        /**
+         * everything else (not tuned)
+         */
+        OTHER
+    }
+
+    private static final Logger LOGGER
+            = Logger.getLogger(QueueTuning.class.getName());
+    private static final String SCHEDULER = "queue/scheduler";
+    private static final String MAX_SECTORS = "queue/max_sectors_kb";
+    private static final String MAX_HW_SECTORS = "queue/max_hw_sectors_kb";
+
+    private final StorageDevice storageDevice;
+    private final DeviceType deviceType;
+    // the original values of all changed settings (in the order of change)
+    private final Map<String, String> originalValues = new LinkedHashMap<>();
+    private final long start;
+    private final long startWrittenBytes;
+
+    private QueueTuning(StorageDevice storageDevice, DeviceType deviceType) {
+        this.storageDevice = storageDevice;
+        this.deviceType = deviceType;
+        start = System.nanoTime();
+        startWrittenBytes = DLCopy.getIOBytes(storageDevice.getDevice())[1];
+    }
+
+    /**
+     * returns the class of a storage device
+     *
+     * @param storageDevice the storage device
+     * @return the class of the storage device
+     */
+    public static DeviceType getDeviceType(StorageDevice storageDevice) {
+        String device = storageDevice.getDevice();
+        if (device.startsWith("nvme")) {
+            return DeviceType.NVME;
+        }
+        if (device.startsWith("mmcblk")) {
+            return DeviceType.SD_CARD;
+        }
+        if (UsbTopology.getLocation(storageDevice).getPort() != null) {
+            return DeviceType.USB_FLASH;
+        }
+        return DeviceType.OTHER;
+    }
+
+    /**
+     * tunes the block layer settings of a storage device
+     *
+     * @param storageDevice the storage device
+     * @return the tuning (must be restored when the storage device is
+     * installed) or null, if there is no profile for the storage device
+     */
+    public static QueueTuning tune(StorageDevice storageDevice) {
+        DeviceType deviceType = getDeviceType(storageDevice);
+        if (deviceType == DeviceType.OTHER) {
+            return null;
+        }
+        QueueTuning tuning = new QueueTuning(storageDevice, deviceType);
+        for (Map.Entry<String, String> entry
+                : tuning.getProfile().entrySet()) {
+            tuning.set(entry.getKey(), entry.getValue());
+        }
+        LOGGER.log(Level.INFO, "tuned {0} ({1}): {2}", new Object[]{
+            storageDevice.getDevice(), deviceType, tuning.getTunedValues()});
+        return tuning;
+    }
+
+    /**
+     * restores the original block layer settings of the storage device and
+     * logs the write throughput while the settings were tuned
+     */
+    public void restore() {
+        String device = storageDevice.getDevice();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long writtenBytes = DLCopy.getIOBytes(device)[1] - startWrittenBytes;
+        double throughput = seconds > 0 ? writtenBytes / seconds / MEGA : 0;
+
+        // restore in the order of change, the scheduler comes first:
+        // switching the scheduler resets nr_requests, which must therefore be
+        // restored afterwards
+        for (String attribute : originalValues.keySet()) {
+            try {
+                write(attribute, originalValues.get(attribute));
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "could not restore " + attribute
+                        + " of " + device, ex);
+            }
+        }
+
+        String history = "";
+        RunHistory runHistory = RunHistory.getInstance();
+        if (runHistory != null) {
+            RunHistory.Statistics statistics
+                    = runHistory.getStatistics(storageDevice);
+            if ((statistics != null)
+                    && (statistics.getAverageThroughput() > 0)) {
+                history = String.format(" (average of run history: "
+                        + "%.1f MiB/s)", statistics.getAverageThroughput());
+            }
+        }
+        LOGGER.log(Level.INFO, "restored {0}: {1}, write throughput while "
+                + "tuned: {2} MiB/s{3}", new Object[]{device, originalValues,
+                    String.format("%.1f", throughput), history});
+    }
+
+    private Map<String, String> getProfile() {
+        Map<String, String> profile = new LinkedHashMap<>();
+        switch (deviceType) {
+            case USB_FLASH:
+                // Flash controllers behind USB bridges benefit from large,
+                // merged requests but not from deep queues. Writeback
+                // throttling only slows down our large sequential writes.
+                profile.put(SCHEDULER, "mq-deadline");
+                profile.put("queue/nr_requests", "64");
+                profile.put(MAX_SECTORS, getMaxSectors(1024));
+                profile.put("queue/read_ahead_kb", "1024");
+                profile.put("queue/wbt_lat_usec", "0");
+                // one slow storage device must not fill the page cache with
+                // its dirty pages
+                profile.put("bdi/max_ratio", "10");
+                break;
+
+            case SD_CARD:
+                profile.put(SCHEDULER, "mq-deadline");
+                profile.put(MAX_SECTORS, getMaxSectors(512));
+                profile.put("queue/read_ahead_kb", "512");
+                profile.put("queue/wbt_lat_usec", "0");
+                profile.put("bdi/max_ratio", "10");
+                break;
+
+            case NVME:
+                // NVMe drives have their own deep queues, any scheduling
+                // only costs CPU time
+                profile.put(SCHEDULER, "none");
+                profile.put("queue/read_ahead_kb", "256");
+                break;
+
+            default:
+        }
+        return profile;
+    }
+
+    private String getMaxSectors(int preferred) {
+        try {
+            int hardwareLimit = Integer.parseInt(read(MAX_HW_SECTORS));
+            return String.valueOf(Math.min(preferred, hardwareLimit));
+        } catch (IOException | NumberFormatException ex) {
+            LOGGER.log(Level.FINE, "", ex);
+            return String.valueOf(preferred);
+        }
+    }
+
+    private void set(String attribute, String value) {
+        try {
+            String originalValue = read(attribute);
+            if (attribute.equals(SCHEDULER)) {
+                // e.g. "mq-deadline kyber [bfq] none"
+                List<String> schedulers = new ArrayList<>();
+                for (String scheduler : originalValue.split("\\s+")) {
+                    if (scheduler.startsWith("[")) {
+                        scheduler = scheduler.substring(
+                                1, scheduler.length() - 1);
+                        originalValue = scheduler;
+                    }
+                    schedulers.add(scheduler);
+                }
+                if (!schedulers.contains(value)) {
+                    LOGGER.log(Level.INFO, "scheduler {0} is not available "
+                            + "for {1}", new Object[]{
+                                value, storageDevice.getDevice()});
+                    return;
+                }
+            }
+            if (originalValue.equals(value)) {
+                return;
+            }
+            write(attribute, value);
+            originalValues.put(attribute, originalValue);
+        } catch (IOException ex) {
+            // not all drivers support all settings
+            LOGGER.log(Level.INFO, "could not set " + attribute + " of "
+                    + storageDevice.getDevice() + " to " + value, ex);
+        }
+    }
+
+    private Map<String, String> getTunedValues() {
+        Map<String, String> tunedValues = new LinkedHashMap<>();
+        for (String attribute : originalValues.keySet()) {
+            try {
+                tunedValues.put(attribute, read(attribute));
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, "", ex);
+            }
+        }
+        return tunedValues;
+    }
+
+    private String read(String attribute) throws IOException {
+        return DLCopy.readOneLineFile(getFile(attribute)).trim();
+    }
+
+    private void write(String attribute, String value) throws IOException {
+        Files.write(getFile(attribute).toPath(),
+                value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private File getFile(String attribute) {
+        return Paths.get("/sys/block", storageDevice.getDevice(), attribute)
+                .toFile();
+    }
+}
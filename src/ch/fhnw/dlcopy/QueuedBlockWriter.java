@@ -0,0 +1,318 @@
+package ch.fhnw.dlcopy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes blocks to a file or device with several writes in flight at the
+ * same time. A single thread with blocking writes leaves fast storage devices
+ * (USB 3, NVMe) idle between two writes. Here the writes are queued to an
+ * AsynchronousFileChannel and their completions are collected in batches
+ * whenever the queue is full.
+ * <p>
+ * If the AsynchronousFileChannel can't be opened, the writer falls back to a
+ * plain FileChannel with one blocking write at a time.
+ * <p>
+ * All buffers come from the aligned buffer pool of {@link DirectIO} (see
+ * {@link #acquireBuffer()}) and are returned to the pool when their write is
+ * completed. The writer is not thread-safe.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class QueuedBlockWriter implements Closeable {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(QueuedBlockWriter.class.getName());
+
+    private final Path path;
+    private final boolean directIO;
+    private final int blockSize;
+    private final int queueDepth;
+    private final Deque<PendingWrite> pendingWrites = new ArrayDeque<>();
+    private final ExecutorService executorService;
+    private final AsynchronousFileChannel asynchronousChannel;
+    private final FileChannel channel;
+    private long completedBytes;
+
+    /**
+     * creates a new QueuedBlockWriter
+     *
+     * @param path the path of the file or device
+     * @param directIO if the path should be opened with direct I/O
+     * @param queueDepth the maximum number of writes in flight
+     * @param options additional open options (e.g.
+     * {@link StandardOpenOption#CREATE})
+     * @throws IOException if the path can't be opened
+     */
+    public QueuedBlockWriter(Path path, boolean directIO, int queueDepth,
+            OpenOption... options) throws IOException {
+
+        this.path = path;
+        this.directIO = directIO;
+        this.queueDepth = Math.max(1, queueDepth);
+        blockSize = directIO ? DirectIO.getBlockSize(path) : 1;
+
+        if (directIO) {
+            // fails early if the path does not support direct I/O
+            channel = DirectIO.openForWriting(path, options);
+        } else {
+            Set<OpenOption> optionSet = new HashSet<>();
+            Collections.addAll(optionSet, options);
+            optionSet.add(StandardOpenOption.WRITE);
+            channel = FileChannel.open(path, optionSet);
+        }
+
+        ExecutorService service = null;
+        AsynchronousFileChannel asyncChannel = null;
+        if (this.queueDepth > 1) {
+            Set<OpenOption> optionSet = new HashSet<>();
+            optionSet.add(StandardOpenOption.WRITE);
+            if (directIO) {
+                optionSet.add(DirectIO.getDirectOption());
+            }
+            service = Executors.newFixedThreadPool(this.queueDepth,
+                    runnable -> {
+                        Thread thread = new Thread(runnable,
+                                "write " + path.getFileName());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            try {
+                asyncChannel = AsynchronousFileChannel.open(
+                        path, optionSet, service);
+            } catch (IOException | UnsupportedOperationException ex) {
+                LOGGER.log(Level.INFO, "falling back to blocking writes for "
+                        + "{0}: {1}", new Object[]{path, ex.toString()});
+                service.shutdown();
+                service = null;
+            }
+        }
+        executorService = service;
+        asynchronousChannel = asyncChannel;
+    }
+
+    /**
+     * returns a buffer for the next write
+     *
+     * @return an aligned and cleared buffer with {@link DirectIO#BUFFER_SIZE}
+     * bytes
+     * @throws IOException if a previous write failed or waiting for a buffer
+     * was interrupted
+     */
+    public ByteBuffer acquireBuffer() throws IOException {
+        while (true) {
+            ByteBuffer buffer = DirectIO.tryAcquireBuffer();
+            if (buffer != null) {
+                return buffer;
+            }
+            if (pendingWrites.isEmpty()) {
+                // all buffers are used by other writers
+                try {
+                    return DirectIO.acquireBuffer();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "interrupted while waiting for a buffer");
+                }
+            }
+            // free our own buffers first
+            completeOldestWrite();
+        }
+    }
+
+    /**
+     * queues a write and hands the buffer over to this writer (with direct
+     * I/O the last partial block is padded with zeros)
+     *
+     * @param buffer a buffer from {@link #acquireBuffer()}, the remaining bytes
+     * are written
+     * @param position the position in the file or device where to write the
+     * buffer
+     * @throws IOException if this or a previous write failed
+     */
+    public void submit(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        int length = buffer.remaining();
+        if (directIO) {
+            DirectIO.pad(buffer, blockSize);
+        }
+
+        if (asynchronousChannel == null) {
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer,
+                            position + buffer.position() - start);
+                }
+                completedBytes += length;
+            } finally {
+                DirectIO.releaseBuffer(buffer);
+            }
+            return;
+        }
+
+        if (pendingWrites.size() >= queueDepth) {
+            completeOldestWrite();
+            // collect all other completed writes in the same batch
+            while (!pendingWrites.isEmpty()
+                    && pendingWrites.peekFirst().future.isDone()) {
+                completeOldestWrite();
+            }
+        }
+        pendingWrites.addLast(new PendingWrite(buffer, start, position,
+                length, asynchronousChannel.write(buffer, position)));
+    }
+
+    /**
+     * returns the number of bytes that have been written to the file or
+     * device (without padding)
+     *
+     * @return the number of bytes that have been written to the file or
+     * device
+     */
+    public long getCompletedBytes() {
+        return completedBytes;
+    }
+
+    /**
+     * waits until all queued writes are completed
+     *
+     * @throws IOException if a write failed
+     */
+    public void flush() throws IOException {
+        while (!pendingWrites.isEmpty()) {
+            completeOldestWrite();
+        }
+    }
+
+    /**
+     * waits for all queued writes and forces them to the storage device
+     *
+     * @throws IOException if a write failed
+     */
+    public void force() throws IOException {
+        flush();
+        channel.force(true);
+    }
+
+    /**
+     * waits for all queued writes and truncates the file (e.g. to remove the
+     * padding of the last block)
+     *
+     * @param size the new size of the file
+     * @throws IOException if a write failed or truncating failed
+     */
+    public void truncate(long size) throws IOException {
+        flush();
+        channel.truncate(size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            // A write failed. The buffers of the other writes may only be
+            // released after they are no longer in use.
+            for (PendingWrite pendingWrite : pendingWrites) {
+                try {
+                    getUninterruptibly(pendingWrite.future);
+                } catch (ExecutionException ex) {
+                    LOGGER.log(Level.FINE, "", ex);
+                }
+                DirectIO.releaseBuffer(pendingWrite.buffer);
+            }
+            pendingWrites.clear();
+            if (asynchronousChannel != null) {
+                asynchronousChannel.close();
+                executorService.shutdown();
+            }
+            channel.close();
+        }
+    }
+
+    private void completeOldestWrite() throws IOException {
+        PendingWrite pendingWrite = pendingWrites.removeFirst();
+        ByteBuffer buffer = pendingWrite.buffer;
+        try {
+            getUninterruptibly(pendingWrite.future);
+            // the kernel may complete a write only partially
+            while (buffer.hasRemaining()
+                    && !Thread.currentThread().isInterrupted()) {
+                getUninterruptibly(asynchronousChannel.write(buffer,
+                        pendingWrite.position + buffer.position()
+                        - pendingWrite.start));
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException(
+                        "interrupted while writing to " + path);
+            }
+            completedBytes += pendingWrite.length;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("writing to " + path + " failed", cause);
+        } finally {
+            DirectIO.releaseBuffer(buffer);
+        }
+    }
+
+    // An interrupt (e.g. when the BatchWatchdog aborts a storage device) must
+    // not end the wait for a write, because the buffer of the write may only
+    // be released to the buffer pool when the write no longer reads from it.
+    // The interrupt status is restored after waiting.
+    private static <T> T getUninterruptibly(Future<T> future)
+            throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class PendingWrite {
+
+        private final ByteBuffer buffer;
+        private final int start;
+        private final long position;
+        private final int length;
+        private final Future<Integer> future;
+
+        public PendingWrite(ByteBuffer buffer, int start, long position,
+                int length, Future<Integer> future) {
+            this.buffer = buffer;
+            this.start = start;
+            this.position = position;
+            this.length = length;
+            this.future = future;
+        }
+    }
+}
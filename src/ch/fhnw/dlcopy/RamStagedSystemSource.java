@@ -0,0 +1,301 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.MEGA;
+import ch.fhnw.filecopier.CopyJob;
+import ch.fhnw.filecopier.FileCopier;
+import ch.fhnw.filecopier.Source;
+import ch.fhnw.util.LernstickFileTools;
+import ch.fhnw.util.Partition;
+import ch.fhnw.util.ProcessExecutor;
+import ch.fhnw.util.StorageDevice.Type;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.freedesktop.dbus.exceptions.DBusException;
+
+/**
+ * A system source that serves the EFI and system files from a copy in RAM
+ * (tmpfs). This way the (often slow) source storage device is read only once
+ * per installation batch instead of once for every target storage device.
+ * Everything else is delegated to the original system source.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class RamStagedSystemSource extends SystemSource {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(RamStagedSystemSource.class.getName());
+    // the memory that must remain available for the rest of the system
+    private static final long MEMORY_RESERVE = 512 * MEGA;
+
+    private final SystemSource delegate;
+    private final File stagingDir;
+    private final Source efiCopySource;
+    private final Source systemCopySourceFull;
+    private final Source systemCopySourceBoot;
+
+    private RamStagedSystemSource(SystemSource delegate, File stagingDir,
+            Source efiCopySource, Source systemCopySourceFull,
+            Source systemCopySourceBoot) {
+        this.delegate = delegate;
+        this.stagingDir = stagingDir;
+        this.efiCopySource = efiCopySource;
+        this.systemCopySourceFull = systemCopySourceFull;
+        this.systemCopySourceBoot = systemCopySourceBoot;
+    }
+
+    /**
+     * copies the EFI and (optionally) system files of a system source into
+     * RAM
+     *
+     * @param source the original system source
+     * @param stageSystem if the system files should be staged (otherwise only
+     * the EFI files are staged)
+     * @param checkCopies if copies should be checked for errors
+     * @return the RAM staged system source or null, if there is not enough
+     * free memory
+     * @throws IOException if an I/O exception occurs
+     * @throws DBusException if mounting the source EFI partition fails
+     * @throws NoSuchAlgorithmException if the file checking algorithm can't be
+     * found
+     */
+    public static RamStagedSystemSource stage(SystemSource source,
+            boolean stageSystem, boolean checkCopies)
+            throws IOException, DBusException, NoSuchAlgorithmException {
+
+        Source originalEfiSource = source.getEfiCopySource();
+        Source originalSystemSource = source.getSystemCopySourceFull();
+
+        long size = getSize(originalEfiSource);
+        if (stageSystem) {
+            size += getSize(originalSystemSource);
+        }
+        long availableMemory = getAvailableMemory();
+        if (size + MEMORY_RESERVE > availableMemory) {
+            LOGGER.log(Level.WARNING, "not staging system source in RAM: "
+                    + "{0} Byte needed but only {1} Byte available",
+                    new Object[]{size + MEMORY_RESERVE, availableMemory});
+            source.unmountTmpPartitions();
+            return null;
+        }
+
+        File stagingDir = LernstickFileTools.createTempDirectory(
+                new File("/tmp/"), "DLCopy-RAM");
+        ProcessExecutor processExecutor = new ProcessExecutor(true);
+        // some slack for the file system metadata
+        long tmpfsSize = size + 16 * MEGA;
+        int exitValue = processExecutor.executeProcess(true, true,
+                "mount", "-t", "tmpfs",
+                "-o", "size=" + tmpfsSize + ",mode=0700",
+                "tmpfs", stagingDir.getPath());
+        if (exitValue != 0) {
+            Files.deleteIfExists(stagingDir.toPath());
+            throw new IOException("could not mount tmpfs on " + stagingDir
+                    + ": " + processExecutor.getOutput());
+        }
+
+        try {
+            File efiDir = new File(stagingDir, "efi");
+            File systemDir = new File(stagingDir, "system");
+            if (!efiDir.mkdir() || !systemDir.mkdir()) {
+                throw new IOException(
+                        "could not create directories in " + stagingDir);
+            }
+
+            LOGGER.log(Level.INFO, "staging {0} Byte of the system source in "
+                    + "{1}", new Object[]{size, stagingDir});
+            FileCopier fileCopier = new FileCopier();
+            fileCopier.copy(checkCopies,
+                    new CopyJob(new Source[]{originalEfiSource},
+                            new String[]{efiDir.getPath()}),
+                    stageSystem
+                            ? new CopyJob(new Source[]{originalSystemSource},
+                                    new String[]{systemDir.getPath()})
+                            : null);
+            // the source storage device is no longer needed
+            source.unmountTmpPartitions();
+
+            Source efiCopySource = new Source(efiDir.getPath(),
+                    originalEfiSource.getPattern().pattern());
+            Source systemCopySourceFull = null;
+            Source systemCopySourceBoot = null;
+            if (stageSystem) {
+                systemCopySourceFull = new Source(systemDir.getPath(),
+                        originalSystemSource.getPattern().pattern());
+                // the boot files are a subset of the full system files
+                systemCopySourceBoot = new Source(systemDir.getPath(),
+                        source.getSystemCopySourceBoot()
+                                .getPattern().pattern());
+            }
+            return new RamStagedSystemSource(source, stagingDir,
+                    efiCopySource, systemCopySourceFull, systemCopySourceBoot);
+
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            release(stagingDir);
+            throw ex;
+        }
+    }
+
+    /**
+     * returns the original system source
+     *
+     * @return the original system source
+     */
+    public SystemSource getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * frees the memory used by the staged files
+     */
+    public void release() {
+        delegate.unmountTmpPartitions();
+        release(stagingDir);
+    }
+
+    @Override
+    public String getDeviceName() {
+        return delegate.getDeviceName();
+    }
+
+    @Override
+    public Type getDeviceType() {
+        return delegate.getDeviceType();
+    }
+
+    @Override
+    public boolean hasEfiPartition() {
+        return delegate.hasEfiPartition();
+    }
+
+    @Override
+    public boolean hasExchangePartition() {
+        return delegate.hasExchangePartition();
+    }
+
+    @Override
+    public DataPartitionMode getDataPartitionMode() {
+        return delegate.getDataPartitionMode();
+    }
+
+    @Override
+    public DebianLiveVersion getSystemVersion() {
+        return delegate.getSystemVersion();
+    }
+
+    @Override
+    public String getSystemPath() {
+        return delegate.getSystemPath();
+    }
+
+    @Override
+    public long getSystemSize() {
+        return delegate.getSystemSize();
+    }
+
+    @Override
+    public Source getEfiCopySource() {
+        return efiCopySource;
+    }
+
+    @Override
+    public Source getSystemCopySourceBoot() {
+        return systemCopySourceBoot == null
+                ? delegate.getSystemCopySourceBoot() : systemCopySourceBoot;
+    }
+
+    @Override
+    public Source getSystemCopySourceFull() {
+        return systemCopySourceFull == null
+                ? delegate.getSystemCopySourceFull() : systemCopySourceFull;
+    }
+
+    @Override
+    public Source getPersistentCopySource() {
+        return delegate.getPersistentCopySource();
+    }
+
+    @Override
+    public Source getExchangeCopySource() throws DBusException, IOException {
+        return delegate.getExchangeCopySource();
+    }
+
+    @Override
+    public Partition getEfiPartition() {
+        return delegate.getEfiPartition();
+    }
+
+    @Override
+    public Partition getExchangePartition() {
+        return delegate.getExchangePartition();
+    }
+
+    @Override
+    public Partition getDataPartition() {
+        return delegate.getDataPartition();
+    }
+
+    @Override
+    public String getMbrPath() {
+        return delegate.getMbrPath();
+    }
+
+    @Override
+    public void installExtlinux(Partition partition) throws IOException {
+        delegate.installExtlinux(partition);
+    }
+
+    @Override
+    public void unmountTmpPartitions() {
+        delegate.unmountTmpPartitions();
+    }
+
+    private static long getSize(Source source) throws IOException {
+        Path basePath = source.getBaseDirectory().toPath();
+        Pattern pattern = source.getPattern();
+        try (Stream<Path> stream = Files.walk(basePath)) {
+            return stream.filter(path -> Files.isRegularFile(path)
+                    && pattern.matcher(
+                            basePath.relativize(path).toString()).matches())
+                    .mapToLong(path -> path.toFile().length())
+                    .sum();
+        }
+    }
+
+    private static long getAvailableMemory() throws IOException {
+        List<String> lines = LernstickFileTools.readFile(
+                new File("/proc/meminfo"));
+        for (String line : lines) {
+            if (line.startsWith("MemAvailable:")) {
+                // e.g. "MemAvailable:    3917944 kB"
+                String[] tokens = line.split("\\s+");
+                return Long.parseLong(tokens[1]) * 1024;
+            }
+        }
+        throw new IOException("MemAvailable not found in /proc/meminfo");
+    }
+
+    private static void release(File stagingDir) {
+        ProcessExecutor processExecutor = new ProcessExecutor(true);
+        if (processExecutor.executeProcess(true, true,
+                "umount", stagingDir.getPath()) != 0) {
+            LOGGER.log(Level.WARNING, "could not umount {0}: {1}",
+                    new Object[]{stagingDir, processExecutor.getOutput()});
+            return;
+        }
+        try {
+            Files.deleteIfExists(stagingDir.toPath());
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+        }
+        LOGGER.log(Level.INFO, "released RAM staged system source {0}",
+                stagingDir);
+    }
+}
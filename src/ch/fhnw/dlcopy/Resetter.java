@@ -291,6 +291,8 @@ public class Resetter extends SwingWorker<Boolean, Void> {
                 // Unmount *all* partitions so that the user doesn't have to
                 // manually umount all storage devices after resetting is done.
                 for (Partition partition : storageDevice.getPartitions()) {
+                    // the reset modified the partitions without copy jobs
+                    DLCopy.flushBeforeUmount(partition, true);
                     DLCopy.umount(partition, dlCopyGUI);
                 }
             }
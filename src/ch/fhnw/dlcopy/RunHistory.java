@@ -0,0 +1,573 @@
+package ch.fhnw.dlcopy;
+
+import static ch.fhnw.dlcopy.DLCopy.MEGA;
+import ch.fhnw.util.StorageDevice;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The history of all installations and upgrades, stored in an embedded Derby
+ * database (see {@link DLCopy#runHistoryDirectory}). For every run on a
+ * storage device (identified by its serial number) the operation, the
+ * release of the source, the start and finish time, the number of bytes
+ * written to the storage device, the durations of the installation stages and
+ * the error message are recorded.
+ * <p>
+ * The history shows storage devices that get slower over time, allows to
+ * compare releases and predicts the duration of a batch from past runs with
+ * the same storage devices (or at least the same models). The statistics are
+ * kept in memory, so that the GUI can show them without database queries.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class RunHistory {
+
+    /**
+     * the operation of installing the system
+     */
+    public static final String INSTALL = "install";
+
+    /**
+     * the operation of upgrading the system
+     */
+    public static final String UPGRADE = "upgrade";
+
+    /**
+     * a run of an operation on a storage device
+     */
+    public static final class Run {
+
+        private final String device;
+        private final String serial;
+        private final String vendor;
+        private final String model;
+        private final long size;
+        private final String operation;
+        private final String release;
+        private final long startTime;
+        private final long startWrittenBytes;
+        private final Map<String, Long> stageDurations
+                = Collections.synchronizedMap(new LinkedHashMap<>());
+        private long finishTime;
+        private long writtenBytes;
+        private String errorMessage;
+
+        /**
+         * starts a new run
+         *
+         * @param storageDevice the storage device
+         * @param operation the operation (e.g. {@link #INSTALL})
+         * @param release the release of the source
+         */
+        public Run(StorageDevice storageDevice, String operation,
+                String release) {
+            this(storageDevice.getDevice(), storageDevice.getSerial(),
+                    storageDevice.getVendor(), storageDevice.getModel(),
+                    storageDevice.getSize(), operation, release,
+                    System.currentTimeMillis(), 0);
+        }
+
+        private Run(String device, String serial, String vendor, String model,
+                long size, String operation, String release, long startTime,
+                long writtenBytes) {
+            this.device = device;
+            this.serial = nullToEmpty(serial);
+            this.vendor = nullToEmpty(vendor);
+            this.model = nullToEmpty(model);
+            this.size = size;
+            this.operation = operation;
+            this.release = release;
+            this.startTime = startTime;
+            this.writtenBytes = writtenBytes;
+            startWrittenBytes
+                    = device == null ? 0 : DLCopy.getIOBytes(device)[1];
+        }
+
+        /**
+         * adds the duration of a stage
+         *
+         * @param stage the name of the stage
+         * @param duration the duration of the stage (in ms)
+         */
+        public void addStageDuration(String stage, long duration) {
+            stageDurations.merge(stage, duration, Long::sum);
+        }
+
+        /**
+         * finishes the run
+         *
+         * @param errorMessage the error message or null, if the run was
+         * successful
+         */
+        public void finish(String errorMessage) {
+            finishTime = System.currentTimeMillis();
+            writtenBytes = DLCopy.getIOBytes(device)[1] - startWrittenBytes;
+            this.errorMessage = errorMessage;
+        }
+
+        /**
+         * returns the serial number of the storage device
+         *
+         * @return the serial number of the storage device
+         */
+        public String getSerial() {
+            return serial;
+        }
+
+        /**
+         * returns the operation of the run
+         *
+         * @return the operation of the run
+         */
+        public String getOperation() {
+            return operation;
+        }
+
+        /**
+         * returns the release of the source
+         *
+         * @return the release of the source
+         */
+        public String getRelease() {
+            return release;
+        }
+
+        /**
+         * returns the duration of the run
+         *
+         * @return the duration of the run (in ms)
+         */
+        public long getDuration() {
+            return finishTime - startTime;
+        }
+
+        /**
+         * returns the number of bytes written to the storage device
+         *
+         * @return the number of bytes written to the storage device
+         */
+        public long getWrittenBytes() {
+            return writtenBytes;
+        }
+
+        /**
+         * returns the average write throughput of the run
+         *
+         * @return the average write throughput of the run (in MiB/s)
+         */
+        public double getThroughput() {
+            long duration = getDuration();
+            if (duration <= 0) {
+                return 0;
+            }
+            return writtenBytes * 1000d / duration / MEGA;
+        }
+
+        /**
+         * returns the durations of the stages
+         *
+         * @return the durations of the stages (in ms)
+         */
+        public Map<String, Long> getStageDurations() {
+            return stageDurations;
+        }
+
+        /**
+         * returns the error message of the run
+         *
+         * @return the error message or null, if the run was successful
+         */
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%tF %<tT %s %s %s (%s %s, %d MiB): "
+                    + "%d s, %d MiB, %.1f MiB/s, stages %s%s",
+                    startTime, operation, release, serial, vendor, model,
+                    size / MEGA, getDuration() / 1000, writtenBytes / MEGA,
+                    getThroughput(), stageDurations,
+                    errorMessage == null ? "" : ", error: " + errorMessage);
+        }
+    }
+
+    /**
+     * the statistics of all runs on a storage device (or a model of storage
+     * devices)
+     */
+    public static final class Statistics {
+
+        // a storage device is degrading when its last run is much slower
+        // than its average
+        private static final double DEGRADING_RATIO = 0.5;
+
+        private int runs;
+        private int failedRuns;
+        private double throughputSum;
+        private double lastThroughput;
+        private long installDurationSum;
+        private int installs;
+
+        private synchronized void add(Run run) {
+            runs++;
+            if (run.errorMessage != null) {
+                failedRuns++;
+                return;
+            }
+            lastThroughput = run.getThroughput();
+            throughputSum += lastThroughput;
+            if (INSTALL.equals(run.operation)) {
+                installDurationSum += run.getDuration();
+                installs++;
+            }
+        }
+
+        /**
+         * returns the number of runs
+         *
+         * @return the number of runs
+         */
+        public synchronized int getRuns() {
+            return runs;
+        }
+
+        /**
+         * returns the number of failed runs
+         *
+         * @return the number of failed runs
+         */
+        public synchronized int getFailedRuns() {
+            return failedRuns;
+        }
+
+        /**
+         * returns the average throughput of the successful runs
+         *
+         * @return the average throughput of the successful runs (in MiB/s)
+         */
+        public synchronized double getAverageThroughput() {
+            int successfulRuns = runs - failedRuns;
+            return successfulRuns == 0 ? 0 : throughputSum / successfulRuns;
+        }
+
+        /**
+         * returns the throughput of the last successful run
+         *
+         * @return the throughput of the last successful run (in MiB/s)
+         */
+        public synchronized double getLastThroughput() {
+            return lastThroughput;
+        }
+
+        /**
+         * returns the average duration of the successful installations
+         *
+         * @return the average duration of the successful installations (in
+         * ms) or -1, if there was no successful installation
+         */
+        public synchronized long getAverageInstallDuration() {
+            return installs == 0 ? -1 : installDurationSum / installs;
+        }
+
+        /**
+         * checks if the storage device got much slower
+         *
+         * @return <code>true</code>, if the last successful run was much
+         * slower than the average, <code>false</code> otherwise
+         */
+        public synchronized boolean isDegrading() {
+            return (runs - failedRuns > 1)
+                    && (lastThroughput < DEGRADING_RATIO
+                    * getAverageThroughput());
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%d runs, %d failed, %.1f MiB/s average, "
+                    + "%.1f MiB/s last%s", runs, failedRuns,
+                    getAverageThroughput(), lastThroughput,
+                    isDegrading() ? ", DEGRADING" : "");
+        }
+    }
+
+    private static final Logger LOGGER
+            = Logger.getLogger(RunHistory.class.getName());
+    private static final int MAX_ERROR_LENGTH = 1024;
+    private static RunHistory instance;
+    private static boolean opened;
+
+    private final Connection connection;
+    private final Map<String, Statistics> deviceStatistics
+            = new ConcurrentHashMap<>();
+    private final Map<String, Statistics> modelStatistics
+            = new ConcurrentHashMap<>();
+
+    /**
+     * returns the run history in {@link DLCopy#runHistoryDirectory}
+     *
+     * @return the run history or null, if the run history is disabled or
+     * can't be opened
+     */
+    public static synchronized RunHistory getInstance() {
+        if (!opened) {
+            opened = true;
+            if (DLCopy.runHistoryDirectory != null) {
+                try {
+                    instance = new RunHistory(DLCopy.runHistoryDirectory);
+                } catch (ReflectiveOperationException | SQLException ex) {
+                    // not fatal, we just don't record the runs
+                    LOGGER.log(Level.WARNING,
+                            "could not open the run history", ex);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * returns the run history if it is already open (for callers that must
+     * not wait for opening the database, e.g. renderers)
+     *
+     * @return the run history or null, if the run history is not open
+     */
+    public static synchronized RunHistory getOpenInstance() {
+        return instance;
+    }
+
+    /**
+     * returns the release of a system source (the first line of .disk/info
+     * of the live medium)
+     *
+     * @param source the system source
+     * @return the release of the system source
+     */
+    public static String getRelease(SystemSource source) {
+        try {
+            return DLCopy.readOneLineFile(
+                    new File(source.getSystemPath(), ".disk/info"));
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, "", ex);
+            return source.getSystemVersion() + " " + source.getDeviceName();
+        }
+    }
+
+    private RunHistory(File directory)
+            throws ReflectiveOperationException, SQLException {
+        File parentDirectory = directory.getAbsoluteFile().getParentFile();
+        parentDirectory.mkdirs();
+        System.setProperty("derby.stream.error.file",
+                new File(parentDirectory, "derby.log").getPath());
+        Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+        connection = DriverManager.getConnection(
+                "jdbc:derby:" + directory.getPath() + ";create=true");
+        if (!connection.getMetaData().getTables(
+                null, null, "RUNS", null).next()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE RUNS ("
+                        + "ID BIGINT GENERATED ALWAYS AS IDENTITY PRIMARY KEY, "
+                        + "SERIAL VARCHAR(256), VENDOR VARCHAR(256), "
+                        + "MODEL VARCHAR(256), DEVICE_SIZE BIGINT, "
+                        + "OPERATION VARCHAR(32), RELEASE VARCHAR(256), "
+                        + "START_TIME TIMESTAMP, FINISH_TIME TIMESTAMP, "
+                        + "WRITTEN_BYTES BIGINT, "
+                        + "ERROR VARCHAR(" + MAX_ERROR_LENGTH + "))");
+                statement.execute("CREATE INDEX RUNS_SERIAL ON RUNS(SERIAL)");
+                statement.execute("CREATE TABLE STAGES ("
+                        + "RUN_ID BIGINT REFERENCES RUNS(ID), "
+                        + "STAGE VARCHAR(32), DURATION BIGINT)");
+            }
+            LOGGER.log(Level.INFO, "created run history in {0}", directory);
+        }
+        for (Run run : getRuns(null)) {
+            addStatistics(run);
+        }
+    }
+
+    /**
+     * records a finished run
+     *
+     * @param run the run
+     */
+    public synchronized void record(Run run) {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO RUNS (SERIAL, VENDOR, MODEL, DEVICE_SIZE, "
+                + "OPERATION, RELEASE, START_TIME, FINISH_TIME, "
+                + "WRITTEN_BYTES, ERROR) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                Statement.RETURN_GENERATED_KEYS)) {
+            statement.setString(1, run.serial);
+            statement.setString(2, run.vendor);
+            statement.setString(3, run.model);
+            statement.setLong(4, run.size);
+            statement.setString(5, run.operation);
+            statement.setString(6, run.release);
+            statement.setTimestamp(7, new Timestamp(run.startTime));
+            statement.setTimestamp(8, new Timestamp(run.finishTime));
+            statement.setLong(9, run.writtenBytes);
+            String errorMessage = run.errorMessage;
+            if ((errorMessage != null)
+                    && (errorMessage.length() > MAX_ERROR_LENGTH)) {
+                errorMessage = errorMessage.substring(0, MAX_ERROR_LENGTH);
+            }
+            statement.setString(10, errorMessage);
+            statement.executeUpdate();
+
+            try (ResultSet keys = statement.getGeneratedKeys();
+                    PreparedStatement stageStatement
+                    = connection.prepareStatement("INSERT INTO STAGES "
+                            + "(RUN_ID, STAGE, DURATION) VALUES (?, ?, ?)")) {
+                keys.next();
+                long id = keys.getLong(1);
+                synchronized (run.stageDurations) {
+                    for (Map.Entry<String, Long> entry
+                            : run.stageDurations.entrySet()) {
+                        stageStatement.setLong(1, id);
+                        stageStatement.setString(2, entry.getKey());
+                        stageStatement.setLong(3, entry.getValue());
+                        stageStatement.executeUpdate();
+                    }
+                }
+            }
+            addStatistics(run);
+            LOGGER.log(Level.INFO, "recorded run: {0}", run);
+        } catch (SQLException ex) {
+            // not fatal, the run is just not recorded
+            LOGGER.log(Level.WARNING, "could not record run " + run, ex);
+        }
+    }
+
+    /**
+     * returns the recorded runs
+     *
+     * @param serial the serial number of a storage device or null, if the
+     * runs of all storage devices should be returned
+     * @return the recorded runs (the oldest run first)
+     * @throws SQLException if querying the database fails
+     */
+    public synchronized List<Run> getRuns(String serial) throws SQLException {
+        Map<Long, Run> runs = new LinkedHashMap<>();
+        String condition = serial == null ? "" : " WHERE SERIAL = ?";
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT ID, SERIAL, VENDOR, MODEL, DEVICE_SIZE, OPERATION, "
+                + "RELEASE, START_TIME, FINISH_TIME, WRITTEN_BYTES, ERROR "
+                + "FROM RUNS" + condition + " ORDER BY ID")) {
+            if (serial != null) {
+                statement.setString(1, serial);
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    Run run = new Run(null, resultSet.getString(2),
+                            resultSet.getString(3), resultSet.getString(4),
+                            resultSet.getLong(5), resultSet.getString(6),
+                            resultSet.getString(7),
+                            resultSet.getTimestamp(8).getTime(),
+                            resultSet.getLong(10));
+                    run.finishTime = resultSet.getTimestamp(9).getTime();
+                    run.errorMessage = resultSet.getString(11);
+                    runs.put(resultSet.getLong(1), run);
+                }
+            }
+        }
+        try (Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery(
+                        "SELECT RUN_ID, STAGE, DURATION FROM STAGES")) {
+            while (resultSet.next()) {
+                Run run = runs.get(resultSet.getLong(1));
+                if (run != null) {
+                    run.addStageDuration(
+                            resultSet.getString(2), resultSet.getLong(3));
+                }
+            }
+        }
+        return new ArrayList<>(runs.values());
+    }
+
+    /**
+     * returns the statistics of a storage device
+     *
+     * @param storageDevice the storage device
+     * @return the statistics of the storage device or null, if there are no
+     * recorded runs with this storage device
+     */
+    public Statistics getStatistics(StorageDevice storageDevice) {
+        return deviceStatistics.get(nullToEmpty(storageDevice.getSerial()));
+    }
+
+    /**
+     * predicts the duration of installing a storage device from the past
+     * installations on the same storage device or (if there are none) on
+     * storage devices of the same model
+     *
+     * @param storageDevice the storage device
+     * @return the predicted duration (in ms) or -1, if there are no past
+     * installations to predict the duration from
+     */
+    public long predictInstallDuration(StorageDevice storageDevice) {
+        Statistics statistics = getStatistics(storageDevice);
+        if ((statistics != null)
+                && (statistics.getAverageInstallDuration() != -1)) {
+            return statistics.getAverageInstallDuration();
+        }
+        statistics = modelStatistics.get(
+                getModelKey(nullToEmpty(storageDevice.getVendor()),
+                        nullToEmpty(storageDevice.getModel())));
+        return statistics == null ? -1 : statistics.getAverageInstallDuration();
+    }
+
+    /**
+     * prints a report of the recorded runs
+     *
+     * @param printStream the stream to print the report to
+     * @param serial the serial number of a storage device or null, if the
+     * runs of all storage devices should be reported
+     * @throws SQLException if querying the database fails
+     */
+    public void printReport(PrintStream printStream, String serial)
+            throws SQLException {
+        List<Run> runs = getRuns(serial);
+        for (Run run : runs) {
+            printStream.println(run);
+        }
+        printStream.println();
+        for (Map.Entry<String, Statistics> entry
+                : deviceStatistics.entrySet()) {
+            if ((serial == null) || serial.equals(entry.getKey())) {
+                printStream.println(entry.getKey() + ": " + entry.getValue());
+            }
+        }
+    }
+
+    private void addStatistics(Run run) {
+        // storage devices without serial number can't be told apart
+        if (!run.serial.isEmpty()) {
+            deviceStatistics.computeIfAbsent(
+                    run.serial, key -> new Statistics()).add(run);
+        }
+        modelStatistics.computeIfAbsent(getModelKey(run.vendor, run.model),
+                key -> new Statistics()).add(run);
+    }
+
+    private static String getModelKey(String vendor, String model) {
+        return vendor + ' ' + model;
+    }
+
+    private static String nullToEmpty(String string) {
+        return string == null ? "" : string;
+    }
+}
@@ -144,7 +144,8 @@ public final class RunningSystemSource extends SystemSource {
     }
 
     @Override
-    public Source getEfiCopySource() throws DBusException, IOException {
+    public synchronized Source getEfiCopySource()
+            throws DBusException, IOException {
         return new Source(getBasePath(), hasLegacyGrub
                 ? SystemSource.LEGACY_EFI_COPY_PATTERN
                 : SystemSource.EFI_COPY_PATTERN);
@@ -171,7 +172,8 @@ public final class RunningSystemSource extends SystemSource {
     }
 
     @Override
-    public Source getExchangeCopySource() throws DBusException, IOException {
+    public synchronized Source getExchangeCopySource()
+            throws DBusException, IOException {
         if (hasExchangePartition()) {
             mountExchangeIfNeeded();
             return new Source(exchangePath, ".*");
@@ -200,7 +202,8 @@ public final class RunningSystemSource extends SystemSource {
     }
 
     @Override
-    public void installExtlinux(Partition bootPartition) throws IOException {
+    public synchronized void installExtlinux(Partition bootPartition)
+            throws IOException {
         String syslinuxDir = createSyslinuxDir(bootPartition);
         int returnValue = processExecutor.executeProcess(true, true,
                 "extlinux", "-i", syslinuxDir);
@@ -212,7 +215,7 @@ public final class RunningSystemSource extends SystemSource {
     }
 
     @Override
-    public void unmountTmpPartitions() {
+    public synchronized void unmountTmpPartitions() {
         if (isEfiTmpMounted && efiPath != null) {
             try {
                 efiPartition.umount();
@@ -232,7 +235,8 @@ public final class RunningSystemSource extends SystemSource {
 
     }
 
-    private void mountEfiIfNeeded() throws DBusException, IOException {
+    private synchronized void mountEfiIfNeeded()
+            throws DBusException, IOException {
         if (efiPath == null) {
             MountInfo efiMountInfo = efiPartition.mount();
             efiPath = efiMountInfo.getMountPath();
@@ -240,7 +244,8 @@ public final class RunningSystemSource extends SystemSource {
         }
     }
 
-    private void mountExchangeIfNeeded() throws DBusException, IOException {
+    private synchronized void mountExchangeIfNeeded()
+            throws DBusException, IOException {
         if (exchangePath == null) {
             MountInfo bootMountInfo = exchangePartition.mount();
             exchangePath = bootMountInfo.getMountPath();
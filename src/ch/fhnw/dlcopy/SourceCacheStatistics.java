@@ -0,0 +1,47 @@
+package ch.fhnw.dlcopy;
+
+/**
+ * Thread-safe statistics about how many of the copied source bytes were
+ * already in the page cache. In a pipelined installation every storage
+ * device copies with its own {@link BatchFileCopier}, they all add their
+ * samples to the statistics of the batch.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class SourceCacheStatistics {
+
+    private long sampledBytes;
+    private long residentBytes;
+
+    /**
+     * adds a sample
+     *
+     * @param sampledBytes the number of sampled source bytes
+     * @param residentBytes the number of sampled source bytes that were in
+     * the page cache
+     */
+    public synchronized void add(long sampledBytes, long residentBytes) {
+        this.sampledBytes += sampledBytes;
+        this.residentBytes += residentBytes;
+    }
+
+    /**
+     * returns the fraction of the sampled source bytes that were in the page
+     * cache
+     *
+     * @return the fraction of the sampled source bytes that were in the page
+     * cache or -1, if there are no samples
+     */
+    public synchronized double getHitRatio() {
+        if (sampledBytes == 0) {
+            return -1;
+        }
+        return (double) residentBytes / sampledBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return residentBytes + " of " + sampledBytes
+                + " sampled source bytes were in the page cache";
+    }
+}
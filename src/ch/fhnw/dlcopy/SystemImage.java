@@ -0,0 +1,372 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.filecopier.CopyJob;
+import ch.fhnw.filecopier.FileCopier;
+import ch.fhnw.filecopier.Source;
+import ch.fhnw.util.LernstickFileTools;
+import ch.fhnw.util.ProcessExecutor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A prebuilt ext3 image of the system partition. The image is kept in a cache
+ * directory, keyed by the source version and a fingerprint of the system
+ * files, so that it can be reused for all storage devices of a batch (and all
+ * later batches from the same source). On a target storage device the image
+ * is written block by block into the system partition and the file system is
+ * then grown to the partition size.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class SystemImage {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(SystemImage.class.getName());
+    private static final String IMAGE_PREFIX = "system-";
+    private static final String IMAGE_SUFFIX = ".img";
+    // increase when the way the image is built changes
+    private static final int IMAGE_FORMAT_VERSION = 1;
+    private static final Pattern BLOCK_COUNT_PATTERN
+            = Pattern.compile("Block count:\\s*(\\p{Digit}+)");
+    private static final Pattern BLOCK_SIZE_PATTERN
+            = Pattern.compile("Block size:\\s*(\\p{Digit}+)");
+
+    private final File imageFile;
+    private final boolean checkCopies;
+
+    private SystemImage(File imageFile, boolean checkCopies) {
+        this.imageFile = imageFile;
+        this.checkCopies = checkCopies;
+    }
+
+    /**
+     * returns the cached system image for a source or creates it, if it is not
+     * yet cached
+     *
+     * @param source the system source
+     * @param cacheDirectory the directory where system images are cached
+     * @param checkCopies if copies should be checked for errors (also the
+     * copies of the image on the target storage devices)
+     * @return the system image
+     * @throws IOException if an I/O exception occurs
+     * @throws NoSuchAlgorithmException if the file checking algorithm or
+     * fingerprint algorithm can't be found
+     */
+    public static SystemImage getSystemImage(SystemSource source,
+            File cacheDirectory, boolean checkCopies)
+            throws IOException, NoSuchAlgorithmException {
+
+        Source systemCopySource = source.getSystemCopySourceFull();
+        String key = getKey(source, systemCopySource);
+        File imageFile = new File(cacheDirectory,
+                IMAGE_PREFIX + key + IMAGE_SUFFIX);
+        if (imageFile.exists()) {
+            LOGGER.log(Level.INFO, "reusing cached system image {0}",
+                    imageFile);
+            return new SystemImage(imageFile, checkCopies);
+        }
+
+        long imageSize = DLCopy.getEnlargedSystemSize(source.getSystemSize());
+        long usableSpace = cacheDirectory.getUsableSpace();
+        if (usableSpace < imageSize) {
+            throw new IOException("not enough space in " + cacheDirectory
+                    + " for a system image (" + usableSpace + " < "
+                    + imageSize + " Byte)");
+        }
+
+        File tmpFile = new File(cacheDirectory,
+                IMAGE_PREFIX + key + IMAGE_SUFFIX + ".tmp");
+        try {
+            buildImage(tmpFile, imageSize, systemCopySource, checkCopies);
+            Files.move(tmpFile.toPath(), imageFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+        LOGGER.log(Level.INFO, "created system image {0}", imageFile);
+
+        // only keep the current image in the cache
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                cacheDirectory.toPath(), IMAGE_PREFIX + "*" + IMAGE_SUFFIX)) {
+            for (Path path : stream) {
+                if (!path.equals(imageFile.toPath())) {
+                    LOGGER.log(Level.INFO,
+                            "removing outdated system image {0}", path);
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+
+        return new SystemImage(imageFile, checkCopies);
+    }
+
+    /**
+     * returns the size of the image
+     *
+     * @return the size of the image
+     */
+    public long getSize() {
+        return imageFile.length();
+    }
+
+    /**
+     * checks if the image fits into a system partition
+     *
+     * @param systemDevice the device file of the system partition (e.g.
+     * "/dev/sdb3")
+     * @return <code>true</code>, if the image fits into the partition,
+     * <code>false</code> otherwise
+     */
+    public boolean fitsInto(String systemDevice) {
+        File sizeFile = new File("/sys/class/block/"
+                + systemDevice.substring(5) + "/size");
+        try {
+            long partitionSize
+                    = Long.parseLong(DLCopy.readOneLineFile(sizeFile)) * 512;
+            return partitionSize >= getSize();
+        } catch (IOException | NumberFormatException ex) {
+            LOGGER.log(Level.WARNING, "", ex);
+            return false;
+        }
+    }
+
+    /**
+     * writes the image into a system partition (and reads it back, if copies
+     * should be checked) and grows the file system to the size of the
+     * partition
+     *
+     * @param systemDevice the device file of the system partition (e.g.
+     * "/dev/sdb3")
+     * @throws IOException if writing the image fails or the partition doesn't
+     * contain the image after writing
+     */
+    public void writeTo(String systemDevice) throws IOException {
+
+        LOGGER.log(Level.INFO, "writing system image {0} to {1}",
+                new Object[]{imageFile, systemDevice});
+        MessageDigest writtenDigest = null;
+        if (checkCopies) {
+            try {
+                writtenDigest = DLCopy.digestAlgorithm.createMessageDigest();
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IOException(ex);
+            }
+        }
+        long position = 0;
+        try (FileChannel source = FileChannel.open(
+                imageFile.toPath(), StandardOpenOption.READ);
+                QueuedBlockWriter destination = new QueuedBlockWriter(
+                        Paths.get(systemDevice),
+                        DLCopy.directIO && DirectIO.isSupported(),
+                        DLCopy.writeQueueDepth)) {
+
+            boolean endOfFile = false;
+            while (!endOfFile) {
+                ByteBuffer buffer = destination.acquireBuffer();
+                // direct writes must consist of whole blocks
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer, position + buffer.position())
+                            < 0) {
+                        endOfFile = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                int bytes = buffer.remaining();
+                if (bytes == 0) {
+                    DirectIO.releaseBuffer(buffer);
+                    break;
+                }
+                if (writtenDigest != null) {
+                    writtenDigest.update(buffer.duplicate());
+                }
+                destination.submit(buffer, position);
+                position += bytes;
+            }
+            destination.force();
+        }
+
+        if (writtenDigest != null) {
+            // The system files are not copied file by file, therefore the
+            // file checks of the copy stage don't cover the system partition.
+            // The check must happen before the file system is modified below.
+            byte[] expectedDigest = writtenDigest.digest();
+            byte[] readDigest = DirectIO.digest(
+                    Paths.get(systemDevice), position, writtenDigest);
+            if (!MessageDigest.isEqual(expectedDigest, readDigest)) {
+                throw new IOException("system partition " + systemDevice
+                        + " does not match the system image " + imageFile);
+            }
+            LOGGER.log(Level.INFO, "verified system partition {0}",
+                    systemDevice);
+        }
+
+        ProcessExecutor processExecutor = new WatchedProcessExecutor(true);
+
+        // resize2fs insists on a freshly checked file system
+        int returnValue = processExecutor.executeProcess(
+                true, true, "e2fsck", "-f", "-y", systemDevice);
+        if ((returnValue != 0) && (returnValue != 1)) {
+            throw new IOException("filesystem check on " + systemDevice
+                    + " failed: " + processExecutor.getOutput());
+        }
+
+        // grow file system to partition size
+        returnValue = processExecutor.executeProcess(
+                true, true, "resize2fs", systemDevice);
+        if (returnValue != 0) {
+            throw new IOException("resizing filesystem on " + systemDevice
+                    + " failed: " + processExecutor.getOutput());
+        }
+
+        // every copy gets its own UUID
+        returnValue = processExecutor.executeProcess(
+                true, true, "tune2fs", "-U", "random", systemDevice);
+        if (returnValue != 0) {
+            throw new IOException("setting UUID of " + systemDevice
+                    + " failed: " + processExecutor.getOutput());
+        }
+    }
+
+    private static void buildImage(File imageFile, long imageSize,
+            Source systemCopySource, boolean checkCopies)
+            throws IOException, NoSuchAlgorithmException {
+
+        try (RandomAccessFile randomAccessFile
+                = new RandomAccessFile(imageFile, "rw")) {
+            randomAccessFile.setLength(imageSize);
+        }
+
+        ProcessExecutor processExecutor = new WatchedProcessExecutor(true);
+        String imagePath = imageFile.getPath();
+        int exitValue = processExecutor.executeProcess(true, true,
+                "/sbin/mkfs.ext3", "-F", "-L", DLCopy.systemPartitionLabel,
+                imagePath);
+        if (exitValue != 0) {
+            LOGGER.severe(processExecutor.getOutput());
+            String errorMessage = DLCopy.STRINGS.getString(
+                    "Error_Create_System_Partition");
+            LOGGER.severe(errorMessage);
+            throw new IOException(errorMessage);
+        }
+
+        // fill image
+        File mountDir = LernstickFileTools.createTempDirectory(
+                new File("/tmp/"), "DLCopy-System");
+        String mountPath = mountDir.getPath();
+        try {
+            exitValue = processExecutor.executeProcess(true, true,
+                    "mount", "-o", "loop", imagePath, mountPath);
+            if (exitValue != 0) {
+                throw new IOException("could not mount system image "
+                        + imagePath + ": " + processExecutor.getOutput());
+            }
+            try {
+                FileCopier fileCopier = new FileCopier();
+                fileCopier.copy(checkCopies, new CopyJob(
+                        new Source[]{systemCopySource},
+                        new String[]{mountPath}));
+            } finally {
+                exitValue = processExecutor.executeProcess(
+                        true, true, "umount", mountPath);
+                if (exitValue != 0) {
+                    throw new IOException("could not umount system image "
+                            + imagePath + ": " + processExecutor.getOutput());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(mountDir.toPath());
+        }
+
+        // shrink the image to the minimal size so that it fits into the
+        // system partitions of all storage devices
+        exitValue = processExecutor.executeProcess(
+                true, true, "e2fsck", "-f", "-y", imagePath);
+        if ((exitValue != 0) && (exitValue != 1)) {
+            throw new IOException("filesystem check on " + imagePath
+                    + " failed: " + processExecutor.getOutput());
+        }
+        exitValue = processExecutor.executeProcess(
+                true, true, "resize2fs", "-M", imagePath);
+        if (exitValue != 0) {
+            throw new IOException("shrinking filesystem on " + imagePath
+                    + " failed: " + processExecutor.getOutput());
+        }
+        processExecutor.executeProcess(true, true, "dumpe2fs", "-h", imagePath);
+        String output = processExecutor.getOutput();
+        Matcher blockCountMatcher = BLOCK_COUNT_PATTERN.matcher(output);
+        Matcher blockSizeMatcher = BLOCK_SIZE_PATTERN.matcher(output);
+        if (!blockCountMatcher.find() || !blockSizeMatcher.find()) {
+            throw new IOException(
+                    "could not determine filesystem size of " + imagePath);
+        }
+        long fileSystemSize = Long.parseLong(blockCountMatcher.group(1))
+                * Long.parseLong(blockSizeMatcher.group(1));
+        try (RandomAccessFile randomAccessFile
+                = new RandomAccessFile(imageFile, "rw")) {
+            randomAccessFile.setLength(fileSystemSize);
+        }
+    }
+
+    private static String getKey(SystemSource source,
+            Source systemCopySource)
+            throws IOException, NoSuchAlgorithmException {
+
+        // We use the metadata of all system files (path, size and
+        // modification time) as the fingerprint of their content. Hashing
+        // the complete content would mean reading all squashfs files.
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        update(messageDigest, String.valueOf(IMAGE_FORMAT_VERSION));
+        update(messageDigest, String.valueOf(source.getSystemVersion()));
+        update(messageDigest, DLCopy.systemPartitionLabel);
+
+        Path basePath = systemCopySource.getBaseDirectory().toPath();
+        Pattern pattern = systemCopySource.getPattern();
+        List<Path> paths;
+        try (Stream<Path> stream = Files.walk(basePath)) {
+            paths = stream.filter(path -> Files.isRegularFile(path)
+                    && pattern.matcher(
+                            basePath.relativize(path).toString()).matches())
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+        Collections.sort(paths);
+        for (Path path : paths) {
+            update(messageDigest, basePath.relativize(path).toString());
+            update(messageDigest, String.valueOf(Files.size(path)));
+            update(messageDigest,
+                    String.valueOf(Files.getLastModifiedTime(path).toMillis()));
+        }
+
+        StringBuilder stringBuilder = new StringBuilder();
+        for (byte b : messageDigest.digest()) {
+            stringBuilder.append(String.format("%02x", b));
+        }
+        return stringBuilder.toString();
+    }
+
+    private static void update(MessageDigest messageDigest, String string) {
+        messageDigest.update(string.getBytes(StandardCharsets.UTF_8));
+        messageDigest.update((byte) 0);
+    }
+}
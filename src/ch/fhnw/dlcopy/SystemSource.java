@@ -1,6 +1,7 @@
 package ch.fhnw.dlcopy;
 
 import ch.fhnw.filecopier.Source;
+import ch.fhnw.util.LernstickFileTools;
 import ch.fhnw.util.MountInfo;
 import ch.fhnw.util.Partition;
 import ch.fhnw.util.StorageDevice.Type;
@@ -9,6 +10,10 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.freedesktop.dbus.exceptions.DBusException;
 
 /**
@@ -71,6 +76,9 @@ public abstract class SystemSource {
      */
     public static final String GRUB_EFI_PATH = "/boot/grubx64.efi";
 
+    private static final Pattern MD5SUM_LINE_PATTERN
+            = Pattern.compile("([0-9a-fA-F]{32}) [ *]\\.?/?(.*)");
+
     /**
      * Returns the device name (e.g. sda) of this system source. This is mostly
      * used for filtering out the system source in installation or upgrade
@@ -207,6 +215,57 @@ public abstract class SystemSource {
         }
     }
 
+    /**
+     * Returns the MD5 sums from the file md5sum.txt of this system source.
+     * Only files in the "live" directory are included, all other files (e.g.
+     * the boot configuration) may have been changed after the medium was
+     * created.
+     *
+     * @return a map of source file paths (as used by the copy sources of this
+     * system source) to their MD5 sums (the map is empty if there is no
+     * md5sum.txt)
+     * @throws DBusException if a D-BUS exception occurs
+     * @throws IOException if reading md5sum.txt fails
+     */
+    public Map<String, byte[]> getReferenceDigests()
+            throws DBusException, IOException {
+
+        Map<String, byte[]> referenceDigests = new HashMap<>();
+        File efiDirectory = getEfiCopySource().getBaseDirectory();
+        File md5sumFile = new File(efiDirectory, "md5sum.txt");
+        if (!md5sumFile.exists()) {
+            return referenceDigests;
+        }
+        File[] baseDirectories = new File[]{
+            efiDirectory, getSystemCopySourceFull().getBaseDirectory()
+        };
+        for (String line : LernstickFileTools.readFile(md5sumFile)) {
+            // the header of md5sum.txt contains some lines of plain text
+            Matcher matcher = MD5SUM_LINE_PATTERN.matcher(line);
+            if (!matcher.matches()) {
+                continue;
+            }
+            String relativePath = matcher.group(2);
+            if (!relativePath.startsWith("live/")) {
+                continue;
+            }
+            byte[] digest = new byte[16];
+            for (int i = 0; i < digest.length; i++) {
+                digest[i] = (byte) Integer.parseInt(
+                        matcher.group(1).substring(2 * i, 2 * i + 2), 16);
+            }
+            // the files of the medium are split to the EFI and the system
+            // partition
+            for (File baseDirectory : baseDirectories) {
+                File file = new File(baseDirectory, relativePath);
+                if (file.isFile()) {
+                    referenceDigests.put(file.getPath(), digest);
+                }
+            }
+        }
+        return referenceDigests;
+    }
+
     /**
      * Depending on the Debian Live version the EFI directory is lowercase or
      * uppercase.This function tries to find the file in either case.
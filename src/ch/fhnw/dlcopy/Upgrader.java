@@ -34,7 +34,6 @@ import java.sql.SQLException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
@@ -114,7 +113,7 @@ public class Upgrader extends InstallerOrUpgrader {
      */
     public Upgrader(SystemSource source, List<StorageDevice> deviceList,
             String exchangePartitionLabel, String exchangePartitionFileSystem,
-            String dataPartitionFileSystem, HashMap<String, byte[]> digestCache,
+            String dataPartitionFileSystem, DigestCache digestCache,
             DLCopySwingGUI dlCopy, DLCopyGUI dlCopyGUI,
             RepartitionStrategy repartitionStrategy,
             int resizedExchangePartitionSize, boolean automaticBackup,
@@ -155,6 +154,10 @@ public class Upgrader extends InstallerOrUpgrader {
         try {
             inhibit = new LogindInhibit("Upgrading");
 
+            // A single hung or crawling storage device must not hold up the
+            // whole batch.
+            setWatchdog(new BatchWatchdog());
+
             // upgrade all selected storage devices
             int batchCounter = 0;
             for (StorageDevice storageDevice : deviceList) {
@@ -162,6 +165,8 @@ public class Upgrader extends InstallerOrUpgrader {
                 // update overall progress message
                 batchCounter++;
                 dlCopyGUI.upgradingDeviceStarted(storageDevice);
+                startRun(storageDevice, RunHistory.UPGRADE);
+                startWatching(storageDevice);
                 LOGGER.log(Level.INFO,
                         "upgrading storage device: {0} of {1} ({2})",
                         new Object[]{
@@ -219,7 +224,10 @@ public class Upgrader extends InstallerOrUpgrader {
                     LOGGER.log(Level.WARNING, "", ex);
                     errorMessage = ex.getMessage();
                 }
+                // also clears the interrupt of an aborted storage device
+                errorMessage = stopWatching(storageDevice, errorMessage);
 
+                finishRun(storageDevice, errorMessage);
                 dlCopyGUI.upgradingDeviceFinished(errorMessage);
 
                 LOGGER.log(Level.INFO, "upgrading of storage device finished: "
@@ -231,6 +239,7 @@ public class Upgrader extends InstallerOrUpgrader {
             return null;
 
         } finally {
+            setWatchdog(null);
             lock.unlock();
         }
     }
@@ -423,6 +432,7 @@ public class Upgrader extends InstallerOrUpgrader {
         DLCopy.writePersistenceConf(mountPath);
 
         // cleanup
+        DLCopy.flushBeforeUmount(dataPartition, true);
         dataPartition.umount();
         restoreTimer.stop();
     }
@@ -446,6 +456,7 @@ public class Upgrader extends InstallerOrUpgrader {
             exchangePartition.mount().getMountPath()};
         fileCopier.copy(new CopyJob(sources, destinations));
 
+        DLCopy.flushBeforeUmount(exchangePartition, true);
         exchangePartition.umount();
     }
 
@@ -598,6 +609,7 @@ public class Upgrader extends InstallerOrUpgrader {
         }
 
         // umount
+        DLCopy.flushBeforeUmount(dataPartition, true);
         if ((!dataMountInfo.alreadyMounted())
                 && (!DLCopy.umount(dataPartition, dlCopyGUI))) {
             return false;
@@ -609,7 +621,7 @@ public class Upgrader extends InstallerOrUpgrader {
 
         // upgrade label (if necessary)
         if (!(dataPartition.getIdLabel().equals(Partition.PERSISTENCE_LABEL))) {
-            ProcessExecutor processExecutor = new ProcessExecutor();
+            ProcessExecutor processExecutor = new WatchedProcessExecutor();
             processExecutor.executeProcess("e2label",
                     "/dev/" + dataPartition.getDeviceAndNumber(),
                     Partition.PERSISTENCE_LABEL);
@@ -695,7 +707,7 @@ public class Upgrader extends InstallerOrUpgrader {
         });
         commandList.add("-delete");
         String[] command = commandList.toArray(new String[commandList.size()]);
-        ProcessExecutor processExecutor = new ProcessExecutor();
+        ProcessExecutor processExecutor = new WatchedProcessExecutor();
         return processExecutor.executeProcess(true, true, command);
     }
 
@@ -822,7 +834,7 @@ public class Upgrader extends InstallerOrUpgrader {
         }
 
         // process list of files (or directories) to overwrite
-        ProcessExecutor processExecutor = new ProcessExecutor();
+        ProcessExecutor processExecutor = new WatchedProcessExecutor();
         for (String file : filesToOverwrite) {
             File destinationFile = new File(persistenceRoot, file);
             LernstickFileTools.recursiveDelete(destinationFile, true);
@@ -845,7 +857,7 @@ public class Upgrader extends InstallerOrUpgrader {
         Partition systemPartition = storageDevice.getSystemPartition();
         int systemPartitionNumber = systemPartition.getNumber();
 
-        ProcessExecutor processExecutor = new ProcessExecutor();
+        ProcessExecutor processExecutor = new WatchedProcessExecutor();
 
         // (the list returned by getPartitions() is 0-based and getNumber()
         // is 1-based, so we really get the next partition...)
@@ -978,13 +990,10 @@ public class Upgrader extends InstallerOrUpgrader {
                     }
 
                     // let's wait some time before retrying
-                    try {
-                        LOGGER.info(
-                                "waiting for 10 seconds before continuing...");
-                        TimeUnit.SECONDS.sleep(10);
-                    } catch (InterruptedException ex) {
-                        LOGGER.log(Level.SEVERE, null, ex);
-                    }
+                    // (an interrupt must end the upgrade of this storage
+                    // device instead of retrying for another 100 seconds)
+                    LOGGER.info("waiting for 10 seconds before continuing...");
+                    TimeUnit.SECONDS.sleep(10);
                     returnValue = processExecutor.executeProcess(true, true,
                             "e2fsck", "-f", "-y", "-v", dataDevPath);
                 } else {
@@ -1125,8 +1134,10 @@ public class Upgrader extends InstallerOrUpgrader {
         dlCopyGUI.showUpgradeFileCopy(fileCopier);
 
         CopyJob bootFilesCopyJob = copyJobsInfo.getExchangeEfiCopyJob();
+        long start = stageStarted(storageDevice, InstallStage.COPY);
         fileCopier.copy(copyJobsInfo.getEfiCopyJob(),
                 bootFilesCopyJob, copyJobsInfo.getSystemCopyJob());
+        stageFinished(storageDevice, InstallStage.COPY, start);
 
         dlCopyGUI.showUpgradeUnmounting();
         DLCopy.isolinuxToSyslinux(
@@ -1166,6 +1177,7 @@ public class Upgrader extends InstallerOrUpgrader {
             for (String readOnlyMountPoint : readOnlyMountPoints) {
                 DLCopy.umount(readOnlyMountPoint, dlCopyGUI);
             }
+            DLCopy.flushBeforeUmount(dataPartition, true);
             if ((!dataMountInfo.alreadyMounted())
                     && (!DLCopy.umount(dataPartition, dlCopyGUI))) {
                 return false;
@@ -1174,6 +1186,9 @@ public class Upgrader extends InstallerOrUpgrader {
 
         // cleanup
         source.unmountTmpPartitions();
+        // the copy jobs of the upgrade are not flushed on their own
+        DLCopy.flushBeforeUmount(efiPartition, true);
+        DLCopy.flushBeforeUmount(systemPartition, true);
         if (!DLCopy.umount(efiPartition, dlCopyGUI)) {
             return false;
         }
@@ -1186,7 +1201,7 @@ public class Upgrader extends InstallerOrUpgrader {
         // to remove this file, we first have to remove the immutable flag.
         String ldLinuxPath = moutPoint + "/syslinux/ldlinux.sys";
         if (new File(ldLinuxPath).exists()) {
-            ProcessExecutor processExecutor = new ProcessExecutor();
+            ProcessExecutor processExecutor = new WatchedProcessExecutor();
             processExecutor.executeProcess("chattr", "-i", ldLinuxPath);
         }
         LernstickFileTools.recursiveDelete(moutPoint, false);
@@ -0,0 +1,255 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.util.StorageDevice;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * The position of storage devices in the USB topology, read from sysfs.
+ * Several storage devices on one USB 2.0 hub share 480 MBit/s, while storage
+ * devices on different host controllers don't share anything. Parallel work
+ * should therefore be spread across host controllers and hubs.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public final class UsbTopology {
+
+    /**
+     * the position of a storage device in the USB topology
+     */
+    public static final class Location {
+
+        private final String controller;
+        private final String hub;
+        private final String port;
+        private final String sysfsPortPath;
+        private final String sysfsHubPath;
+        private int speed;
+        private int hubSpeed;
+
+        private Location(String controller, String hub, String port,
+                String sysfsPortPath, String sysfsHubPath) {
+            this.controller = controller;
+            this.hub = hub;
+            this.port = port;
+            this.sysfsPortPath = sysfsPortPath;
+            this.sysfsHubPath = sysfsHubPath;
+        }
+
+        /**
+         * returns the host controller (e.g. "0000:00:14.0")
+         *
+         * @return the host controller
+         */
+        public String getController() {
+            return controller;
+        }
+
+        /**
+         * returns the hub the storage device is connected to (e.g. "2-1" or
+         * "usb2" for the root hub of a host controller)
+         *
+         * @return the hub the storage device is connected to
+         */
+        public String getHub() {
+            return hub;
+        }
+
+        /**
+         * returns the USB path of the storage device (e.g. "2-1.3") or null,
+         * if the storage device is not connected via USB
+         *
+         * @return the USB path of the storage device
+         */
+        public String getPort() {
+            return port;
+        }
+
+        /**
+         * returns the negotiated link speed of the storage device
+         *
+         * @return the negotiated link speed of the storage device (in MBit/s)
+         * or 0, if unknown
+         */
+        public int getSpeed() {
+            return speed;
+        }
+
+        /**
+         * returns the link speed of the hub the storage device is connected
+         * to (shared by all storage devices on this hub)
+         *
+         * @return the link speed of the hub (in MBit/s) or 0, if unknown
+         */
+        public int getHubSpeed() {
+            return hubSpeed;
+        }
+
+        @Override
+        public String toString() {
+            if (port == null) {
+                return "controller " + controller;
+            }
+            return "controller " + controller + ", hub " + hub + " ("
+                    + hubSpeed + " MBit/s), port " + port + " ("
+                    + speed + " MBit/s)";
+        }
+    }
+
+    private static final Logger LOGGER
+            = Logger.getLogger(UsbTopology.class.getName());
+    private static final Pattern PCI_ADDRESS = Pattern.compile(
+            "\\p{XDigit}{4}:\\p{XDigit}{2}:\\p{XDigit}{2}\\.\\p{XDigit}");
+    private static final Pattern ROOT_HUB = Pattern.compile("usb\\d+");
+    // e.g. "2-1.3" (interfaces like "2-1.3:1.0" contain a colon)
+    private static final Pattern USB_DEVICE
+            = Pattern.compile("\\d+-\\d+(\\.\\d+)*");
+
+    private UsbTopology() {
+    }
+
+    /**
+     * returns the position of a storage device in the USB topology
+     *
+     * @param storageDevice the storage device
+     * @return the position of the storage device
+     */
+    public static Location getLocation(StorageDevice storageDevice) {
+        String sysfsPath;
+        try {
+            sysfsPath = Paths.get("/sys/block", storageDevice.getDevice())
+                    .toRealPath().toString();
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, "", ex);
+            sysfsPath = storageDevice.getDevice();
+        }
+        Location location = parse(sysfsPath);
+        if (location.sysfsPortPath != null) {
+            location.speed = readSpeed(location.sysfsPortPath);
+            location.hubSpeed = readSpeed(location.sysfsHubPath);
+        }
+        return location;
+    }
+
+    /**
+     * Sorts storage devices so that consecutive storage devices are on
+     * different host controllers and, within the same host controller, on
+     * different hubs. Otherwise, when a batch is connected hub by hub, the
+     * first storage devices started in parallel would all share one hub while
+     * the other hubs sit idle.
+     *
+     * @param storageDevices the storage devices
+     * @return the sorted storage devices
+     */
+    public static List<StorageDevice> interleave(
+            List<StorageDevice> storageDevices) {
+
+        // controller -> hub -> storage devices (all in list order)
+        Map<String, Map<String, Deque<StorageDevice>>> controllers
+                = new LinkedHashMap<>();
+        for (StorageDevice storageDevice : storageDevices) {
+            Location location = getLocation(storageDevice);
+            LOGGER.log(Level.INFO, "USB topology of {0}: {1}",
+                    new Object[]{storageDevice.getDevice(), location});
+            controllers.computeIfAbsent(location.controller,
+                    key -> new LinkedHashMap<>())
+                    .computeIfAbsent(location.hub, key -> new ArrayDeque<>())
+                    .add(storageDevice);
+        }
+
+        // round robin across hubs of every controller
+        List<Deque<StorageDevice>> controllerQueues = new ArrayList<>();
+        for (Map<String, Deque<StorageDevice>> hubs : controllers.values()) {
+            controllerQueues.add(roundRobin(new ArrayList<>(hubs.values())));
+        }
+        // round robin across controllers
+        List<StorageDevice> interleaved
+                = new ArrayList<>(roundRobin(controllerQueues));
+        if (!interleaved.equals(storageDevices)) {
+            LOGGER.log(Level.INFO, "balancing storage devices across "
+                    + "controllers and hubs: {0}", interleaved);
+        }
+        return interleaved;
+    }
+
+    // parses a resolved sysfs block device path, e.g.
+    // /sys/devices/pci0000:00/0000:00:14.0/usb2/2-1/2-1.3/2-1.3:1.0/host6/
+    // target6:0:0/6:0:0:0/block/sdb
+    static Location parse(String sysfsPath) {
+        String[] components = sysfsPath.split("/");
+        String controller = null;
+        String rootHub = null;
+        String hub = null;
+        String port = null;
+        StringBuilder path = new StringBuilder();
+        String portPath = null;
+        String hubPath = null;
+        for (String component : components) {
+            if (component.isEmpty()) {
+                continue;
+            }
+            path.append('/').append(component);
+            if (rootHub == null) {
+                if (PCI_ADDRESS.matcher(component).matches()) {
+                    controller = component;
+                } else if (ROOT_HUB.matcher(component).matches()) {
+                    rootHub = component;
+                    port = component;
+                    portPath = path.toString();
+                }
+            } else if (USB_DEVICE.matcher(component).matches()) {
+                hub = port;
+                hubPath = portPath;
+                port = component;
+                portPath = path.toString();
+            }
+        }
+        if (controller == null) {
+            // e.g. virtual block devices
+            controller = "virtual";
+        }
+        if (hub == null) {
+            // not a USB storage device, all storage devices of the same
+            // controller share the controller
+            return new Location(controller, controller, null, null, null);
+        }
+        return new Location(controller, hub, port, portPath, hubPath);
+    }
+
+    private static int readSpeed(String sysfsPath) {
+        try {
+            // e.g. "480" or "1.5"
+            return (int) Double.parseDouble(DLCopy.readOneLineFile(
+                    new File(sysfsPath, "speed")).trim());
+        } catch (IOException | NumberFormatException ex) {
+            LOGGER.log(Level.FINE, "", ex);
+            return 0;
+        }
+    }
+
+    private static <T> Deque<T> roundRobin(List<Deque<T>> queues) {
+        Deque<T> result = new ArrayDeque<>();
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (Deque<T> queue : queues) {
+                T element = queue.poll();
+                if (element != null) {
+                    result.add(element);
+                    added = true;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,17 @@
+package ch.fhnw.dlcopy;
+
+/**
+ * the modes for checking copied files (when copy checks are enabled)
+ */
+public enum VerificationMode {
+    /**
+     * read back and compare every copied file completely
+     */
+    FULL,
+    /**
+     * read back and compare small and boot-critical files completely but only
+     * a random sample of blocks of the squashfs images (plus their first and
+     * last block)
+     */
+    SAMPLED
+}
@@ -0,0 +1,143 @@
+package ch.fhnw.dlcopy;
+
+import ch.fhnw.util.ProcessExecutor;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A ProcessExecutor that kills commands when they exceed their time budget.
+ * A hung mkfs or e2fsck on a broken storage device would otherwise block the
+ * installation forever. The caller just sees a failed command and the rest
+ * of the batch goes on.
+ * <p>
+ * Only processes are watched, scripts (e.g. copying the data partition) may
+ * legitimately run for a very long time.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class WatchedProcessExecutor extends ProcessExecutor {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(WatchedProcessExecutor.class.getName());
+    private static final Map<String, Integer> TIMEOUTS
+            = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService TIMER
+            = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "command watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static volatile int defaultTimeout = 1800;
+
+    private volatile boolean timedOut;
+
+    /**
+     * creates a new WatchedProcessExecutor
+     */
+    public WatchedProcessExecutor() {
+    }
+
+    /**
+     * creates a new WatchedProcessExecutor
+     *
+     * @param parameter the parameter of
+     * {@link ProcessExecutor#ProcessExecutor(boolean)}
+     */
+    public WatchedProcessExecutor(boolean parameter) {
+        super(parameter);
+    }
+
+    /**
+     * returns the time budget of commands without their own time budget
+     *
+     * @return the time budget (in seconds, 0 means unlimited)
+     */
+    public static int getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    /**
+     * sets the time budget of commands without their own time budget
+     *
+     * @param timeout the time budget (in seconds, 0 means unlimited)
+     */
+    public static void setDefaultTimeout(int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException(
+                    "timeout must not be negative");
+        }
+        defaultTimeout = timeout;
+    }
+
+    /**
+     * sets the time budget of a command
+     *
+     * @param command the name of the command (e.g. "e2fsck")
+     * @param timeout the time budget (in seconds, 0 means unlimited)
+     */
+    public static void setTimeout(String command, int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException(
+                    "timeout of " + command + " must not be negative");
+        }
+        TIMEOUTS.put(command, timeout);
+    }
+
+    /**
+     * returns the time budget of a command
+     *
+     * @param command the command (e.g. "/sbin/mkfs.ext4")
+     * @return the time budget (in seconds, 0 means unlimited)
+     */
+    public static int getTimeout(String command) {
+        return TIMEOUTS.getOrDefault(
+                new File(command).getName(), defaultTimeout);
+    }
+
+    @Override
+    public int executeProcess(String... commandArray) {
+        return executeProcess(false, false, commandArray);
+    }
+
+    @Override
+    public int executeProcess(boolean storeStdOut, boolean storeStdErr,
+            String... commandArray) {
+        timedOut = false;
+        int timeout = getTimeout(commandArray[0]);
+        ScheduledFuture<?> kill = null;
+        if (timeout > 0) {
+            kill = TIMER.schedule(() -> {
+                LOGGER.log(Level.WARNING, "killing {0} after {1} seconds",
+                        new Object[]{String.join(" ", commandArray), timeout});
+                timedOut = true;
+                destroy();
+            }, timeout, TimeUnit.SECONDS);
+        }
+        try {
+            return super.executeProcess(
+                    storeStdOut, storeStdErr, commandArray);
+        } finally {
+            if (kill != null) {
+                kill.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * checks if the last command was killed because it exceeded its time
+     * budget
+     *
+     * @return <code>true</code>, if the last command was killed,
+     * <code>false</code> otherwise
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+}
@@ -0,0 +1,157 @@
+package ch.fhnw.dlcopy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+/**
+ * The XXH64 hash (see https://github.com/Cyan4973/xxHash) as a
+ * MessageDigest. XXH64 is no cryptographic hash but it is several times
+ * faster than MD5 and perfectly good enough for detecting broken copies.
+ * <p>
+ * The digest is the canonical (big endian) representation of the 64 bit
+ * hash value with seed 0.
+ *
+ * @author Ronny Standtke <ronny.standtke@gmx.net>
+ */
+public class XXH64Digest extends MessageDigest {
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE_SIZE = 32;
+
+    // collects the bytes of an incomplete stripe
+    private final ByteBuffer stripe = ByteBuffer.allocate(STRIPE_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long totalLength;
+
+    /**
+     * creates a new XXH64Digest
+     */
+    public XXH64Digest() {
+        super("XXH64");
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return Long.BYTES;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        engineUpdate(new byte[]{input}, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length) {
+        engineUpdate(ByteBuffer.wrap(input, offset, length));
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        // work on a little endian view without touching the caller's byte
+        // order
+        ByteBuffer buffer = input.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int length = buffer.remaining();
+        totalLength += length;
+        input.position(input.limit());
+
+        if (stripe.position() > 0) {
+            int count = Math.min(stripe.remaining(), buffer.remaining());
+            ByteBuffer head = buffer.duplicate();
+            head.limit(head.position() + count);
+            stripe.put(head);
+            buffer.position(buffer.position() + count);
+            if (stripe.hasRemaining()) {
+                return;
+            }
+            processStripe(stripe, 0);
+            stripe.clear();
+        }
+
+        int position = buffer.position();
+        int limit = buffer.limit();
+        for (; position + STRIPE_SIZE <= limit; position += STRIPE_SIZE) {
+            processStripe(buffer, position);
+        }
+        buffer.position(position);
+        stripe.put(buffer);
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long hash;
+        if (totalLength >= STRIPE_SIZE) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                    + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME64_5;
+        }
+        hash += totalLength;
+
+        int remaining = stripe.position();
+        int position = 0;
+        for (; position + Long.BYTES <= remaining; position += Long.BYTES) {
+            hash ^= round(0, stripe.getLong(position));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (position + Integer.BYTES <= remaining) {
+            hash ^= (stripe.getInt(position) & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            position += Integer.BYTES;
+        }
+        for (; position < remaining; position++) {
+            hash ^= (stripe.get(position) & 0xFF) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+
+        engineReset();
+        return ByteBuffer.allocate(Long.BYTES).putLong(hash).array();
+    }
+
+    @Override
+    protected final void engineReset() {
+        v1 = PRIME64_1 + PRIME64_2;
+        v2 = PRIME64_2;
+        v3 = 0;
+        v4 = -PRIME64_1;
+        totalLength = 0;
+        stripe.clear();
+    }
+
+    private void processStripe(ByteBuffer buffer, int position) {
+        v1 = round(v1, buffer.getLong(position));
+        v2 = round(v2, buffer.getLong(position + 8));
+        v3 = round(v3, buffer.getLong(position + 16));
+        v4 = round(v4, buffer.getLong(position + 24));
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME64_2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME64_1;
+    }
+
+    private static long mergeRound(long accumulator, long value) {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME64_1 + PRIME64_4;
+    }
+}
@@ -9,15 +9,25 @@ import static ch.fhnw.dlcopy.DLCopy.STRINGS;
 import ch.fhnw.dlcopy.DLCopy;
 import ch.fhnw.dlcopy.DataPartitionMode;
 import ch.fhnw.dlcopy.DebianLiveDistribution;
+import ch.fhnw.dlcopy.DigestCache;
+import ch.fhnw.dlcopy.DigestAlgorithm;
+import ch.fhnw.dlcopy.DurabilityMode;
+import ch.fhnw.dlcopy.FormattingMode;
+import ch.fhnw.dlcopy.InstallPipeline;
+import ch.fhnw.dlcopy.InstallStage;
 import ch.fhnw.dlcopy.Installer;
 import ch.fhnw.dlcopy.IsoCreator;
+import ch.fhnw.dlcopy.QualificationMode;
 import ch.fhnw.dlcopy.RepartitionStrategy;
 import ch.fhnw.dlcopy.Resetter;
+import ch.fhnw.dlcopy.RunHistory;
 import ch.fhnw.dlcopy.RunningSystemSource;
 import ch.fhnw.dlcopy.SquashFSCreator;
 import ch.fhnw.dlcopy.StorageDeviceResult;
 import ch.fhnw.dlcopy.SystemSource;
 import ch.fhnw.dlcopy.Upgrader;
+import ch.fhnw.dlcopy.VerificationMode;
+import ch.fhnw.dlcopy.WatchedProcessExecutor;
 import ch.fhnw.dlcopy.gui.DLCopyGUI;
 import ch.fhnw.dlcopy.gui.swing.preferences.DLCopySwingGUIPreferencesHandler;
 import ch.fhnw.dlcopy.gui.swing.preferences.MainMenuPreferences;
@@ -154,7 +164,7 @@ public class DLCopySwingGUI extends JFrame
     private Lock resetLock = new ReentrantLock();
 
     // global cache for file digests to speed up repeated file copy checks
-    private final HashMap<String, byte[]> digestCache = new HashMap<>();
+    private final DigestCache digestCache = new DigestCache();
 
     private final DLCopySwingGUIPreferencesHandler preferencesHandler;
 
@@ -423,6 +433,16 @@ public class DLCopySwingGUI extends JFrame
         setLocationRelativeTo(null);
 
         udisksMonitorThread.start();
+
+        // The storage device list shows past runs and degrading storage
+        // devices. Opening the database may take a while, therefore we do it
+        // in the background and repaint the list when it is open.
+        new Thread(() -> {
+            if (RunHistory.getInstance() != null) {
+                SwingUtilities.invokeLater(
+                        () -> installerPanels.getDeviceList().repaint());
+            }
+        }, "open run history").start();
     }
 
     @Override
@@ -1865,6 +1885,299 @@ public class DLCopySwingGUI extends JFrame
                         = "true".equalsIgnoreCase(arguments[i + 1]);
             }
 
+            // if the EFI partition should be prebuilt once per batch
+            if (arguments[i].equals("--efiImageTemplate")
+                    && (i != length - 1)) {
+                DLCopy.useEfiImageTemplate
+                        = "true".equalsIgnoreCase(arguments[i + 1]);
+            }
+
+            // where to cache prebuilt system partition images
+            if (arguments[i].equals("--systemImageCache")
+                    && (i != length - 1)) {
+                DLCopy.systemImageCacheDirectory = new File(arguments[i + 1]);
+            }
+
+            // if the system source should be copied into RAM for batches
+            if (arguments[i].equals("--ramStagedSource")
+                    && (i != length - 1)) {
+                DLCopy.ramStagedSource
+                        = "true".equalsIgnoreCase(arguments[i + 1]);
+            }
+
+            // if several storage devices should be installed concurrently
+            if (arguments[i].equals("--pipeline") && (i != length - 1)) {
+                DLCopy.pipelinedInstallation
+                        = "true".equalsIgnoreCase(arguments[i + 1]);
+            }
+
+            // if the data partition should be formatted while copying files
+            // (sequential, concurrent or auto)
+            if (arguments[i].equals("--dataPartitionFormatting")
+                    && (i != length - 1)) {
+                try {
+                    DLCopy.dataPartitionFormattingMode = FormattingMode.valueOf(
+                            arguments[i + 1].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported data partition formatting: {0}",
+                            arguments[i + 1]);
+                }
+            }
+
+            // if copied files should be dropped from the page cache
+            if (arguments[i].equals("--pageCacheManagement")
+                    && (i != length - 1)) {
+                DLCopy.pageCacheManagement
+                        = "true".equalsIgnoreCase(arguments[i + 1]);
+            }
+
+            // if large files should be written with direct I/O
+            if (arguments[i].equals("--directIO") && (i != length - 1)) {
+                DLCopy.directIO = "true".equalsIgnoreCase(arguments[i + 1]);
+            }
+
+            // if files should be copied within the kernel
+            if (arguments[i].equals("--kernelCopy") && (i != length - 1)) {
+                DLCopy.kernelCopy = "true".equalsIgnoreCase(arguments[i + 1]);
+            }
+
+            // the maximum number of block writes in flight per storage device
+            if (arguments[i].equals("--writeQueueDepth")
+                    && (i != length - 1)) {
+                try {
+                    DLCopy.writeQueueDepth = Integer.parseInt(arguments[i + 1]);
+                } catch (NumberFormatException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported write queue depth: {0}",
+                            arguments[i + 1]);
+                }
+            }
+
+            // how copied files are checked (full or sampled)
+            if (arguments[i].equals("--checkCopiesMode")
+                    && (i != length - 1)) {
+                try {
+                    DLCopy.verificationMode = VerificationMode.valueOf(
+                            arguments[i + 1].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported check copies mode: {0}",
+                            arguments[i + 1]);
+                }
+            }
+
+            // the number of random blocks per squashfs image that are checked
+            if (arguments[i].equals("--verificationSamples")
+                    && (i != length - 1)) {
+                try {
+                    DLCopy.verificationSamples
+                            = Integer.parseInt(arguments[i + 1]);
+                } catch (NumberFormatException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported number of verification samples: {0}",
+                            arguments[i + 1]);
+                }
+            }
+
+            // the seed for selecting the checked blocks
+            if (arguments[i].equals("--verificationSeed")
+                    && (i != length - 1)) {
+                try {
+                    DLCopy.verificationSeed = Long.parseLong(arguments[i + 1]);
+                } catch (NumberFormatException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported verification seed: {0}",
+                            arguments[i + 1]);
+                }
+            }
+
+            // if copies should be verified with a block hash manifest
+            if (arguments[i].equals("--blockHashManifest")
+                    && (i != length - 1)) {
+                DLCopy.blockHashManifest
+                        = "true".equalsIgnoreCase(arguments[i + 1]);
+            }
+
+            // if md5sum.txt should be used as the reference for copy checks
+            if (arguments[i].equals("--md5sumReference")
+                    && (i != length - 1)) {
+                DLCopy.md5sumReference
+                        = "true".equalsIgnoreCase(arguments[i + 1]);
+            }
+
+            // the digest algorithm for checking copies (md5, sha256 or xxh64)
+            if (arguments[i].equals("--digestAlgorithm")
+                    && (i != length - 1)) {
+                try {
+                    DLCopy.digestAlgorithm = DigestAlgorithm.valueOf(
+                            arguments[i + 1].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported digest algorithm: {0}",
+                            arguments[i + 1]);
+                }
+            }
+
+            // the memory budget of the digest cache (in MiB)
+            if (arguments[i].equals("--digestCacheMemoryBudget")
+                    && (i != length - 1)) {
+                try {
+                    DLCopy.digestCacheMemoryBudget
+                            = Long.parseLong(arguments[i + 1]) * DLCopy.MEGA;
+                } catch (NumberFormatException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported digest cache memory budget: {0}",
+                            arguments[i + 1]);
+                }
+            }
+
+            // the directory of the run history database ("none" disables
+            // the run history)
+            if (arguments[i].equals("--runHistory")
+                    && (i != length - 1)) {
+                DLCopy.runHistoryDirectory = "none".equals(arguments[i + 1])
+                        ? null : new File(arguments[i + 1]);
+            }
+
+            // if storage devices should be checked for fake capacities
+            if (arguments[i].equals("--capacityCheck")
+                    && (i != length - 1)) {
+                DLCopy.capacityCheck
+                        = "true".equalsIgnoreCase(arguments[i + 1]);
+            }
+
+            // the mode for qualifying storage devices before an installation
+            // (off, report, queue_last or skip)
+            if (arguments[i].equals("--deviceQualification")
+                    && (i != length - 1)) {
+                try {
+                    DLCopy.deviceQualification = QualificationMode.valueOf(
+                            arguments[i + 1].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported device qualification mode: {0}",
+                            arguments[i + 1]);
+                }
+            }
+
+            // the minimum write speed (in MiB/s) of qualified storage devices
+            if (arguments[i].equals("--minimumWriteSpeed")
+                    && (i != length - 1)) {
+                try {
+                    DLCopy.minimumWriteSpeed
+                            = Double.parseDouble(arguments[i + 1]);
+                } catch (NumberFormatException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported minimum write speed: {0}",
+                            arguments[i + 1]);
+                }
+            }
+
+            // the fraction of the median throughput of a batch below which a
+            // storage device counts as a straggler (0 disables aborting
+            // stragglers)
+            if (arguments[i].equals("--stragglerRatio")
+                    && (i != length - 1)) {
+                try {
+                    DLCopy.stragglerRatio = Math.max(0,
+                            Double.parseDouble(arguments[i + 1]));
+                } catch (NumberFormatException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported straggler ratio: {0}",
+                            arguments[i + 1]);
+                }
+            }
+
+            // the maximum number of storage devices that copy concurrently
+            // under adaptive control (e.g. "--adaptiveCopyConcurrency 8")
+            if (arguments[i].equals("--adaptiveCopyConcurrency")
+                    && (i != length - 1)) {
+                try {
+                    DLCopy.adaptiveCopyConcurrency
+                            = Integer.parseInt(arguments[i + 1]);
+                } catch (NumberFormatException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported adaptive copy concurrency: {0}",
+                            arguments[i + 1]);
+                }
+            }
+
+            // if the storage devices of a pipelined installation should be
+            // started balanced across USB host controllers and hubs
+            if (arguments[i].equals("--topologyAwareScheduling")
+                    && (i != length - 1)) {
+                DLCopy.topologyAwareScheduling
+                        = "true".equalsIgnoreCase(arguments[i + 1]);
+            }
+
+            // if the block layer settings of storage devices should be tuned
+            // while they are installed
+            if (arguments[i].equals("--queueTuning")
+                    && (i != length - 1)) {
+                DLCopy.queueTuning = "true".equalsIgnoreCase(arguments[i + 1]);
+            }
+
+            // when copied data is explicitly flushed to the storage device
+            // (per_file, per_partition or before_umount)
+            if (arguments[i].equals("--durabilityMode")
+                    && (i != length - 1)) {
+                try {
+                    DLCopy.durabilityMode = DurabilityMode.valueOf(
+                            arguments[i + 1].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported durability mode: {0}",
+                            arguments[i + 1]);
+                }
+            }
+
+            // the time budget of external commands in seconds, either of a
+            // single command or of all other commands
+            // (e.g. "--commandTimeout e2fsck=3600" or "--commandTimeout 600")
+            if (arguments[i].equals("--commandTimeout")
+                    && (i != length - 1)) {
+                String[] tokens = arguments[i + 1].split("=");
+                try {
+                    if (tokens.length == 1) {
+                        WatchedProcessExecutor.setDefaultTimeout(
+                                Integer.parseInt(tokens[0]));
+                    } else {
+                        WatchedProcessExecutor.setTimeout(
+                                tokens[0], Integer.parseInt(tokens[1]));
+                    }
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "invalid command timeout \"{0}\"",
+                            arguments[i + 1]);
+                }
+            }
+
+            // the maximum number of storage devices per installation stage
+            // (e.g. "--pipelineStageLimit FORMAT=3")
+            if (arguments[i].equals("--pipelineStageLimit")
+                    && (i != length - 1)) {
+                String[] tokens = arguments[i + 1].split("=");
+                InstallStage stage = null;
+                try {
+                    stage = InstallStage.valueOf(tokens[0].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    LOGGER.log(Level.WARNING,
+                            "unsupported installation stage: {0}", tokens[0]);
+                }
+                if (stage != null) {
+                    try {
+                        InstallPipeline.setStageLimit(
+                                stage, Integer.parseInt(tokens[1]));
+                    } catch (IllegalArgumentException
+                            | ArrayIndexOutOfBoundsException ex) {
+                        LOGGER.log(Level.WARNING,
+                                "invalid stage limit \"{0}\"",
+                                arguments[i + 1]);
+                    }
+                }
+            }
+
             if (arguments[i].equals("--autoUpgrade")) {
                 autoUpgrade = true;
             }
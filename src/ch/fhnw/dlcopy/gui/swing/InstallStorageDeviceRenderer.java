@@ -6,9 +6,11 @@
 package ch.fhnw.dlcopy.gui.swing;
 
 import ch.fhnw.dlcopy.DLCopy;
+import ch.fhnw.dlcopy.DeviceQualification;
 import static ch.fhnw.dlcopy.DLCopy.MEGA;
 import static ch.fhnw.dlcopy.DLCopy.STRINGS;
 import ch.fhnw.dlcopy.PartitionState;
+import ch.fhnw.dlcopy.RunHistory;
 import ch.fhnw.util.LernstickFileTools;
 import ch.fhnw.util.StorageDevice;
 import java.awt.Color;
@@ -21,6 +23,7 @@ import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.RenderingHints;
 import java.awt.geom.Rectangle2D;
+import java.text.MessageFormat;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.ImageIcon;
@@ -130,6 +133,28 @@ public class InstallStorageDeviceRenderer extends JPanel
 
         // draw top text
         String deviceText = getDeviceString(storageDevice);
+        DeviceQualification.Result qualification
+                = DeviceQualification.getResult(storageDevice);
+        if (qualification != null) {
+            deviceText += " [" + STRINGS.getString("Device_Class_"
+                    + qualification.getDeviceClass()) + "]";
+        }
+        RunHistory runHistory = RunHistory.getOpenInstance();
+        if (runHistory != null) {
+            RunHistory.Statistics statistics
+                    = runHistory.getStatistics(storageDevice);
+            if (statistics != null) {
+                deviceText += " [" + MessageFormat.format(
+                        STRINGS.getString("Run_History_Statistics"),
+                        statistics.getRuns(),
+                        statistics.getAverageThroughput());
+                if (statistics.isDegrading()) {
+                    deviceText += ", "
+                            + STRINGS.getString("Run_History_Degrading");
+                }
+                deviceText += "]";
+            }
+        }
         graphics2D.setPaint(Color.BLACK);
         graphics2D.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                 RenderingHints.VALUE_ANTIALIAS_ON);